@@ -0,0 +1,87 @@
+package au.csiro.fhir.claml;
+
+import java.io.ByteArrayInputStream;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+import au.csiro.fhir.claml.model.claml.Fragment;
+import au.csiro.fhir.claml.model.claml.Label;
+import au.csiro.fhir.claml.model.claml.ListItem;
+import au.csiro.fhir.claml.model.claml.Para;
+import au.csiro.fhir.claml.model.claml.Reference;
+import au.csiro.fhir.claml.model.claml.Term;
+
+/**
+ * Synthetic inputs shared by the benchmarks.
+ */
+final class BenchmarkData {
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @return A ClaML document with chapters of ten categories each, every class having preferred,
+     * preferredLong and inclusion rubrics.
+     */
+    static byte[] claml(int classCount) {
+        try {
+            return new SyntheticClamlGenerator()
+                    .setClassCount(classCount)
+                    .setDepth(1)
+                    .setFanOut(10)
+                    .setRubricsPerClass(3)
+                    .setLabelDepth(1)
+                    .toByteArray();
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static ClaML parse(JAXBContext jaxbContext, byte[] xml) throws JAXBException {
+        return (ClaML) jaxbContext.createUnmarshaller().unmarshal(new ByteArrayInputStream(xml));
+    }
+
+    /**
+     * @return A label with nested Para, Fragment and List content, depth levels deep and width
+     * children per level.
+     */
+    static Label nestedLabel(int depth, int width) {
+        Label label = new Label();
+        label.setLang("en");
+        for (int i = 0; i < width; i++) {
+            label.getContent().add(nestedPara(depth, width));
+        }
+        return label;
+    }
+
+    private static Para nestedPara(int depth, int width) {
+        Para para = new Para();
+        para.getContent().add("Paragraph text at depth " + depth + " ");
+        Reference ref = new Reference();
+        ref.setContent("A00." + depth);
+        para.getContent().add(ref);
+        Term term = new Term();
+        term.setClazz("italics");
+        term.setContent("term");
+        para.getContent().add(term);
+        if (depth > 0) {
+            Fragment fragment = new Fragment();
+            fragment.setType("list");
+            au.csiro.fhir.claml.model.claml.List list = new au.csiro.fhir.claml.model.claml.List();
+            for (int i = 0; i < width; i++) {
+                fragment.getContent().add("fragment " + i);
+                ListItem item = new ListItem();
+                item.getContent().add("item " + i + " ");
+                item.getContent().add(nestedPara(depth - 1, width));
+                list.getListItem().add(item);
+            }
+            para.getContent().add(fragment);
+            para.getContent().add(list);
+        }
+        return para;
+    }
+
+}
@@ -0,0 +1,99 @@
+package au.csiro.fhir.claml;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-code bookkeeping keyed by code strings in a HashMap compared with a {@link CodeDictionary} and
+ * arrays indexed by id. Run with "-prof gc" to compare the allocation of each approach.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CodeDictionaryBenchmark {
+
+    @Param({"100000"})
+    public int classCount;
+
+    private String[] codes;
+    private String[] lookups;
+    private Map<String, String> map;
+    private CodeDictionary dictionary;
+    private String[] displays;
+
+    @Setup
+    public void setup() {
+        codes = new String[classCount];
+        lookups = new String[classCount];
+        for (int i = 0; i < classCount; i++) {
+            codes[i] = "C" + (i / 100) + "." + (i % 100);
+            // Equal but not identical, as when codes are read again from SubClass elements
+            lookups[i] = new String(codes[i]);
+        }
+        map = buildMap();
+        dictionary = new CodeDictionary();
+        displays = buildArrays(dictionary);
+    }
+
+    @Benchmark
+    public Map<String, String> buildMap() {
+        Map<String, String> result = new HashMap<>();
+        for (String code : codes) {
+            result.put(code, code);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public String[] buildDictionary() {
+        return buildArrays(new CodeDictionary());
+    }
+
+    private String[] buildArrays(CodeDictionary dictionary) {
+        String[] result = new String[classCount];
+        for (String code : codes) {
+            result[dictionary.intern(code)] = code;
+        }
+        return result;
+    }
+
+    @Benchmark
+    public int lookupMap() {
+        int found = 0;
+        for (String code : lookups) {
+            if (map.get(code) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int lookupDictionary() {
+        int found = 0;
+        for (String code : lookups) {
+            int id = dictionary.id(code);
+            if (id >= 0 && displays[id] != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+}
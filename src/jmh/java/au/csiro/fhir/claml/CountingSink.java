@@ -0,0 +1,35 @@
+package au.csiro.fhir.claml;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Discards the output of a transformation, so only the cost of producing it is measured.
+ */
+class CountingSink implements ConceptSink {
+
+    private final Blackhole blackhole;
+    int count;
+
+    CountingSink(Blackhole blackhole) {
+        this.blackhole = blackhole;
+    }
+
+    @Override
+    public void start(CodeSystem header) {
+        blackhole.consume(header);
+    }
+
+    @Override
+    public void accept(ConceptDefinitionComponent concept) {
+        blackhole.consume(concept);
+        count++;
+    }
+
+    @Override
+    public void finish(int count) {
+        blackhole.consume(count);
+    }
+
+}
@@ -0,0 +1,73 @@
+package au.csiro.fhir.claml;
+
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Serialising a transformed code system to JSON, with the HAPI encoder and with the streaming
+ * writer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EncodeBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int classCount;
+
+    private FhirContext context;
+    private CodeSystem cs;
+    private CodeSystem header;
+
+    @Setup
+    public void setup() throws Exception {
+        context = FhirContext.forR4();
+        ClaML claml = BenchmarkData.parse(JAXBContext.newInstance(ClaML.class), BenchmarkData.claml(classCount));
+        cs = new FhirClamlService().claml2FhirObject(claml,
+                new ConversionOptions().setDesignationRubrics(Arrays.asList("inclusion")));
+        header = cs.copy();
+        header.setConcept(null);
+        header.setCountElement(null);
+    }
+
+    @Benchmark
+    public void hapiEncode() throws Exception {
+        context.newJsonParser().encodeResourceToWriter(cs, Writer.nullWriter());
+    }
+
+    @Benchmark
+    public void streamingEncode() throws Exception {
+        try (StreamingCodeSystemWriter writer = new StreamingCodeSystemWriter(context, OutputStream.nullOutputStream())) {
+            writer.start(header);
+            for (ConceptDefinitionComponent concept : cs.getConcept()) {
+                writer.accept(concept);
+            }
+            writer.finish(cs.getCount());
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package au.csiro.fhir.claml;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.csiro.fhir.claml.ConversionOptions.HierarchyOutput;
+import au.csiro.fhir.claml.model.claml.ClaML;
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Serialising a transformed code system to JSON with each way of representing the hierarchy. The
+ * size of the output is reported as the secondary result "bytes".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HierarchyOutputBenchmark {
+
+    @Param({"100000"})
+    public int classCount;
+
+    @Param({"PROPERTIES", "PARENTS", "NESTED"})
+    public HierarchyOutput hierarchyOutput;
+
+    private FhirContext context;
+    private CodeSystem cs;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Size {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        context = FhirContext.forR4();
+        ClaML claml = BenchmarkData.parse(JAXBContext.newInstance(ClaML.class), BenchmarkData.claml(classCount));
+        cs = new FhirClamlService().claml2FhirObject(claml, new ConversionOptions()
+                .setDesignationRubrics(Arrays.asList("inclusion"))
+                .setHierarchyOutput(hierarchyOutput));
+    }
+
+    @Benchmark
+    public void encode(Size size) throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            context.newJsonParser().encodeResourceToWriter(cs, writer);
+        }
+        size.bytes = out.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+package au.csiro.fhir.claml;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.csiro.fhir.claml.model.claml.Label;
+
+/**
+ * Rendering deeply nested Label/Para/Fragment/List content as plain text.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LabelBenchmark {
+
+    @Param({"2", "4", "6"})
+    public int depth;
+
+    @Param({"3"})
+    public int width;
+
+    private FhirClamlService service;
+    private Label label;
+
+    @Setup
+    public void setup() {
+        service = new FhirClamlService();
+        label = BenchmarkData.nestedLabel(depth, width);
+    }
+
+    @Benchmark
+    public String getLabelValue() {
+        return service.getLabelValue(label);
+    }
+
+}
@@ -0,0 +1,89 @@
+package au.csiro.fhir.claml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+import au.csiro.fhir.claml.model.claml.Label;
+import au.csiro.fhir.claml.model.claml.ModifiedBy;
+import au.csiro.fhir.claml.model.claml.ModifierClass;
+import au.csiro.fhir.claml.model.claml.Rubric;
+import au.csiro.fhir.claml.model.claml.RubricKind;
+import au.csiro.fhir.claml.model.claml.RubricKinds;
+
+/**
+ * Applying chained modifiers to a single class. Each additional modifier multiplies the number of
+ * generated concepts by the number of its modifier classes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ModifierBenchmark {
+
+    @Param({"1", "2", "3"})
+    public int modifiers;
+
+    @Param({"10"})
+    public int modifierClasses;
+
+    private ModifierIndex index;
+    private List<ModifiedBy> modifiedBy;
+    private CodeDictionary codes;
+    private String[] displays;
+
+    @Setup
+    public void setup() {
+        RubricKind preferred = new RubricKind();
+        preferred.setName("preferred");
+        ClaML claml = new ClaML();
+        claml.setRubricKinds(new RubricKinds());
+        claml.getRubricKinds().getRubricKind().add(preferred);
+        modifiedBy = new ArrayList<>();
+        for (int m = 0; m < modifiers; m++) {
+            String modifier = "M" + m;
+            for (int i = 0; i < modifierClasses; i++) {
+                ModifierClass modClass = new ModifierClass();
+                modClass.setModifier(modifier);
+                modClass.setCode("." + m + i);
+                Rubric rubric = new Rubric();
+                rubric.setKind(preferred);
+                Label label = new Label();
+                label.getContent().add("Modifier " + m + " class " + i);
+                rubric.getLabel().add(label);
+                modClass.getRubric().add(rubric);
+                claml.getModifierClass().add(modClass);
+            }
+            ModifiedBy modBy = new ModifiedBy();
+            modBy.setCode(modifier);
+            modifiedBy.add(modBy);
+        }
+        index = new ModifierIndex(claml.getModifierClass(), new RubricRoleTable(claml, new ConversionOptions()),
+                new PlainTextLabelRenderer());
+        codes = new CodeDictionary();
+        codes.intern("A00");
+        displays = new String[] { "Base class" };
+    }
+
+    @Benchmark
+    public int expand(Blackhole blackhole) throws Exception {
+        return new ModifierExpander(index, codes, displays, new CountingSink(blackhole)).expand(0, modifiedBy);
+    }
+
+}
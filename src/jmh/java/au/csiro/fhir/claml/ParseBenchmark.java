@@ -0,0 +1,101 @@
+package au.csiro.fhir.claml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+
+/**
+ * Reading ClaML: unmarshalling the whole document with JAXB against the streaming reader, and
+ * against skipping excluded elements while streaming, and against loading a snapshot of the parsed
+ * model.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ParseBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int classCount;
+
+    private JAXBContext jaxbContext;
+    private byte[] xml;
+    private byte[] snapshot;
+    private ClamlFilter filter;
+
+    @Setup
+    public void setup() throws Exception {
+        jaxbContext = JAXBContext.newInstance(ClaML.class);
+        xml = BenchmarkData.claml(classCount);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ClamlReader reader = new ClamlReader(jaxbContext, new ByteArrayInputStream(xml));
+                ClamlSnapshotWriter writer = new ClamlSnapshotWriter(out)) {
+            writer.writeHeader(reader.readHeader());
+            while (reader.hasNext()) {
+                writer.writeClass(reader.next());
+            }
+            writer.finish();
+        }
+        snapshot = out.toByteArray();
+        // Drops the chapters and one of the three rubrics of every category
+        filter = new ClamlFilter(new ConversionOptions()
+                .setExcludeClassKinds(Collections.singletonList("chapter"))
+                .setExcludeRubricKinds(Collections.singletonList("inclusion")));
+    }
+
+    @Benchmark
+    public ClaML unmarshal() throws Exception {
+        return BenchmarkData.parse(jaxbContext, xml);
+    }
+
+    @Benchmark
+    public void streamingRead(Blackhole blackhole) throws Exception {
+        try (ClamlReader reader = new ClamlReader(jaxbContext, new ByteArrayInputStream(xml))) {
+            blackhole.consume(reader.readHeader());
+            while (reader.hasNext()) {
+                blackhole.consume(reader.next());
+            }
+        }
+    }
+
+    @Benchmark
+    public void filteredStreamingRead(Blackhole blackhole) throws Exception {
+        try (ClamlReader reader = new ClamlReader(jaxbContext, new ByteArrayInputStream(xml), filter)) {
+            blackhole.consume(reader.readHeader());
+            while (reader.hasNext()) {
+                blackhole.consume(reader.next());
+            }
+        }
+    }
+
+    @Benchmark
+    public void snapshotRead(Blackhole blackhole) throws Exception {
+        try (ClamlSnapshotReader reader = new ClamlSnapshotReader(new ByteArrayInputStream(snapshot))) {
+            blackhole.consume(reader.readHeader());
+            while (reader.hasNext()) {
+                blackhole.consume(reader.next());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package au.csiro.fhir.claml;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.Parameters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+
+/**
+ * Answering terminology operations from a {@link TerminologyIndex} of a converted code system. Each
+ * invocation answers one operation for the next code in a fixed sequence.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TerminologyIndexBenchmark {
+
+    @Param({"100000"})
+    public int classCount;
+
+    private TerminologyIndex index;
+    private String[] codes;
+    private String[] displays;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        ClaML claml = BenchmarkData.parse(JAXBContext.newInstance(ClaML.class), BenchmarkData.claml(classCount));
+        CodeSystem cs = new FhirClamlService().claml2FhirObject(claml,
+                new ConversionOptions().setDesignationRubrics(Arrays.asList("inclusion")));
+        index = TerminologyIndexBuilder.index(cs);
+        codes = cs.getConcept().stream().map(c -> c.getCode()).toArray(String[]::new);
+        displays = cs.getConcept().stream().map(c -> c.getDisplay()).toArray(String[]::new);
+    }
+
+    private int next() {
+        next = (next + 7919) % codes.length;
+        return next;
+    }
+
+    @Benchmark
+    public Parameters lookup() {
+        return index.lookup(codes[next()]);
+    }
+
+    @Benchmark
+    public Parameters validateCode() {
+        int i = next();
+        return index.validateCode(codes[i], displays[i]);
+    }
+
+    @Benchmark
+    public TerminologyIndex.Outcome subsumes() {
+        int a = next();
+        return index.subsumesOutcome(codes[a], codes[next()]);
+    }
+
+}
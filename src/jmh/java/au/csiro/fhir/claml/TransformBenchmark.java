@@ -0,0 +1,60 @@
+package au.csiro.fhir.claml;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+
+/**
+ * Transforming an already parsed ClaML model into a code system.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TransformBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int classCount;
+
+    private FhirClamlService service;
+    private ClaML claml;
+    private ConversionOptions options;
+    private ConversionOptions parallelOptions;
+
+    @Setup
+    public void setup() throws Exception {
+        service = new FhirClamlService();
+        claml = BenchmarkData.parse(JAXBContext.newInstance(ClaML.class), BenchmarkData.claml(classCount));
+        options = new ConversionOptions().setDesignationRubrics(Arrays.asList("inclusion"));
+        parallelOptions = new ConversionOptions().setDesignationRubrics(Arrays.asList("inclusion")).setParallel(true);
+    }
+
+    @Benchmark
+    public CodeSystem claml2FhirObject() {
+        return service.claml2FhirObject(claml, options);
+    }
+
+    @Benchmark
+    public CodeSystem claml2FhirObjectParallel() {
+        return service.claml2FhirObject(claml, parallelOptions);
+    }
+
+}
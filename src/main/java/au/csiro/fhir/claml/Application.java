@@ -3,13 +3,20 @@ package au.csiro.fhir.claml;
 import static java.lang.System.exit;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -18,12 +25,14 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.Banner;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 
+import au.csiro.fhir.claml.model.claml.ClaML;
 import ca.uhn.fhir.context.FhirContext;
 
 @SpringBootApplication
@@ -31,6 +40,15 @@ public class Application implements CommandLineRunner {
     @Autowired
     private FhirClamlService fhirClamlController;
 
+    @Autowired
+    private BatchConverter batchConverter;
+
+    @Autowired
+    private ConversionServer conversionServer;
+
+    @Value("${server.port:8081}")
+    private int serverPort;
+
     /**
      * Created here as a bean because it is expensive to create and we only need one instance that can
      * be shared.
@@ -42,6 +60,18 @@ public class Application implements CommandLineRunner {
         return FhirContext.forR4();
     }
 
+    /**
+     * Created here as a bean for the same reason as the FHIR context. A JAXB context is thread-safe,
+     * so concurrent conversions can share it.
+     *
+     * @return
+     * @throws JAXBException
+     */
+    @Bean
+    public JAXBContext jaxbContext() throws JAXBException {
+        return JAXBContext.newInstance(ClaML.class);
+    }
+
     /**
      * Main method.
      * 
@@ -57,6 +87,281 @@ public class Application implements CommandLineRunner {
 
     @Override
     public void run(String... args) throws Exception {
+        if (Arrays.asList(args).contains("-batch")) {
+            exit(runBatch(args) ? 0 : 1);
+        }
+        if (Arrays.asList(args).contains("-server")) {
+            // Keeps running until the process is stopped
+            runServer(args);
+            return;
+        }
+
+        Options options = createOptions();
+        CommandLineParser parser = new DefaultParser();
+        try {
+            // parse the command line arguments
+            CommandLine line = parser.parse(options, args);
+            ConversionOptions conversionOptions = toConversionOptions(line);
+
+            try {
+                fhirClamlController.claml2fhir(new File(line.getOptionValue("input")),
+                        conversionOptions,
+                        new File(line.getOptionValue("output")));
+            } catch (Throwable t) {
+                System.out.println("There was a problem transforming the ClaML file into FHIR: " 
+                        + t.getLocalizedMessage());
+                t.printStackTrace();
+            }
+
+        } catch (ParseException exp) {
+            // oops, something went wrong
+            System.out.println(exp.getMessage());
+            printUsage(options);
+        }
+
+        exit(0);
+    }
+
+    /**
+     * Converts every entry of a manifest file, see {@link #readManifest(File)}.
+     *
+     * @return true if every entry was converted.
+     */
+    private boolean runBatch(String... args) throws InterruptedException {
+        Options batchOptions = new Options();
+        batchOptions.addOption(Option.builder("batch")
+                .required(true)
+                .hasArg(true)
+                .desc("A manifest file with the options of one conversion per line.")
+                .build());
+        batchOptions.addOption("threads", true, "The maximum number of files to convert at the same "
+                + "time. Defaults to the number of available processors.");
+
+        List<BatchConverter.Entry> entries;
+        int threads;
+        try {
+            CommandLine batchLine = new DefaultParser().parse(batchOptions, args);
+            threads = Integer.parseInt(batchLine.getOptionValue("threads", "0"));
+            File manifest = new File(batchLine.getOptionValue("batch"));
+            try {
+                entries = readManifest(manifest);
+            } catch (ParseException exp) {
+                System.out.println(exp.getMessage());
+                printUsage(createOptions());
+                return false;
+            }
+        } catch (ParseException | NumberFormatException exp) {
+            System.out.println(exp.getMessage());
+            printUsage(batchOptions);
+            return false;
+        } catch (IOException e) {
+            System.out.println("Could not read the batch manifest: " + e.getLocalizedMessage());
+            return false;
+        }
+
+        return batchConverter.convert(entries, threads).stream().allMatch(r -> r.getError() == null);
+    }
+
+    /**
+     * Reads a batch manifest. Each non-empty line of the manifest that does not start with # holds
+     * the options for one conversion, in the same format as the command line. Relative input,
+     * output, side output and snapshot paths are resolved against the directory of the manifest.
+     *
+     * @throws ParseException If a line has invalid options, with the line number in the message.
+     */
+    static List<BatchConverter.Entry> readManifest(File manifest) throws IOException, ParseException {
+        File base = manifest.getAbsoluteFile().getParentFile();
+        List<BatchConverter.Entry> entries = new ArrayList<>();
+        int lineNumber = 0;
+        for (String manifestLine : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            lineNumber++;
+            manifestLine = manifestLine.trim();
+            if (manifestLine.isEmpty() || manifestLine.startsWith("#")) {
+                continue;
+            }
+            try {
+                CommandLine line = parseArguments(splitArguments(manifestLine));
+                ConversionOptions conversionOptions = toConversionOptions(line);
+                if (line.hasOption("ndjson")) {
+                    conversionOptions.setNdjsonOutput(resolve(base, line.getOptionValue("ndjson")));
+                }
+                if (line.hasOption("intervals")) {
+                    conversionOptions.setIntervalOutput(resolve(base, line.getOptionValue("intervals")));
+                }
+                if (line.hasOption("diagnostics")) {
+                    conversionOptions.setDiagnosticsOutput(resolve(base, line.getOptionValue("diagnostics")));
+                }
+                if (line.hasOption("closure")) {
+                    conversionOptions.setClosureOutput(resolve(base, line.getOptionValue("closure")));
+                }
+                if (line.hasOption("snapshotDir")) {
+                    conversionOptions.setSnapshotDir(resolve(base, line.getOptionValue("snapshotDir")));
+                }
+                entries.add(new BatchConverter.Entry(
+                        resolve(base, line.getOptionValue("input")),
+                        conversionOptions,
+                        resolve(base, line.getOptionValue("output"))));
+            } catch (ParseException | IllegalArgumentException exp) {
+                throw new ParseException("Line " + lineNumber + " of " + manifest + ": " + exp.getMessage());
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Serves conversions over HTTP until the process is stopped. See {@link ConversionServer}.
+     */
+    private void runServer(String... args) throws IOException {
+        Options serverOptions = new Options();
+        serverOptions.addOption("server", false, "Serve conversions over HTTP instead of converting a "
+                + "single file.");
+        serverOptions.addOption("port", true, "The port to listen on. Defaults to server.port in "
+                + "application.properties.");
+        serverOptions.addOption("threads", true, "The maximum number of files to convert at the same "
+                + "time. Defaults to the number of available processors.");
+        serverOptions.addOption("workDir", true, "The directory where uploaded files and the output of "
+                + "jobs are kept. Defaults to a fhir-claml-server directory in the temporary directory.");
+        serverOptions.addOption("retention", true, "How many hours a finished job, its files and its index are "
+                + "kept before they are removed. Defaults to 24.");
+        serverOptions.addOption("inputRoot", true, "A directory whose files jobs may name with -i. Without "
+                + "it, jobs have to send the ClaML file as the request body.");
+
+        try {
+            CommandLine line = new DefaultParser().parse(serverOptions, args);
+            int port = Integer.parseInt(line.getOptionValue("port", Integer.toString(serverPort)));
+            int threads = Integer.parseInt(line.getOptionValue("threads", "0"));
+            File workDir = line.hasOption("workDir") ? new File(line.getOptionValue("workDir"))
+                    : new File(System.getProperty("java.io.tmpdir"), "fhir-claml-server");
+            File inputRoot = line.hasOption("inputRoot") ? new File(line.getOptionValue("inputRoot")) : null;
+            conversionServer.setRetention(Duration.ofHours(Long.parseLong(line.getOptionValue("retention", "24"))));
+            conversionServer.start(port, threads, workDir, inputRoot);
+            Runtime.getRuntime().addShutdownHook(new Thread(conversionServer::stop));
+        } catch (ParseException | NumberFormatException exp) {
+            System.out.println(exp.getMessage());
+            printUsage(serverOptions);
+            exit(1);
+        }
+    }
+
+    private static File resolve(File base, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(base, path);
+    }
+
+    /**
+     * Splits a manifest line into arguments on whitespace. Double quotes group an argument that
+     * contains whitespace.
+     */
+    static String[] splitArguments(String line) {
+        List<String> result = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        boolean inArgument = false;
+        for (char ch : line.toCharArray()) {
+            if (ch == '"') {
+                quoted = !quoted;
+                inArgument = true;
+            } else if (Character.isWhitespace(ch) && !quoted) {
+                if (inArgument) {
+                    result.add(current.toString());
+                    current.setLength(0);
+                    inArgument = false;
+                }
+            } else {
+                current.append(ch);
+                inArgument = true;
+            }
+        }
+        if (inArgument) {
+            result.add(current.toString());
+        }
+        return result.toArray(new String[0]);
+    }
+
+    /**
+     * Parses the options of one conversion, in the same format as the command line.
+     */
+    static CommandLine parseArguments(String[] args) throws ParseException {
+        return new DefaultParser().parse(createOptions(), args);
+    }
+
+    /**
+     * @throws ParseException If an option that has to be a positive number is not.
+     */
+    static ConversionOptions toConversionOptions(CommandLine line) throws ParseException {
+        String[] designationOptions = line.getOptionValues("designations");
+        List<String> designations = designationOptions != null ? Arrays.asList(designationOptions) : Collections.emptyList();
+        String[] excludeClassKindsOptions = line.getOptionValues("excludeClassKinds");
+        List<String> excludeClassKinds = excludeClassKindsOptions != null ? Arrays.asList(excludeClassKindsOptions) : Collections.emptyList();
+        String[] excludeRubricKindsOptions = line.getOptionValues("excludeRubricKinds");
+        List<String> excludeRubricKinds = excludeRubricKindsOptions != null ? Arrays.asList(excludeRubricKindsOptions) : Collections.emptyList();
+        String[] displayRubricOptions = line.getOptionValues("d");
+        List<String> displayRubrics = displayRubricOptions != null ? Arrays.asList(displayRubricOptions) : Collections.emptyList();
+        return new ConversionOptions()
+                .setDisplayRubrics(displayRubrics)
+                .setDefinitionRubric(line.getOptionValue("definition"))
+                .setDesignationRubrics(designations)
+                .setExcludeClassKinds(excludeClassKinds)
+                .setExcludeRubricKinds(excludeRubricKinds)
+                .setExcludeKindlessClasses(Boolean.parseBoolean(line.getOptionValue("excludeKindlessClasses")))
+                .setHierarchyMeaning(line.getOptionValue("hierarchyMeaning"))
+                .setId(line.getOptionValue("id"))
+                .setUrl(line.getOptionValue("url"))
+                .setValueSet(line.getOptionValue("valueSet"))
+                .setContent(line.getOptionValue("content"))
+                .setVersionNeeded(line.hasOption("versionNeeded"))
+                .setApplyModifiers(Boolean.parseBoolean(line.getOptionValue("applyModifiers")))
+                .setExperimental(Boolean.parseBoolean(line.getOptionValue("experimental", "true")))
+                .setStatus(line.getOptionValue("status", "draft"))
+                .setStreamOutput(line.hasOption("streamOutput"))
+                .setParallel(line.hasOption("parallel"))
+                .setSnapshotDir(line.hasOption("snapshotDir") ? new File(line.getOptionValue("snapshotDir")) : null)
+                .setInputEntry(line.getOptionValue("inputEntry"))
+                .setSplitSize(line.hasOption("splitSize") ? parseAtLeast(line, "splitSize", null, 1) * 1024L * 1024 : 0)
+                .setNdjsonOutput(line.hasOption("ndjson") ? new File(line.getOptionValue("ndjson")) : null)
+                .setUploadUrl(line.getOptionValue("uploadUrl"))
+                .setUploadMode(parseEnum(line, "uploadMode", "single", FhirUploader.Mode.class))
+                .setUploadChunkSize(parseAtLeast(line, "uploadChunkSize", "1000", 1))
+                .setUploadThreads(parseAtLeast(line, "uploadThreads", "4", 1))
+                .setUploadRetries(parseAtLeast(line, "uploadRetries", "5", 0))
+                .setIntervalOutput(line.hasOption("intervals") ? new File(line.getOptionValue("intervals")) : null)
+                .setIntervalProperties(line.hasOption("intervalProperties"))
+                .setClosureOutput(line.hasOption("closure") ? new File(line.getOptionValue("closure")) : null)
+                .setHierarchyOutput(parseEnum(line, "hierarchyOutput", "properties", ConversionOptions.HierarchyOutput.class))
+                .setLogDiagnostics(line.hasOption("logDiagnostics"))
+                .setRunReport(line.hasOption("report"))
+                .setDiagnosticsOutput(line.hasOption("diagnostics") ? new File(line.getOptionValue("diagnostics")) : null);
+    }
+
+    private static int parseAtLeast(CommandLine line, String option, String defaultValue, int minimum)
+            throws ParseException {
+        String value = line.getOptionValue(option, defaultValue);
+        try {
+            int result = Integer.parseInt(value);
+            if (result >= minimum) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new ParseException("-" + option + " must be a number of at least " + minimum + ", not " + value);
+    }
+
+    private static <E extends Enum<E>> E parseEnum(CommandLine line, String option, String defaultValue,
+            Class<E> type) throws ParseException {
+        String value = line.getOptionValue(option, defaultValue);
+        try {
+            return Enum.valueOf(type, value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            List<String> valid = new ArrayList<>();
+            for (E constant : type.getEnumConstants()) {
+                valid.add(constant.name().toLowerCase());
+            }
+            throw new ParseException("-" + option + " must be one of " + String.join(", ", valid) + ", not " + value);
+        }
+    }
+
+    static Options createOptions() {
         Options options = new Options();
 
         options.addOption(new Option("help", "Print this message."));
@@ -95,8 +400,19 @@ public class Application implements CommandLineRunner {
                 .desc("Comma-separated list of class kinds to exclude.")
                 .build());
 
+        options.addOption(Option.builder()
+                .longOpt("excludeRubricKinds")
+                .hasArgs()
+                .valueSeparator(',')
+                .desc("Comma-separated list of rubric kinds to leave out of the code system.")
+                .build());
+
         options.addOption("excludeKindlessClasses", true, "Exclude ClaML classes that do not have kinds (default: false)");
 
+        options.addOption("hierarchyOutput", true, "How the hierarchy is represented. Valid values are "
+                + "'properties' for parent and child properties, 'parents' for parent properties only, and "
+                + "'nested' for concepts nested under their first parent, with parent properties for any other "
+                + "parents. 'nested' is not available with -streamOutput or -splitSize. Default is 'properties'.");
         options.addOption("hierarchyMeaning", true, "The hierarchyMeaning of the code system. Allowable values are 'is-a', 'part-of', 'grouped-by', and 'classified-with'. Default is 'is-a'.");
 
         options.addOption(
@@ -104,10 +420,14 @@ public class Application implements CommandLineRunner {
                 .required(true)
                 .hasArg(true)
                 .longOpt("input")
-                .desc("The input ClaML file.")
+                .desc("The input ClaML file. It may also be a zip archive holding the ClaML file, or "
+                        + "gzip or xz compressed ClaML.")
                 .build()
                 );
 
+        options.addOption("inputEntry", true, "A regular expression that selects the ClaML file "
+                + "inside a zip input by name. Only needed if the archive holds more than one .xml file.");
+
         options.addOption("id", true, "The technical id of the code system. Required if using PUT to "
                 + "upload the resource to a FHIR server.");
 
@@ -116,7 +436,7 @@ public class Application implements CommandLineRunner {
                 .required(true)
                 .hasArg(true)
                 .longOpt("output")
-                .desc("The output FHIR JSON file.")
+                .desc("The output FHIR JSON file. It is compressed if its name ends in .gz or .xz.")
                 .build()
                 );
 
@@ -132,6 +452,65 @@ public class Application implements CommandLineRunner {
 
         options.addOption("status", true, "Code system status. Valid values are draft, active, "
 	        + "retired and unknown");  
+
+        options.addOption("streamOutput", false, "Write each concept to the output as soon as it is "
+                + "produced instead of building the whole code system in memory first.");
+
+        options.addOption("parallel", false, "Convert the classes concurrently on all available "
+                + "processors. The output is the same as a sequential conversion.");
+
+        options.addOption("splitSize", true, "Split the output into files of about this many MB, at least 1, "
+                + "each a code system fragment with a share of the concepts. The files are named after "
+                + "the output with their number added, e.g. cs-1.json, cs-2.json.");
+
+        options.addOption("ndjson", true, "Also write every concept, including those generated by "
+                + "modifiers, to this file as one line of JSON each. It is compressed if its name ends "
+                + "in .gz or .xz.");
+
+        options.addOption("intervals", true, "Also write the interval labels of the hierarchy, including "
+                + "modifier-generated codes, to this binary file, so that subsumption can be tested with two "
+                + "integer comparisons. It is compressed if its name ends in .gz or .xz.");
+
+        options.addOption("diagnostics", true, "Also write the issues found in the classification, counted "
+                + "by category with a few examples each, to this JSON file.");
+
+        options.addOption("logDiagnostics", false, "Log every issue found in the classification as it is "
+                + "found, rather than only a summary at the end.");
+
+        options.addOption("report", false, "Write a JSON report of the wall and CPU time of each phase of "
+                + "the conversion, garbage collection, peak heap, and the numbers of classes and concepts "
+                + "read, excluded and produced, to the output file name with .report.json appended.");
+
+        options.addOption("closure", true, "Also write the transitive closure of the hierarchy, including "
+                + "modifier-generated codes, as ancestor, descendant and distance rows to this file. It is "
+                + "CSV if its name ends in .csv and a compact binary format otherwise. It is compressed if its "
+                + "name ends in .gz or .xz.");
+
+        options.addOption("intervalProperties", false, "Add the interval labels of the hierarchy to the "
+                + "concepts as the intervalStart, intervalEnd and depth properties. Not available with "
+                + "-streamOutput.");
+
+        options.addOption("uploadUrl", true, "The base URL of a FHIR server to upload the code system "
+                + "to while it is converted.");
+
+        options.addOption("uploadMode", true, "How the code system is uploaded. Valid values are "
+                + "single (the whole code system in one request), supplements (a supplement per chunk "
+                + "of concepts, then the base code system) and transaction (as supplements, with each "
+                + "chunk in a transaction Bundle). Default is single.");
+
+        options.addOption("uploadChunkSize", true, "The number of concepts in each chunk of the upload, at least 1. "
+                + "Default is 1000.");
+
+        options.addOption("uploadThreads", true, "The number of chunks sent to the server at the same "
+                + "time, at least 1. Default is 4.");
+
+        options.addOption("uploadRetries", true, "How many times a failed request is retried, with "
+                + "exponential backoff, at least 0. Default is 5.");
+
+        options.addOption("snapshotDir", true, "A directory where the parsed ClaML is saved in a "
+                + "binary snapshot. Later conversions of the same file load the snapshot instead of "
+                + "parsing the XML again.");
+
         // The following options are not yet supported
         /*
 
@@ -169,48 +548,7 @@ public class Application implements CommandLineRunner {
          */
 
 
-        CommandLineParser parser = new DefaultParser();
-        try {
-            // parse the command line arguments
-            CommandLine line = parser.parse(options, args);
-
-            try {
-
-                String[] designationOptions = line.getOptionValues("designations");
-                List<String> designations = designationOptions != null ? Arrays.asList(designationOptions) : Collections.emptyList();
-                String[] excludeClassKindsOptions = line.getOptionValues("excludeClassKind");
-                List<String> excludeClassKinds = excludeClassKindsOptions != null ? Arrays.asList(excludeClassKindsOptions) : Collections.emptyList();
-                String[] displayRubricOptions = line.getOptionValues("d");
-                List<String> displayRubrics = displayRubricOptions != null ? Arrays.asList(displayRubricOptions) : Collections.emptyList();
-                fhirClamlController.claml2fhir(new File(line.getOptionValue("input")),
-                        displayRubrics,
-                        line.getOptionValue("definition"),
-                        designations,
-                        excludeClassKinds,
-                        Boolean.parseBoolean(line.getOptionValue("excludeKindlessClasses")),
-                        line.getOptionValue("hierarchyMeaning"),
-                        line.getOptionValue("id"),
-                        line.getOptionValue("url"),
-                        line.getOptionValue("valueSet"),
-                        line.getOptionValue("content"),
-                        line.hasOption("versionNeeded"),
-                        Boolean.parseBoolean(line.getOptionValue("applyModifiers")),
-                        Boolean.parseBoolean(line.getOptionValue("experimental", "true")),
-                        line.getOptionValue("status", "draft"),
-                        new File(line.getOptionValue("output")));
-            } catch (Throwable t) {
-                System.out.println("There was a problem transforming the ClaML file into FHIR: " 
-                        + t.getLocalizedMessage());
-                t.printStackTrace();
-            }
-
-        } catch (ParseException exp) {
-            // oops, something went wrong
-            System.out.println(exp.getMessage());
-            printUsage(options);
-        }
-
-        exit(0);
+        return options;
     }
 
     private static void printUsage(Options options) {
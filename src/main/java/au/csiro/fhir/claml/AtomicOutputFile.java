@@ -0,0 +1,147 @@
+package au.csiro.fhir.claml;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+/**
+ * An output file that only appears under its name once it is complete. Everything is written to a
+ * temporary file next to it through a buffered file channel, and {@link #commit()} renames the
+ * temporary file into place atomically where the file system allows it. Closing an output that has
+ * not been committed deletes the temporary file, so readers never see a half-written file.
+ * <p>
+ * Files named *.gz or *.xz are compressed with gzip or xz as they are written.
+ */
+public class AtomicOutputFile implements Closeable {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final File target;
+    private final File temp;
+    private final CountingOutputStream counter;
+    private final OutputStream out;
+    private boolean committed;
+
+    public AtomicOutputFile(File target) throws IOException {
+        this.target = target;
+        File dir = target.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        // The prefix has to be at least three characters long, whatever the name of the output
+        this.temp = File.createTempFile("." + target.getName() + "-", ".tmp", dir);
+        FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.counter = new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+        OutputStream stream;
+        try {
+            String name = target.getName().toLowerCase();
+            if (name.endsWith(".gz")) {
+                stream = new GZIPOutputStream(counter, 64 * 1024);
+            } else if (name.endsWith(".xz")) {
+                stream = new XZOutputStream(counter, new LZMA2Options());
+            } else {
+                stream = counter;
+            }
+        } catch (IOException e) {
+            counter.close();
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+        this.out = stream;
+    }
+
+    /**
+     * @return The name the output gets when it is committed.
+     */
+    public File getTarget() {
+        return target;
+    }
+
+    /**
+     * @return The stream to write the content to. Closing it does not commit the output.
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * @return The number of bytes written to the file so far, after compression. Data still held by
+     * the compressor is not included.
+     */
+    public long getBytesWritten() {
+        return counter.count;
+    }
+
+    /**
+     * Finishes writing and renames the output into place.
+     */
+    public void commit() throws IOException {
+        out.close();
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        committed = true;
+    }
+
+    /**
+     * Discards the output unless it has been committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (committed) {
+            return;
+        }
+        try {
+            out.close();
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Counts the bytes that reach the file. It can be closed more than once, as the writers on top of
+     * it close their targets and the compressors do not all allow that.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+        boolean closed;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                super.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,254 @@
+package au.csiro.fhir.claml;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Converts many ClaML files in one JVM, sharing the FHIR and JAXB contexts of the
+ * {@link FhirClamlService}.
+ * <p>
+ * Files are converted concurrently on a pool bounded by the number of processors. Before a file is
+ * started, an estimate of the heap it needs is reserved from a budget based on the maximum heap
+ * size, so large releases wait for earlier conversions to finish instead of exhausting the heap.
+ */
+@Component
+public class BatchConverter {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchConverter.class);
+
+    /**
+     * Rough heap needed per byte of ClaML input when the whole code system is built in memory.
+     */
+    private static final long IN_MEMORY_HEAP_FACTOR = 8;
+
+    /**
+     * Rough heap needed per byte of ClaML input when the output is streamed.
+     */
+    private static final long STREAMING_HEAP_FACTOR = 2;
+
+    /**
+     * Fraction of the maximum heap that conversions may reserve.
+     */
+    static final double HEAP_BUDGET = 0.8;
+
+    /**
+     * Rough ratio of the size of ClaML XML to its size when compressed.
+     */
+    private static final long COMPRESSION_RATIO = 10;
+
+    private static final long MB = 1024 * 1024;
+
+    @Autowired
+    private FhirClamlService fhirClamlService;
+
+    /**
+     * One file to convert.
+     */
+    public static class Entry {
+        private final File input;
+        private final ConversionOptions options;
+        private final File output;
+
+        public Entry(File input, ConversionOptions options, File output) {
+            this.input = input;
+            this.options = options;
+            this.output = output;
+        }
+
+        public File getInput() {
+            return input;
+        }
+
+        public ConversionOptions getOptions() {
+            return options;
+        }
+
+        public File getOutput() {
+            return output;
+        }
+    }
+
+    /**
+     * The outcome of converting one file.
+     */
+    public static class Result {
+        private final Entry entry;
+        private final AtomicLong peakHeapBytes = new AtomicLong();
+        private long wallMillis;
+        private long allocatedBytes = -1;
+        private Throwable error;
+
+        Result(Entry entry) {
+            this.entry = entry;
+        }
+
+        public Entry getEntry() {
+            return entry;
+        }
+
+        public long getWallMillis() {
+            return wallMillis;
+        }
+
+        /**
+         * @return The highest heap usage of the whole JVM observed while this file was being
+         * converted. When files are converted concurrently this includes the other conversions.
+         */
+        public long getPeakHeapBytes() {
+            return peakHeapBytes.get();
+        }
+
+        /**
+         * @return The bytes allocated by the converting thread, or -1 if the JVM does not report it.
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+
+        void sampleHeap(long used) {
+            peakHeapBytes.accumulateAndGet(used, Math::max);
+        }
+    }
+
+    /**
+     * Converts all the entries and logs a summary when they have finished.
+     *
+     * @param threads The maximum number of concurrent conversions, or 0 to use the number of
+     * available processors.
+     * @return The results, in the same order as the entries.
+     */
+    public List<Result> convert(List<Entry> entries, int threads) throws InterruptedException {
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        threads = Math.max(1, Math.min(threads, entries.size()));
+        int budgetMb = (int) Math.max(1, Runtime.getRuntime().maxMemory() * HEAP_BUDGET / MB);
+        log.info("Converting " + entries.size() + " files on " + threads + " threads with a heap budget of " + budgetMb + " MB");
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        Set<Result> running = ConcurrentHashMap.newKeySet();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "batch-heap-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleAtFixedRate(() -> {
+            long used = memory.getHeapMemoryUsage().getUsed();
+            for (Result r : running) {
+                r.sampleHeap(used);
+            }
+        }, 0, 20, TimeUnit.MILLISECONDS);
+
+        Semaphore heapBudget = new Semaphore(budgetMb);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Result> results = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        try {
+            for (Entry entry : entries) {
+                Result result = new Result(entry);
+                results.add(result);
+                int reservedMb = (int) Math.min(budgetMb, Math.max(1, estimateHeapBytes(entry) / MB));
+                heapBudget.acquire(reservedMb);
+                executor.execute(() -> {
+                    try {
+                        running.add(result);
+                        convert(result, memory);
+                    } finally {
+                        running.remove(result);
+                        heapBudget.release(reservedMb);
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } finally {
+            executor.shutdownNow();
+            sampler.shutdownNow();
+        }
+
+        logSummary(results, System.currentTimeMillis() - start);
+        return results;
+    }
+
+    private void convert(Result result, MemoryMXBean memory) {
+        Entry entry = result.getEntry();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocation = threads instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threads : null;
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = allocation != null ? allocation.getThreadAllocatedBytes(threadId) : -1;
+        long start = System.nanoTime();
+        log.info("Converting " + entry.getInput() + " into " + entry.getOutput());
+        try {
+            fhirClamlService.claml2fhir(entry.getInput(), entry.getOptions(), entry.getOutput());
+        } catch (Throwable t) {
+            log.error("There was a problem transforming " + entry.getInput() + " into FHIR", t);
+            result.error = t;
+        }
+        result.wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        result.sampleHeap(memory.getHeapMemoryUsage().getUsed());
+        if (allocatedBefore >= 0) {
+            result.allocatedBytes = allocation.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        }
+    }
+
+    private long estimateHeapBytes(Entry entry) {
+        return estimateHeapBytes(entry.getInput(), entry.getOptions());
+    }
+
+    /**
+     * @return A rough estimate of the heap needed to convert the input with the options.
+     */
+    static long estimateHeapBytes(File input, ConversionOptions options) {
+        long factor = options.isStreamOutput() ? STREAMING_HEAP_FACTOR : IN_MEMORY_HEAP_FACTOR;
+        long xmlBytes = input.length();
+        try {
+            if (ClamlInput.detect(input) != ClamlInput.Format.XML) {
+                xmlBytes *= COMPRESSION_RATIO;
+            }
+        } catch (IOException e) {
+            // The conversion will report it
+        }
+        return xmlBytes * factor;
+    }
+
+    private void logSummary(List<Result> results, long totalMillis) {
+        int failed = 0;
+        log.info(String.format("%-10s %12s %16s %16s  %s", "Status", "Wall (ms)", "Peak heap (MB)", "Allocated (MB)", "Input"));
+        for (Result r : results) {
+            if (r.getError() != null) {
+                failed++;
+            }
+            log.info(String.format("%-10s %12d %16d %16s  %s",
+                    r.getError() == null ? "OK" : "FAILED",
+                    r.getWallMillis(),
+                    r.getPeakHeapBytes() / MB,
+                    r.getAllocatedBytes() >= 0 ? Long.toString(r.getAllocatedBytes() / MB) : "n/a",
+                    r.getEntry().getInput()));
+        }
+        log.info("Converted " + (results.size() - failed) + " of " + results.size() + " files in " + totalMillis + " ms");
+    }
+
+}
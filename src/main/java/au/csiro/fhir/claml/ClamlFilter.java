@@ -0,0 +1,59 @@
+package au.csiro.fhir.claml;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The Class and Rubric elements a conversion has no use for, so that the {@link ClamlReader} can skip
+ * them without unmarshalling them. The conversion leaves the same elements out anyway, so filtering
+ * them while parsing does not change its output.
+ */
+public class ClamlFilter {
+
+    /**
+     * Keeps every element.
+     */
+    public static final ClamlFilter NONE = new ClamlFilter(Collections.emptySet(), false, Collections.emptySet());
+
+    private final Set<String> excludedClassKinds;
+    private final boolean excludeKindlessClasses;
+    private final Set<String> excludedRubricKinds;
+
+    private ClamlFilter(Set<String> excludedClassKinds, boolean excludeKindlessClasses, Set<String> excludedRubricKinds) {
+        this.excludedClassKinds = excludedClassKinds;
+        this.excludeKindlessClasses = excludeKindlessClasses;
+        this.excludedRubricKinds = excludedRubricKinds;
+    }
+
+    /**
+     * Skips the classes excluded by excludeClassKinds and excludeKindlessClasses, and the rubrics of
+     * the kinds in excludeRubricKinds.
+     */
+    public ClamlFilter(ConversionOptions options) {
+        this(new HashSet<>(options.getExcludeClassKinds()), options.isExcludeKindlessClasses(),
+                new HashSet<>(options.getExcludeRubricKinds()));
+    }
+
+    /**
+     * @return true if nothing is filtered out.
+     */
+    public boolean isEmpty() {
+        return excludedClassKinds.isEmpty() && !excludeKindlessClasses && excludedRubricKinds.isEmpty();
+    }
+
+    /**
+     * @param kind The name of the class's kind, or null if it has none or it does not resolve.
+     */
+    public boolean isExcludedClass(String kind) {
+        return kind == null ? excludeKindlessClasses : excludedClassKinds.contains(kind);
+    }
+
+    /**
+     * @param kind The name of the rubric's kind.
+     */
+    public boolean isExcludedRubric(String kind) {
+        return kind != null && excludedRubricKinds.contains(kind);
+    }
+
+}
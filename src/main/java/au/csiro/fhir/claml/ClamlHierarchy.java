@@ -0,0 +1,364 @@
+package au.csiro.fhir.claml;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The SuperClass/SubClass hierarchy of a classification.
+ * <p>
+ * All edges are collected first, in any order and possibly declared twice (once as a SubClass of
+ * the parent and once as a SuperClass of the child). Each code has the dense int id given by a
+ * {@link CodeDictionary}. {@link #build()} then stores the edges as compact adjacency arrays and
+ * labels every code with the pre-order and post-order interval of a depth-first traversal, so the
+ * results do not depend on the order in which the classes were declared.
+ * <p>
+ * When every code has at most one parent, the descendants of a code are exactly the codes whose
+ * pre-order number falls within its interval and are returned without any traversal. Otherwise
+ * descendants are found by walking the adjacency arrays.
+ */
+public class ClamlHierarchy {
+
+    private static final Logger log = LoggerFactory.getLogger(ClamlHierarchy.class);
+
+    private static final int[] NONE = new int[0];
+
+    private final CodeDictionary codes;
+
+    private int[] edgeParents = new int[16];
+    private int[] edgeChildren = new int[16];
+    private int edgeCount;
+
+    private boolean built;
+
+    // Compressed adjacency: the children of id i are children[childStart[i]..childStart[i+1])
+    private int[] childStart;
+    private int[] children;
+    private int[] parentStart;
+    private int[] parents;
+
+    private int[] pre;
+    private int[] post;
+    private int[] depth;
+    // The id visited at each pre-order position
+    private int[] preOrder;
+    private boolean tree;
+    // The number of codes when the hierarchy was built; codes interned later are not part of it
+    private int size;
+
+    public ClamlHierarchy() {
+        this(new CodeDictionary());
+    }
+
+    /**
+     * @param codes The dictionary that assigns the ids of the codes, which can be shared with other
+     * per-code structures.
+     */
+    public ClamlHierarchy(CodeDictionary codes) {
+        this.codes = codes;
+    }
+
+    public CodeDictionary getCodes() {
+        return codes;
+    }
+
+    /**
+     * Registers a code that might not take part in any edge.
+     */
+    public void addCode(String code) {
+        codes.intern(code);
+    }
+
+    public void addEdge(String parent, String child) {
+        addEdge(codes.intern(parent), codes.intern(child));
+    }
+
+    /**
+     * @param parent The id of the parent code in the dictionary.
+     * @param child The id of the child code in the dictionary.
+     */
+    public void addEdge(int parent, int child) {
+        if (built) {
+            throw new IllegalStateException("Hierarchy has already been built");
+        }
+        if (edgeCount == edgeParents.length) {
+            edgeParents = Arrays.copyOf(edgeParents, edgeCount * 2);
+            edgeChildren = Arrays.copyOf(edgeChildren, edgeCount * 2);
+        }
+        edgeParents[edgeCount] = parent;
+        edgeChildren[edgeCount] = child;
+        edgeCount++;
+    }
+
+    public ClamlHierarchy build() {
+        if (built) {
+            return this;
+        }
+        int n = codes.size();
+        size = n;
+        long[] edges = new long[edgeCount];
+        for (int i = 0; i < edgeCount; i++) {
+            edges[i] = ((long) edgeParents[i] << 32) | edgeChildren[i];
+        }
+        edgeParents = null;
+        edgeChildren = null;
+        Arrays.sort(edges);
+        int unique = 0;
+        for (int i = 0; i < edges.length; i++) {
+            if (i == 0 || edges[i] != edges[i - 1]) {
+                edges[unique++] = edges[i];
+            }
+        }
+
+        childStart = new int[n + 1];
+        parentStart = new int[n + 1];
+        for (int i = 0; i < unique; i++) {
+            childStart[(int) (edges[i] >>> 32) + 1]++;
+            parentStart[(int) edges[i] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            childStart[i + 1] += childStart[i];
+            parentStart[i + 1] += parentStart[i];
+        }
+        children = new int[unique];
+        parents = new int[unique];
+        int[] parentFill = Arrays.copyOf(parentStart, n);
+        for (int i = 0; i < unique; i++) {
+            int p = (int) (edges[i] >>> 32);
+            int c = (int) edges[i];
+            // Edges are sorted by parent, so children are filled in order
+            children[i] = c;
+            parents[parentFill[c]++] = p;
+        }
+
+        tree = true;
+        for (int i = 0; i < n; i++) {
+            if (parentStart[i + 1] - parentStart[i] > 1) {
+                tree = false;
+                break;
+            }
+        }
+        label(n);
+        built = true;
+        return this;
+    }
+
+    /**
+     * Numbers the codes with an iterative depth-first traversal from every root, so deep hierarchies
+     * cannot overflow the stack. In a polyhierarchy each code is numbered under the first parent the
+     * traversal reaches it from.
+     */
+    private void label(int n) {
+        pre = new int[n];
+        post = new int[n];
+        depth = new int[n];
+        preOrder = new int[n];
+        Arrays.fill(pre, -1);
+        int[] stack = new int[Math.max(n, 1)];
+        int[] next = new int[n];
+        int counter = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            for (int root = 0; root < n; root++) {
+                // Roots first; anything left over after that is only reachable through a cycle
+                if (pre[root] != -1 || (pass == 0 && parentStart[root + 1] != parentStart[root])) {
+                    continue;
+                }
+                if (pass == 1) {
+                    log.warn("Cycle in hierarchy involving code " + codes.code(root));
+                }
+                int top = 0;
+                stack[0] = root;
+                pre[root] = counter;
+                preOrder[counter++] = root;
+                next[root] = childStart[root];
+                while (top >= 0) {
+                    int node = stack[top];
+                    if (next[node] < childStart[node + 1]) {
+                        int child = children[next[node]++];
+                        if (pre[child] == -1) {
+                            pre[child] = counter;
+                            preOrder[counter++] = child;
+                            depth[child] = depth[node] + 1;
+                            next[child] = childStart[child];
+                            stack[++top] = child;
+                        }
+                    } else {
+                        post[node] = counter - 1;
+                        top--;
+                    }
+                }
+            }
+        }
+    }
+
+    private void checkBuilt() {
+        if (!built) {
+            throw new IllegalStateException("Hierarchy has not been built");
+        }
+    }
+
+    private int checkedId(String code) {
+        checkBuilt();
+        int id = codes.id(code);
+        return id < size ? id : -1;
+    }
+
+    private int checkedId(int id) {
+        checkBuilt();
+        return id >= 0 && id < size ? id : -1;
+    }
+
+    public boolean contains(String code) {
+        return checkedId(code) != -1;
+    }
+
+    /**
+     * @return true if the code has no subclasses (including codes that are not in the hierarchy).
+     */
+    public boolean isLeaf(String code) {
+        return isLeaf(checkedId(code));
+    }
+
+    public boolean isLeaf(int id) {
+        id = checkedId(id);
+        return id == -1 || childStart[id + 1] == childStart[id];
+    }
+
+    /**
+     * @return true if every code has at most one parent.
+     */
+    public boolean isTree() {
+        checkBuilt();
+        return tree;
+    }
+
+    public List<String> children(String code) {
+        int id = checkedId(code);
+        if (id == -1) {
+            return Collections.emptyList();
+        }
+        return codes(children, childStart[id], childStart[id + 1]);
+    }
+
+    public List<String> parents(String code) {
+        int id = checkedId(code);
+        if (id == -1) {
+            return Collections.emptyList();
+        }
+        return codes(parents, parentStart[id], parentStart[id + 1]);
+    }
+
+    /**
+     * @return All the codes below the given code, excluding itself. When the hierarchy is a tree they
+     * are in depth-first order.
+     */
+    public List<String> descendants(String code) {
+        int id = checkedId(code);
+        if (id == -1) {
+            return Collections.emptyList();
+        }
+        if (tree) {
+            return codes(preOrder, pre[id] + 1, post[id] + 1);
+        }
+        return codes(reachable(id, childStart, children));
+    }
+
+    /**
+     * @return All the codes above the given code, excluding itself, nearest first.
+     */
+    public List<String> ancestors(String code) {
+        return codes(ancestors(checkedId(code)));
+    }
+
+    /**
+     * @return The ids of all the codes above the code with the given id, nearest first.
+     */
+    public int[] ancestors(int id) {
+        id = checkedId(id);
+        if (id == -1) {
+            return NONE;
+        }
+        return reachable(id, parentStart, parents);
+    }
+
+    /**
+     * @return The leaf codes below the given code, or the code itself if it is a leaf.
+     */
+    public List<String> leaves(String code) {
+        if (isLeaf(code)) {
+            return Collections.singletonList(code);
+        }
+        return codes(leaves(checkedId(code)));
+    }
+
+    /**
+     * @return The ids of the leaf codes below the code with the given id, or the id itself if it is
+     * a leaf.
+     */
+    public int[] leaves(int id) {
+        if (isLeaf(id)) {
+            return new int[] { id };
+        }
+        int[] descendants = tree ? Arrays.copyOfRange(preOrder, pre[id] + 1, post[id] + 1)
+                : reachable(id, childStart, children);
+        int count = 0;
+        for (int desc : descendants) {
+            if (childStart[desc + 1] == childStart[desc]) {
+                descendants[count++] = desc;
+            }
+        }
+        return Arrays.copyOf(descendants, count);
+    }
+
+    /**
+     * Breadth-first walk over one of the adjacency arrays.
+     */
+    private int[] reachable(int from, int[] start, int[] adjacent) {
+        BitSet seen = new BitSet(size);
+        seen.set(from);
+        int[] queue = new int[16];
+        int head = 0;
+        int tail = 0;
+        int node = from;
+        while (true) {
+            for (int i = start[node]; i < start[node + 1]; i++) {
+                int other = adjacent[i];
+                if (!seen.get(other)) {
+                    seen.set(other);
+                    if (tail == queue.length) {
+                        queue = Arrays.copyOf(queue, tail * 2);
+                    }
+                    queue[tail++] = other;
+                }
+            }
+            if (head == tail) {
+                return Arrays.copyOf(queue, tail);
+            }
+            node = queue[head++];
+        }
+    }
+
+    private List<String> codes(int[] ids) {
+        return codes(ids, 0, ids.length);
+    }
+
+    private List<String> codes(int[] ids, int from, int to) {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return codes.code(ids[from + index]);
+            }
+
+            @Override
+            public int size() {
+                return to - from;
+            }
+        };
+    }
+
+}
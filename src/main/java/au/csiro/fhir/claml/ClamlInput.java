@@ -0,0 +1,145 @@
+package au.csiro.fhir.claml;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tukaani.xz.XZInputStream;
+
+/**
+ * Opens ClaML input files, which may be plain XML or a release as published: a zip archive holding
+ * the XML, or gzip or xz compressed XML. The format is recognised from the first bytes of the file,
+ * and compressed input is decompressed as a stream straight into the parser.
+ * <p>
+ * The streams returned are bytes, not characters, so the parser decodes them with the encoding the
+ * XML declaration names rather than with the platform default.
+ */
+public class ClamlInput {
+
+    private static final Logger log = LoggerFactory.getLogger(ClamlInput.class);
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final byte[] ZIP_MAGIC = { 'P', 'K', 3, 4 };
+    private static final byte[] GZIP_MAGIC = { (byte) 0x1F, (byte) 0x8B };
+    private static final byte[] XZ_MAGIC = { (byte) 0xFD, '7', 'z', 'X', 'Z', 0 };
+
+    enum Format {
+        XML, ZIP, GZIP, XZ
+    }
+
+    private ClamlInput() {
+    }
+
+    /**
+     * @return The format of the file, going by its first bytes.
+     */
+    static Format detect(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return detect(in);
+        }
+    }
+
+    private static Format detect(InputStream in) throws IOException {
+        byte[] head = new byte[XZ_MAGIC.length];
+        int length = 0;
+        int read;
+        while (length < head.length && (read = in.read(head, length, head.length - length)) > 0) {
+            length += read;
+        }
+        if (startsWith(head, length, ZIP_MAGIC)) {
+            return Format.ZIP;
+        } else if (startsWith(head, length, GZIP_MAGIC)) {
+            return Format.GZIP;
+        } else if (startsWith(head, length, XZ_MAGIC)) {
+            return Format.XZ;
+        }
+        return Format.XML;
+    }
+
+    private static boolean startsWith(byte[] head, int length, byte[] magic) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (head[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Opens a ClaML file for reading.
+     *
+     * @param entryPattern For a zip archive, a regular expression that selects the entry to read
+     * from the entry names. If it is null the archive must hold a single .xml entry.
+     * @return The XML, decompressed if necessary.
+     */
+    public static InputStream open(File file, String entryPattern) throws IOException {
+        Format format = detect(file);
+        switch (format) {
+        case ZIP:
+            return openZipEntry(file, entryPattern);
+        case GZIP:
+            return new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 64 * 1024), BUFFER_SIZE);
+        case XZ:
+            return new BufferedInputStream(new XZInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024)), BUFFER_SIZE);
+        default:
+            return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        }
+    }
+
+    private static InputStream openZipEntry(File file, String entryPattern) throws IOException {
+        ZipFile zip = new ZipFile(file);
+        try {
+            Pattern pattern = entryPattern != null ? Pattern.compile(entryPattern) : null;
+            List<ZipEntry> matches = new ArrayList<>();
+            for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements();) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                if (pattern != null ? pattern.matcher(entry.getName()).find() : entry.getName().toLowerCase().endsWith(".xml")) {
+                    matches.add(entry);
+                }
+            }
+            if (matches.size() != 1) {
+                List<String> names = new ArrayList<>();
+                for (ZipEntry entry : matches) {
+                    names.add(entry.getName());
+                }
+                throw new IOException((matches.isEmpty() ? "No entry" : "More than one entry " + names) + " of " + file
+                        + (pattern != null ? " matches " + entryPattern : " is an XML file") + ": use -inputEntry to select one");
+            }
+            ZipEntry entry = matches.get(0);
+            log.info("Reading " + entry.getName() + " from " + file);
+            return new BufferedInputStream(new FilterInputStream(zip.getInputStream(entry)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        zip.close();
+                    }
+                }
+            }, BUFFER_SIZE);
+        } catch (IOException | RuntimeException e) {
+            zip.close();
+            throw e;
+        }
+    }
+
+}
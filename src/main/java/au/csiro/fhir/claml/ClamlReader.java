@@ -0,0 +1,345 @@
+package au.csiro.fhir.claml;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+
+import javax.xml.bind.DataBindingException;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.ValidationEventHandler;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+import com.sun.xml.bind.IDResolver;
+
+import au.csiro.fhir.claml.model.claml.Authors;
+import au.csiro.fhir.claml.model.claml.ClaML;
+import au.csiro.fhir.claml.model.claml.Class;
+import au.csiro.fhir.claml.model.claml.ClassKinds;
+import au.csiro.fhir.claml.model.claml.Identifier;
+import au.csiro.fhir.claml.model.claml.Meta;
+import au.csiro.fhir.claml.model.claml.Modifier;
+import au.csiro.fhir.claml.model.claml.ModifierClass;
+import au.csiro.fhir.claml.model.claml.RubricKinds;
+import au.csiro.fhir.claml.model.claml.Title;
+import au.csiro.fhir.claml.model.claml.UsageKinds;
+import au.csiro.fhir.claml.model.claml.Variants;
+
+/**
+ * Pull-based ClaML reader. The header sections (Title, ClassKinds, RubricKinds, Modifier,
+ * ModifierClass, ...) are read into a {@link ClaML} object without any classes, and the classes are
+ * then unmarshalled one at a time, so only a single Class element is ever held in memory.
+ * <p>
+ * IDREFs inside a Class (e.g. rubric kinds) are resolved against the ids declared in the header.
+ * Ids declared inside a Class are only visible while that Class is being unmarshalled.
+ * <p>
+ * A {@link ClamlFilter} makes the reader skip the Class and Rubric elements it excludes at the
+ * stream level, so they are never unmarshalled and their labels are never built.
+ */
+public class ClamlReader implements Iterator<Class>, Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ClamlReader.class);
+
+    private final InputStream in;
+    private final XMLStreamReader reader;
+    private final Unmarshaller unmarshaller;
+    private final ClamlIdResolver idResolver = new ClamlIdResolver();
+    private final ClamlFilter filter;
+    private int skippedClasses;
+    private int skippedRubrics;
+
+    private ClaML header;
+
+    public ClamlReader(JAXBContext jaxbContext, InputStream in) throws JAXBException, XMLStreamException {
+        this(jaxbContext, in, ClamlFilter.NONE);
+    }
+
+    public ClamlReader(JAXBContext jaxbContext, InputStream in, ClamlFilter filter) throws JAXBException, XMLStreamException {
+        XMLInputFactory xif = XMLInputFactory.newFactory();
+        xif.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xif.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        this.in = in;
+        this.filter = filter;
+        XMLStreamReader xmlReader = xif.createXMLStreamReader(in);
+        this.reader = filter.isEmpty() ? xmlReader : new FilteringStreamReader(xmlReader);
+        this.unmarshaller = jaxbContext.createUnmarshaller();
+        this.unmarshaller.setProperty(IDResolver.class.getName(), idResolver);
+    }
+
+    /**
+     * Reads everything before the first Class element.
+     *
+     * @return A ClaML object with all the header sections populated and no classes.
+     */
+    public ClaML readHeader() throws JAXBException, XMLStreamException {
+        if (header != null) {
+            return header;
+        }
+        if (!nextStartElement() || !"ClaML".equals(reader.getLocalName())) {
+            throw new JAXBException("Input is not a ClaML document");
+        }
+        header = new ClaML();
+        header.setVersion(reader.getAttributeValue(null, "version"));
+        reader.next();
+
+        idResolver.setRetainBindings(true);
+        while (nextStartElement() && !"Class".equals(reader.getLocalName())) {
+            readHeaderElement(reader.getLocalName());
+        }
+        idResolver.setRetainBindings(false);
+        return header;
+    }
+
+    private void readHeaderElement(String name) throws JAXBException, XMLStreamException {
+        switch (name) {
+        case "Meta":
+            header.getMeta().add(unmarshal(Meta.class));
+            break;
+        case "Identifier":
+            header.getIdentifier().add(unmarshal(Identifier.class));
+            break;
+        case "Title":
+            header.setTitle(unmarshal(Title.class));
+            break;
+        case "Authors":
+            header.setAuthors(unmarshal(Authors.class));
+            break;
+        case "Variants":
+            header.setVariants(unmarshal(Variants.class));
+            break;
+        case "ClassKinds":
+            header.setClassKinds(unmarshal(ClassKinds.class));
+            break;
+        case "UsageKinds":
+            header.setUsageKinds(unmarshal(UsageKinds.class));
+            break;
+        case "RubricKinds":
+            header.setRubricKinds(unmarshal(RubricKinds.class));
+            break;
+        case "Modifier":
+            header.getModifier().add(unmarshal(Modifier.class));
+            break;
+        case "ModifierClass":
+            header.getModifierClass().add(unmarshal(ModifierClass.class));
+            break;
+        default:
+            log.warn("Skipping unexpected element " + name + " in ClaML header");
+            skipElement();
+        }
+    }
+
+    /**
+     * @return The number of classes the filter has skipped so far.
+     */
+    public int getSkippedClasses() {
+        return skippedClasses;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            readHeader();
+            while (nextStartElement()) {
+                if ("Class".equals(reader.getLocalName())) {
+                    return true;
+                }
+                log.warn("Skipping unexpected element " + reader.getLocalName() + " after ClaML classes");
+                skipElement();
+            }
+            return false;
+        } catch (JAXBException | XMLStreamException e) {
+            throw new DataBindingException(e);
+        }
+    }
+
+    /**
+     * @return The next Class in document order.
+     */
+    @Override
+    public Class next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            return unmarshal(Class.class);
+        } catch (JAXBException e) {
+            throw new DataBindingException(e);
+        }
+    }
+
+    private <T> T unmarshal(java.lang.Class<T> type) throws JAXBException {
+        // Leaves the reader on the event following the end element
+        return unmarshaller.unmarshal(reader, type).getValue();
+    }
+
+    /**
+     * Advances to the next start element at or after the current position, without consuming it.
+     *
+     * @return false if the end of the document or of the root element was reached first.
+     */
+    private boolean nextStartElement() throws XMLStreamException {
+        while (true) {
+            int event = reader.getEventType();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            }
+            if (event == XMLStreamConstants.END_DOCUMENT || !reader.hasNext()) {
+                return false;
+            }
+            reader.next();
+        }
+    }
+
+    private void skipElement() throws XMLStreamException {
+        int depth = 0;
+        do {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        } while (depth >= 0);
+        reader.next();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (skippedClasses > 0 || skippedRubrics > 0) {
+            log.info("Skipped " + skippedClasses + " excluded classes and " + skippedRubrics + " excluded rubrics while parsing");
+        }
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Drops the Class and Rubric elements the filter excludes, together with everything inside them,
+     * so neither the navigation in this reader nor JAXB ever sees them.
+     */
+    private class FilteringStreamReader extends StreamReaderDelegate {
+
+        FilteringStreamReader(XMLStreamReader reader) {
+            super(reader);
+        }
+
+        @Override
+        public int next() throws XMLStreamException {
+            int event = super.next();
+            while (event == XMLStreamConstants.START_ELEMENT && isExcluded()) {
+                int depth = 0;
+                do {
+                    event = super.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        depth++;
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        depth--;
+                    }
+                } while (depth >= 0);
+                event = super.next();
+            }
+            return event;
+        }
+
+        @Override
+        public int nextTag() throws XMLStreamException {
+            int event = next();
+            while ((event == XMLStreamConstants.CHARACTERS && isWhiteSpace())
+                    || (event == XMLStreamConstants.CDATA && isWhiteSpace())
+                    || event == XMLStreamConstants.SPACE
+                    || event == XMLStreamConstants.PROCESSING_INSTRUCTION
+                    || event == XMLStreamConstants.COMMENT) {
+                event = next();
+            }
+            if (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT) {
+                throw new XMLStreamException("Expected a start or end tag", getLocation());
+            }
+            return event;
+        }
+
+        private boolean isExcluded() {
+            switch (getLocalName()) {
+            case "Class":
+                // A kind that does not resolve leaves the class without one, as when it is unmarshalled
+                String kind = getAttributeValue(null, "kind");
+                if (filter.isExcludedClass(kind != null && idResolver.isRetained(kind) ? kind : null)) {
+                    skippedClasses++;
+                    return true;
+                }
+                return false;
+            case "Rubric":
+                if (filter.isExcludedRubric(getAttributeValue(null, "kind"))) {
+                    skippedRubrics++;
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Resolves IDREFs across the separate unmarshal calls. Ids bound while reading the header are
+     * kept for the lifetime of the reader; ids bound inside a Class are discarded with it.
+     */
+    private static class ClamlIdResolver extends IDResolver {
+
+        private final Map<String, Object> retained = new HashMap<>();
+        private final Map<String, Object> local = new HashMap<>();
+        private boolean retainBindings;
+
+        void setRetainBindings(boolean retainBindings) {
+            this.retainBindings = retainBindings;
+        }
+
+        boolean isRetained(String id) {
+            return retained.containsKey(id);
+        }
+
+        @Override
+        public void startDocument(ValidationEventHandler eventHandler) throws SAXException {
+            local.clear();
+        }
+
+        @Override
+        public void bind(String id, Object obj) throws SAXException {
+            if (retainBindings) {
+                retained.put(id, obj);
+            } else {
+                local.put(id, obj);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public Callable<?> resolve(String id, java.lang.Class targetType) throws SAXException {
+            return () -> {
+                Object obj = local.get(id);
+                if (obj == null) {
+                    obj = retained.get(id);
+                }
+                return obj != null && targetType.isInstance(obj) ? obj : null;
+            };
+        }
+    }
+
+}
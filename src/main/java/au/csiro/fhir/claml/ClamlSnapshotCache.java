@@ -0,0 +1,162 @@
+package au.csiro.fhir.claml;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+import au.csiro.fhir.claml.model.claml.Class;
+
+/**
+ * A directory of parsed ClaML snapshots, so that converting the same release again, e.g. with
+ * different options, does not have to unmarshal the XML again.
+ * <p>
+ * Snapshots are named after the SHA-256 of the input file and the snapshot format version, so a
+ * changed input or a new format never picks up a stale snapshot. A snapshot is recorded while the
+ * XML is being converted to an {@link AtomicOutputFile}, so it only becomes visible once every class
+ * has been written to it.
+ */
+public class ClamlSnapshotCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ClamlSnapshotCache.class);
+
+    private static final String SUFFIX = ".snapshot";
+
+    private final File directory;
+
+    public ClamlSnapshotCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param entryPattern The pattern that selects the entry of a zip archive, if any. It is part of
+     * the key because it decides which document is read.
+     * @return The snapshot file for the input. It only exists if the input has been converted before.
+     */
+    public File getSnapshotFile(File input, String entryPattern) throws IOException {
+        try (InputStream in = new FileInputStream(input)) {
+            return new File(directory, key(in, entryPattern) + SUFFIX);
+        }
+    }
+
+    /**
+     * @return The hex encoded SHA-256 of the snapshot format version and entry pattern followed by
+     * the input.
+     */
+    static String key(InputStream in, String entryPattern) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(("claml-snapshot-" + ClamlSnapshotWriter.FORMAT_VERSION + "\n").getBytes(StandardCharsets.UTF_8));
+        if (entryPattern != null) {
+            digest.update((entryPattern + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            digest.update(buffer, 0, read);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Starts recording a snapshot of a document that is being read.
+     *
+     * @param snapshot The file returned by {@link #getSnapshotFile(File, String)} for the document.
+     */
+    public Recording record(File snapshot, ClaML header, Iterator<Class> classes) throws IOException {
+        directory.mkdirs();
+        return new Recording(snapshot, header, classes);
+    }
+
+    /**
+     * Passes the classes of a document through, writing each one to the snapshot as it is read. If
+     * the snapshot cannot be written the classes are still passed through and the snapshot is
+     * abandoned.
+     */
+    public class Recording implements Iterator<Class>, Closeable {
+        private final AtomicOutputFile file;
+        private final Iterator<Class> classes;
+        private ClamlSnapshotWriter writer;
+
+        private Recording(File snapshot, ClaML header, Iterator<Class> classes) throws IOException {
+            this.file = new AtomicOutputFile(snapshot);
+            this.classes = classes;
+            this.writer = new ClamlSnapshotWriter(file.getOutputStream());
+            try {
+                writer.writeHeader(header);
+            } catch (IOException e) {
+                abandon(e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return classes.hasNext();
+        }
+
+        @Override
+        public Class next() {
+            Class clazz = classes.next();
+            if (writer != null) {
+                try {
+                    writer.writeClass(clazz);
+                } catch (IOException e) {
+                    abandon(e);
+                }
+            }
+            return clazz;
+        }
+
+        /**
+         * Makes the snapshot visible, provided all the classes have been read.
+         */
+        public void commit() throws IOException {
+            if (writer == null) {
+                return;
+            }
+            if (classes.hasNext()) {
+                throw new IllegalStateException("Not all classes have been read");
+            }
+            writer.finish();
+            writer = null;
+            file.commit();
+            log.info("Saved parsed ClaML snapshot " + file.getTarget());
+        }
+
+        private void abandon(IOException e) {
+            log.warn("Could not write ClaML snapshot " + file.getTarget() + ": " + e.getLocalizedMessage());
+            writer = null;
+            try {
+                file.close();
+            } catch (IOException ignored) {
+                // Already failing
+            }
+        }
+
+        /**
+         * Discards the snapshot unless it has been committed.
+         */
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+}
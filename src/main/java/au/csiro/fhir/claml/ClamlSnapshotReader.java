@@ -0,0 +1,619 @@
+package au.csiro.fhir.claml;
+
+import static au.csiro.fhir.claml.ClamlSnapshotWriter.CLASS;
+import static au.csiro.fhir.claml.ClamlSnapshotWriter.END;
+import static au.csiro.fhir.claml.ClamlSnapshotWriter.FORMAT_VERSION;
+import static au.csiro.fhir.claml.ClamlSnapshotWriter.FRAGMENT;
+import static au.csiro.fhir.claml.ClamlSnapshotWriter.INCLUDE;
+import static au.csiro.fhir.claml.ClamlSnapshotWriter.INCLUDE_DESCENDANTS;
+import static au.csiro.fhir.claml.ClamlSnapshotWriter.LIST;
+import static au.csiro.fhir.claml.ClamlSnapshotWriter.MAGIC;
+import static au.csiro.fhir.claml.ClamlSnapshotWriter.PARA;
+import static au.csiro.fhir.claml.ClamlSnapshotWriter.REFERENCE;
+import static au.csiro.fhir.claml.ClamlSnapshotWriter.STRING_INLINE;
+import static au.csiro.fhir.claml.ClamlSnapshotWriter.STRING_INTERNED;
+import static au.csiro.fhir.claml.ClamlSnapshotWriter.STRING_NULL;
+import static au.csiro.fhir.claml.ClamlSnapshotWriter.STRING_TABLE;
+import static au.csiro.fhir.claml.ClamlSnapshotWriter.TABLE;
+import static au.csiro.fhir.claml.ClamlSnapshotWriter.TERM;
+import static au.csiro.fhir.claml.ClamlSnapshotWriter.TEXT;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+import au.csiro.fhir.claml.model.claml.Author;
+import au.csiro.fhir.claml.model.claml.Authors;
+import au.csiro.fhir.claml.model.claml.Caption;
+import au.csiro.fhir.claml.model.claml.Cell;
+import au.csiro.fhir.claml.model.claml.ClaML;
+import au.csiro.fhir.claml.model.claml.Class;
+import au.csiro.fhir.claml.model.claml.ClassKind;
+import au.csiro.fhir.claml.model.claml.ClassKinds;
+import au.csiro.fhir.claml.model.claml.Display;
+import au.csiro.fhir.claml.model.claml.ExcludeModifier;
+import au.csiro.fhir.claml.model.claml.Fragment;
+import au.csiro.fhir.claml.model.claml.History;
+import au.csiro.fhir.claml.model.claml.Identifier;
+import au.csiro.fhir.claml.model.claml.Include;
+import au.csiro.fhir.claml.model.claml.IncludeDescendants;
+import au.csiro.fhir.claml.model.claml.Label;
+import au.csiro.fhir.claml.model.claml.ListItem;
+import au.csiro.fhir.claml.model.claml.Meta;
+import au.csiro.fhir.claml.model.claml.ModifiedBy;
+import au.csiro.fhir.claml.model.claml.Modifier;
+import au.csiro.fhir.claml.model.claml.ModifierClass;
+import au.csiro.fhir.claml.model.claml.Para;
+import au.csiro.fhir.claml.model.claml.Reference;
+import au.csiro.fhir.claml.model.claml.Row;
+import au.csiro.fhir.claml.model.claml.Rubric;
+import au.csiro.fhir.claml.model.claml.RubricKind;
+import au.csiro.fhir.claml.model.claml.RubricKinds;
+import au.csiro.fhir.claml.model.claml.SubClass;
+import au.csiro.fhir.claml.model.claml.SuperClass;
+import au.csiro.fhir.claml.model.claml.TBody;
+import au.csiro.fhir.claml.model.claml.TFoot;
+import au.csiro.fhir.claml.model.claml.THead;
+import au.csiro.fhir.claml.model.claml.Table;
+import au.csiro.fhir.claml.model.claml.Term;
+import au.csiro.fhir.claml.model.claml.Title;
+import au.csiro.fhir.claml.model.claml.UsageKind;
+import au.csiro.fhir.claml.model.claml.UsageKinds;
+import au.csiro.fhir.claml.model.claml.ValidModifierClass;
+import au.csiro.fhir.claml.model.claml.Variant;
+import au.csiro.fhir.claml.model.claml.Variants;
+
+/**
+ * Reads a snapshot written by {@link ClamlSnapshotWriter}. Like the {@link ClamlReader}, the header
+ * is read into a {@link ClaML} object without any classes and the classes are then read one at a
+ * time.
+ * <p>
+ * IDREFs are resolved the same way as when the XML is read: ids declared in the header are visible
+ * everywhere and ids declared inside a Class only within it. A reference to an id that is declared
+ * later in the same Class or header is resolved once all of it has been read.
+ */
+public class ClamlSnapshotReader implements Iterator<Class>, Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Object> retained = new HashMap<>();
+    private final Map<String, Object> local = new HashMap<>();
+    private final List<String> pendingIds = new ArrayList<>();
+    private final List<Consumer<Object>> pendingTargets = new ArrayList<>();
+    private boolean retainBindings;
+
+    private ClaML header;
+    private Class next;
+    private boolean finished;
+
+    public ClamlSnapshotReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the header of the snapshot.
+     *
+     * @return A ClaML object with all the header sections populated and no classes.
+     * @throws IOException If the input is not a snapshot of the current format version.
+     */
+    public ClaML readHeader() throws IOException {
+        if (header != null) {
+            return header;
+        }
+        if (readInt() != MAGIC) {
+            throw new IOException("Input is not a ClaML snapshot");
+        }
+        int version = readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("ClaML snapshot has format version " + version + " but " + FORMAT_VERSION + " is required");
+        }
+        retainBindings = true;
+        ClaML claml = new ClaML();
+        claml.setVersion(readString());
+        readMetas(claml.getMeta());
+        for (int i = readVarInt(); i > 0; i--) {
+            Identifier identifier = new Identifier();
+            identifier.setAuthority(readString());
+            identifier.setUid(readString());
+            claml.getIdentifier().add(identifier);
+        }
+        if (readBoolean()) {
+            Title title = new Title();
+            title.setName(readString());
+            title.setVersion(readString());
+            title.setDate(readString());
+            title.setContent(readString());
+            claml.setTitle(title);
+        }
+        if (readBoolean()) {
+            Authors authors = new Authors();
+            for (int i = readVarInt(); i > 0; i--) {
+                Author author = new Author();
+                author.setName(bind(readString(), author));
+                author.setContent(readString());
+                authors.getAuthor().add(author);
+            }
+            claml.setAuthors(authors);
+        }
+        if (readBoolean()) {
+            Variants variants = new Variants();
+            for (int i = readVarInt(); i > 0; i--) {
+                Variant variant = new Variant();
+                variant.setName(bind(readString(), variant));
+                variant.setContent(readString());
+                variants.getVariant().add(variant);
+            }
+            claml.setVariants(variants);
+        }
+        if (readBoolean()) {
+            ClassKinds kinds = new ClassKinds();
+            for (int i = readVarInt(); i > 0; i--) {
+                ClassKind kind = new ClassKind();
+                kind.setName(bind(readString(), kind));
+                readDisplays(kind.getDisplay());
+                kinds.getClassKind().add(kind);
+            }
+            claml.setClassKinds(kinds);
+        }
+        if (readBoolean()) {
+            UsageKinds kinds = new UsageKinds();
+            for (int i = readVarInt(); i > 0; i--) {
+                UsageKind kind = new UsageKind();
+                kind.setName(bind(readString(), kind));
+                kind.setMark(readString());
+                kinds.getUsageKind().add(kind);
+            }
+            claml.setUsageKinds(kinds);
+        }
+        if (readBoolean()) {
+            RubricKinds kinds = new RubricKinds();
+            for (int i = readVarInt(); i > 0; i--) {
+                RubricKind kind = new RubricKind();
+                kind.setName(bind(readString(), kind));
+                kind.setInherited(readBoolean());
+                readDisplays(kind.getDisplay());
+                kinds.getRubricKind().add(kind);
+            }
+            claml.setRubricKinds(kinds);
+        }
+        for (int i = readVarInt(); i > 0; i--) {
+            Modifier modifier = new Modifier();
+            modifier.setCode(readString());
+            readRefs(modifier.getVariants());
+            readMetas(modifier.getMeta());
+            readSubClasses(modifier.getSubClass());
+            readRubrics(modifier.getRubric());
+            readHistories(modifier.getHistory());
+            claml.getModifier().add(modifier);
+        }
+        for (int i = readVarInt(); i > 0; i--) {
+            ModifierClass modClass = new ModifierClass();
+            modClass.setModifier(readString());
+            modClass.setCode(readString());
+            readRef(modClass::setUsage);
+            readRefs(modClass.getVariants());
+            readMetas(modClass.getMeta());
+            if (readBoolean()) {
+                SuperClass superClass = new SuperClass();
+                superClass.setCode(readString());
+                readRefs(superClass.getVariants());
+                modClass.setSuperClass(superClass);
+            }
+            readSubClasses(modClass.getSubClass());
+            readRubrics(modClass.getRubric());
+            readHistories(modClass.getHistory());
+            claml.getModifierClass().add(modClass);
+        }
+        resolvePending();
+        retainBindings = false;
+        header = claml;
+        return header;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
+        try {
+            readHeader();
+            int tag = readVarInt();
+            if (tag == END) {
+                finished = true;
+                return false;
+            }
+            if (tag != CLASS) {
+                throw new IOException("Unexpected record " + tag + " in ClaML snapshot");
+            }
+            local.clear();
+            next = readClass();
+            resolvePending();
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return The next Class in the order they were written.
+     */
+    @Override
+    public Class next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Class result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private Class readClass() throws IOException {
+        Class clazz = new Class();
+        clazz.setCode(readString());
+        readRef(clazz::setKind);
+        readRef(clazz::setUsage);
+        readRefs(clazz.getVariants());
+        readMetas(clazz.getMeta());
+        for (int i = readVarInt(); i > 0; i--) {
+            SuperClass superClass = new SuperClass();
+            superClass.setCode(readString());
+            readRefs(superClass.getVariants());
+            clazz.getSuperClass().add(superClass);
+        }
+        readSubClasses(clazz.getSubClass());
+        for (int i = readVarInt(); i > 0; i--) {
+            ModifiedBy modBy = new ModifiedBy();
+            modBy.setCode(readString());
+            modBy.setAll(readBoolean());
+            modBy.setPosition(readString());
+            readRefs(modBy.getVariants());
+            readMetas(modBy.getMeta());
+            for (int j = readVarInt(); j > 0; j--) {
+                ValidModifierClass vmc = new ValidModifierClass();
+                vmc.setCode(readString());
+                readRefs(vmc.getVariants());
+                modBy.getValidModifierClass().add(vmc);
+            }
+            clazz.getModifiedBy().add(modBy);
+        }
+        for (int i = readVarInt(); i > 0; i--) {
+            ExcludeModifier excludeModifier = new ExcludeModifier();
+            excludeModifier.setCode(readString());
+            readRefs(excludeModifier.getVariants());
+            clazz.getExcludeModifier().add(excludeModifier);
+        }
+        readRubrics(clazz.getRubric());
+        readHistories(clazz.getHistory());
+        return clazz;
+    }
+
+    private void readMetas(List<Meta> metas) throws IOException {
+        for (int i = readVarInt(); i > 0; i--) {
+            Meta meta = new Meta();
+            meta.setName(readString());
+            meta.setValue(readString());
+            readRefs(meta.getVariants());
+            metas.add(meta);
+        }
+    }
+
+    private void readDisplays(List<Display> displays) throws IOException {
+        for (int i = readVarInt(); i > 0; i--) {
+            Display display = new Display();
+            display.setLang(readString());
+            display.setContent(readString());
+            readRef(display::setVariants);
+            displays.add(display);
+        }
+    }
+
+    private void readSubClasses(List<SubClass> subClasses) throws IOException {
+        for (int i = readVarInt(); i > 0; i--) {
+            SubClass subClass = new SubClass();
+            subClass.setCode(readString());
+            readRefs(subClass.getVariants());
+            subClasses.add(subClass);
+        }
+    }
+
+    private void readHistories(List<History> histories) throws IOException {
+        for (int i = readVarInt(); i > 0; i--) {
+            History history = new History();
+            readRef(history::setAuthor);
+            history.setDate(readString());
+            history.setContent(readString());
+            histories.add(history);
+        }
+    }
+
+    private void readRubrics(List<Rubric> rubrics) throws IOException {
+        for (int i = readVarInt(); i > 0; i--) {
+            Rubric rubric = new Rubric();
+            String id = readString();
+            rubric.setId(id != null ? bind(id, rubric) : null);
+            readRef(rubric::setKind);
+            readRef(rubric::setUsage);
+            for (int j = readVarInt(); j > 0; j--) {
+                Label label = new Label();
+                label.setLang(readString());
+                label.setSpace(readString());
+                readRefs(label.getVariants());
+                readContent(label.getContent());
+                rubric.getLabel().add(label);
+            }
+            readHistories(rubric.getHistory());
+            rubrics.add(rubric);
+        }
+    }
+
+    private void readContent(List<Object> content) throws IOException {
+        for (int i = readVarInt(); i > 0; i--) {
+            int tag = readVarInt();
+            switch (tag) {
+            case TEXT:
+                content.add(readString());
+                break;
+            case REFERENCE:
+                Reference ref = new Reference();
+                ref.setContent(readString());
+                ref.setClazz(readString());
+                ref.setAuthority(readString());
+                ref.setUid(readString());
+                ref.setCode(readString());
+                readRef(ref::setUsage);
+                readRefs(ref.getVariants());
+                content.add(ref);
+                break;
+            case TERM:
+                Term term = new Term();
+                term.setContent(readString());
+                term.setClazz(readString());
+                content.add(term);
+                break;
+            case PARA:
+                Para para = new Para();
+                para.setClazz(readString());
+                readContent(para.getContent());
+                content.add(para);
+                break;
+            case INCLUDE:
+                Include include = new Include();
+                include.setClazz(readString());
+                readRef(include::setRubric);
+                content.add(include);
+                break;
+            case INCLUDE_DESCENDANTS:
+                IncludeDescendants includeDescendants = new IncludeDescendants();
+                includeDescendants.setCode(readString());
+                readRef(includeDescendants::setKind);
+                content.add(includeDescendants);
+                break;
+            case FRAGMENT:
+                Fragment fragment = new Fragment();
+                fragment.setClazz(readString());
+                fragment.setType(readString());
+                readRef(fragment::setUsage);
+                readContent(fragment.getContent());
+                content.add(fragment);
+                break;
+            case LIST:
+                au.csiro.fhir.claml.model.claml.List list = new au.csiro.fhir.claml.model.claml.List();
+                list.setClazz(readString());
+                for (int j = readVarInt(); j > 0; j--) {
+                    ListItem listItem = new ListItem();
+                    listItem.setClazz(readString());
+                    readContent(listItem.getContent());
+                    list.getListItem().add(listItem);
+                }
+                content.add(list);
+                break;
+            case TABLE:
+                content.add(readTable());
+                break;
+            default:
+                throw new IOException("Unexpected content " + tag + " in ClaML snapshot");
+            }
+        }
+    }
+
+    private Table readTable() throws IOException {
+        Table table = new Table();
+        table.setClazz(readString());
+        if (readBoolean()) {
+            Caption caption = new Caption();
+            caption.setClazz(readString());
+            readContent(caption.getContent());
+            table.setCaption(caption);
+        }
+        if (readBoolean()) {
+            THead head = new THead();
+            head.setClazz(readString());
+            readRows(head.getRow());
+            table.setTHead(head);
+        }
+        if (readBoolean()) {
+            TBody body = new TBody();
+            body.setClazz(readString());
+            readRows(body.getRow());
+            table.setTBody(body);
+        }
+        if (readBoolean()) {
+            TFoot foot = new TFoot();
+            foot.setClazz(readString());
+            readRows(foot.getRow());
+            table.setTFoot(foot);
+        }
+        return table;
+    }
+
+    private void readRows(List<Row> rows) throws IOException {
+        for (int i = readVarInt(); i > 0; i--) {
+            Row row = new Row();
+            row.setClazz(readString());
+            for (int j = readVarInt(); j > 0; j--) {
+                Cell cell = new Cell();
+                cell.setClazz(readString());
+                cell.setRowspan(readString());
+                cell.setColspan(readString());
+                readContent(cell.getContent());
+                row.getCell().add(cell);
+            }
+            rows.add(row);
+        }
+    }
+
+    private String bind(String id, Object target) {
+        if (id != null) {
+            (retainBindings ? retained : local).put(id, target);
+        }
+        return id;
+    }
+
+    private Object lookup(String id) {
+        Object target = local.get(id);
+        return target != null ? target : retained.get(id);
+    }
+
+    private void readRef(Consumer<Object> setter) throws IOException {
+        String id = readString();
+        if (id == null) {
+            return;
+        }
+        Object target = lookup(id);
+        if (target != null) {
+            setter.accept(target);
+        } else {
+            pendingIds.add(id);
+            pendingTargets.add(setter);
+        }
+    }
+
+    private void readRefs(List<Object> targets) throws IOException {
+        for (int i = readVarInt(); i > 0; i--) {
+            readRef(targets::add);
+        }
+    }
+
+    /**
+     * Resolves the references to ids that had not been read yet when the references were. Those that
+     * still cannot be resolved are left unset, as JAXB does.
+     */
+    private void resolvePending() {
+        for (int i = 0; i < pendingIds.size(); i++) {
+            Object target = lookup(pendingIds.get(i));
+            if (target != null) {
+                pendingTargets.get(i).accept(target);
+            }
+        }
+        pendingIds.clear();
+        pendingTargets.clear();
+    }
+
+    private String readString() throws IOException {
+        int tag = readVarInt();
+        if (tag == STRING_NULL) {
+            return null;
+        }
+        if (tag >= STRING_TABLE) {
+            int index = tag - STRING_TABLE;
+            if (index >= strings.size()) {
+                throw new IOException("Unknown string " + index + " in ClaML snapshot");
+            }
+            return strings.get(index);
+        }
+        int length = readVarInt();
+        require(length);
+        String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        if (tag == STRING_INTERNED) {
+            strings.add(value);
+        } else if (tag != STRING_INLINE) {
+            throw new IOException("Unexpected string " + tag + " in ClaML snapshot");
+        }
+        return value;
+    }
+
+    private boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    private int readInt() throws IOException {
+        require(4);
+        int value = ((buffer[position] & 0xFF) << 24) | ((buffer[position + 1] & 0xFF) << 16)
+                | ((buffer[position + 2] & 0xFF) << 8) | (buffer[position + 3] & 0xFF);
+        position += 4;
+        return value;
+    }
+
+    private int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed int in ClaML snapshot");
+    }
+
+    private int readByte() throws IOException {
+        if (position == limit) {
+            require(1);
+        }
+        return buffer[position++];
+    }
+
+    /**
+     * Makes sure that the next count bytes are in the buffer, growing it if they do not fit. The
+     * buffer grows as the bytes arrive rather than to the count up front, so a corrupt length fails
+     * at the end of the snapshot instead of allocating whatever it says.
+     */
+    private void require(int count) throws IOException {
+        if (count < 0) {
+            throw new IOException("Malformed length " + count + " in ClaML snapshot");
+        }
+        if (limit - position >= count) {
+            return;
+        }
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+        while (limit < count) {
+            if (limit == buffer.length) {
+                buffer = Arrays.copyOf(buffer, (int) Math.min(count, 2L * buffer.length));
+            }
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of ClaML snapshot");
+            }
+            limit += read;
+        }
+    }
+
+}
@@ -0,0 +1,443 @@
+package au.csiro.fhir.claml;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import au.csiro.fhir.claml.model.claml.Author;
+import au.csiro.fhir.claml.model.claml.Caption;
+import au.csiro.fhir.claml.model.claml.Cell;
+import au.csiro.fhir.claml.model.claml.ClaML;
+import au.csiro.fhir.claml.model.claml.Class;
+import au.csiro.fhir.claml.model.claml.ClassKind;
+import au.csiro.fhir.claml.model.claml.Display;
+import au.csiro.fhir.claml.model.claml.ExcludeModifier;
+import au.csiro.fhir.claml.model.claml.Fragment;
+import au.csiro.fhir.claml.model.claml.History;
+import au.csiro.fhir.claml.model.claml.Identifier;
+import au.csiro.fhir.claml.model.claml.Include;
+import au.csiro.fhir.claml.model.claml.IncludeDescendants;
+import au.csiro.fhir.claml.model.claml.Label;
+import au.csiro.fhir.claml.model.claml.ListItem;
+import au.csiro.fhir.claml.model.claml.Meta;
+import au.csiro.fhir.claml.model.claml.ModifiedBy;
+import au.csiro.fhir.claml.model.claml.Modifier;
+import au.csiro.fhir.claml.model.claml.ModifierClass;
+import au.csiro.fhir.claml.model.claml.Para;
+import au.csiro.fhir.claml.model.claml.Reference;
+import au.csiro.fhir.claml.model.claml.Row;
+import au.csiro.fhir.claml.model.claml.Rubric;
+import au.csiro.fhir.claml.model.claml.RubricKind;
+import au.csiro.fhir.claml.model.claml.SubClass;
+import au.csiro.fhir.claml.model.claml.SuperClass;
+import au.csiro.fhir.claml.model.claml.Table;
+import au.csiro.fhir.claml.model.claml.Term;
+import au.csiro.fhir.claml.model.claml.UsageKind;
+import au.csiro.fhir.claml.model.claml.ValidModifierClass;
+import au.csiro.fhir.claml.model.claml.Variant;
+
+/**
+ * Writes a parsed ClaML model in a compact binary form that {@link ClamlSnapshotReader} loads much
+ * faster than the XML can be unmarshalled.
+ * <p>
+ * The header is written first and the classes are then appended one at a time, so a snapshot can be
+ * recorded while the XML is being converted. Every field of the model is written in a fixed order,
+ * with sizes and string table references as variable length ints. Short strings such as codes and
+ * kind names are written once and then referred to by their index in the string table. IDREFs are
+ * written as the id of the object they point to and resolved again when the snapshot is read.
+ */
+public class ClamlSnapshotWriter implements Closeable {
+
+    static final int MAGIC = 0x434C4D53;
+
+    /**
+     * Changes whenever the layout of a snapshot or the model it holds changes.
+     */
+    static final int FORMAT_VERSION = 1;
+
+    static final int END = 0;
+    static final int CLASS = 1;
+
+    static final int STRING_NULL = 0;
+    static final int STRING_INLINE = 1;
+    static final int STRING_INTERNED = 2;
+    static final int STRING_TABLE = 3;
+
+    /**
+     * Strings up to this length are added to the string table.
+     */
+    static final int MAX_INTERNED_LENGTH = 64;
+
+    static final int TEXT = 0;
+    static final int REFERENCE = 1;
+    static final int TERM = 2;
+    static final int PARA = 3;
+    static final int INCLUDE = 4;
+    static final int INCLUDE_DESCENDANTS = 5;
+    static final int FRAGMENT = 6;
+    static final int LIST = 7;
+    static final int TABLE = 8;
+
+    private final DataOutputStream out;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private boolean headerWritten;
+
+    public ClamlSnapshotWriter(OutputStream out) {
+        this.out = new DataOutputStream(out);
+    }
+
+    public void writeHeader(ClaML claml) throws IOException {
+        if (headerWritten) {
+            throw new IllegalStateException("The header has already been written");
+        }
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        writeString(claml.getVersion());
+        writeMetas(claml.getMeta());
+        writeSize(claml.getIdentifier());
+        for (Identifier identifier : claml.getIdentifier()) {
+            writeString(identifier.getAuthority());
+            writeString(identifier.getUid());
+        }
+        out.writeBoolean(claml.getTitle() != null);
+        if (claml.getTitle() != null) {
+            writeString(claml.getTitle().getName());
+            writeString(claml.getTitle().getVersion());
+            writeString(claml.getTitle().getDate());
+            writeString(claml.getTitle().getContent());
+        }
+        out.writeBoolean(claml.getAuthors() != null);
+        if (claml.getAuthors() != null) {
+            writeSize(claml.getAuthors().getAuthor());
+            for (Author author : claml.getAuthors().getAuthor()) {
+                writeString(author.getName());
+                writeString(author.getContent());
+            }
+        }
+        out.writeBoolean(claml.getVariants() != null);
+        if (claml.getVariants() != null) {
+            writeSize(claml.getVariants().getVariant());
+            for (Variant variant : claml.getVariants().getVariant()) {
+                writeString(variant.getName());
+                writeString(variant.getContent());
+            }
+        }
+        out.writeBoolean(claml.getClassKinds() != null);
+        if (claml.getClassKinds() != null) {
+            writeSize(claml.getClassKinds().getClassKind());
+            for (ClassKind kind : claml.getClassKinds().getClassKind()) {
+                writeString(kind.getName());
+                writeDisplays(kind.getDisplay());
+            }
+        }
+        out.writeBoolean(claml.getUsageKinds() != null);
+        if (claml.getUsageKinds() != null) {
+            writeSize(claml.getUsageKinds().getUsageKind());
+            for (UsageKind kind : claml.getUsageKinds().getUsageKind()) {
+                writeString(kind.getName());
+                writeString(kind.getMark());
+            }
+        }
+        out.writeBoolean(claml.getRubricKinds() != null);
+        if (claml.getRubricKinds() != null) {
+            writeSize(claml.getRubricKinds().getRubricKind());
+            for (RubricKind kind : claml.getRubricKinds().getRubricKind()) {
+                writeString(kind.getName());
+                out.writeBoolean(kind.isInherited());
+                writeDisplays(kind.getDisplay());
+            }
+        }
+        writeSize(claml.getModifier());
+        for (Modifier modifier : claml.getModifier()) {
+            writeString(modifier.getCode());
+            writeRefs(modifier.getVariants());
+            writeMetas(modifier.getMeta());
+            writeSubClasses(modifier.getSubClass());
+            writeRubrics(modifier.getRubric());
+            writeHistories(modifier.getHistory());
+        }
+        writeSize(claml.getModifierClass());
+        for (ModifierClass modClass : claml.getModifierClass()) {
+            writeString(modClass.getModifier());
+            writeString(modClass.getCode());
+            writeRef(modClass.getUsage());
+            writeRefs(modClass.getVariants());
+            writeMetas(modClass.getMeta());
+            out.writeBoolean(modClass.getSuperClass() != null);
+            if (modClass.getSuperClass() != null) {
+                writeString(modClass.getSuperClass().getCode());
+                writeRefs(modClass.getSuperClass().getVariants());
+            }
+            writeSubClasses(modClass.getSubClass());
+            writeRubrics(modClass.getRubric());
+            writeHistories(modClass.getHistory());
+        }
+        headerWritten = true;
+    }
+
+    public void writeClass(Class clazz) throws IOException {
+        if (!headerWritten) {
+            throw new IllegalStateException("The header must be written before the classes");
+        }
+        writeVarInt(CLASS);
+        writeString(clazz.getCode());
+        writeRef(clazz.getKind());
+        writeRef(clazz.getUsage());
+        writeRefs(clazz.getVariants());
+        writeMetas(clazz.getMeta());
+        writeSize(clazz.getSuperClass());
+        for (SuperClass superClass : clazz.getSuperClass()) {
+            writeString(superClass.getCode());
+            writeRefs(superClass.getVariants());
+        }
+        writeSubClasses(clazz.getSubClass());
+        writeSize(clazz.getModifiedBy());
+        for (ModifiedBy modBy : clazz.getModifiedBy()) {
+            writeString(modBy.getCode());
+            out.writeBoolean(modBy.isAll());
+            writeString(modBy.getPosition());
+            writeRefs(modBy.getVariants());
+            writeMetas(modBy.getMeta());
+            writeSize(modBy.getValidModifierClass());
+            for (ValidModifierClass vmc : modBy.getValidModifierClass()) {
+                writeString(vmc.getCode());
+                writeRefs(vmc.getVariants());
+            }
+        }
+        writeSize(clazz.getExcludeModifier());
+        for (ExcludeModifier excludeModifier : clazz.getExcludeModifier()) {
+            writeString(excludeModifier.getCode());
+            writeRefs(excludeModifier.getVariants());
+        }
+        writeRubrics(clazz.getRubric());
+        writeHistories(clazz.getHistory());
+    }
+
+    /**
+     * Marks the end of the classes and flushes the snapshot. A snapshot without the end marker is
+     * rejected when it is read.
+     */
+    public void finish() throws IOException {
+        writeVarInt(END);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void writeMetas(List<Meta> metas) throws IOException {
+        writeSize(metas);
+        for (Meta meta : metas) {
+            writeString(meta.getName());
+            writeString(meta.getValue());
+            writeRefs(meta.getVariants());
+        }
+    }
+
+    private void writeDisplays(List<Display> displays) throws IOException {
+        writeSize(displays);
+        for (Display display : displays) {
+            writeString(display.getLang());
+            writeString(display.getContent());
+            writeRef(display.getVariants());
+        }
+    }
+
+    private void writeSubClasses(List<SubClass> subClasses) throws IOException {
+        writeSize(subClasses);
+        for (SubClass subClass : subClasses) {
+            writeString(subClass.getCode());
+            writeRefs(subClass.getVariants());
+        }
+    }
+
+    private void writeHistories(List<History> histories) throws IOException {
+        writeSize(histories);
+        for (History history : histories) {
+            writeRef(history.getAuthor());
+            writeString(history.getDate());
+            writeString(history.getContent());
+        }
+    }
+
+    private void writeRubrics(List<Rubric> rubrics) throws IOException {
+        writeSize(rubrics);
+        for (Rubric rubric : rubrics) {
+            writeString(rubric.getId());
+            writeRef(rubric.getKind());
+            writeRef(rubric.getUsage());
+            writeSize(rubric.getLabel());
+            for (Label label : rubric.getLabel()) {
+                writeString(label.getLang());
+                writeString(label.getSpace());
+                writeRefs(label.getVariants());
+                writeContent(label.getContent());
+            }
+            writeHistories(rubric.getHistory());
+        }
+    }
+
+    /**
+     * Writes mixed content: text and the elements a label may contain, each preceded by its tag.
+     */
+    private void writeContent(List<Object> content) throws IOException {
+        writeSize(content);
+        for (Object item : content) {
+            if (item instanceof String) {
+                writeVarInt(TEXT);
+                writeString((String) item);
+            } else if (item instanceof Reference) {
+                Reference ref = (Reference) item;
+                writeVarInt(REFERENCE);
+                writeString(ref.getContent());
+                writeString(ref.getClazz());
+                writeString(ref.getAuthority());
+                writeString(ref.getUid());
+                writeString(ref.getCode());
+                writeRef(ref.getUsage());
+                writeRefs(ref.getVariants());
+            } else if (item instanceof Term) {
+                writeVarInt(TERM);
+                writeString(((Term) item).getContent());
+                writeString(((Term) item).getClazz());
+            } else if (item instanceof Para) {
+                writeVarInt(PARA);
+                writeString(((Para) item).getClazz());
+                writeContent(((Para) item).getContent());
+            } else if (item instanceof Include) {
+                writeVarInt(INCLUDE);
+                writeString(((Include) item).getClazz());
+                writeRef(((Include) item).getRubric());
+            } else if (item instanceof IncludeDescendants) {
+                writeVarInt(INCLUDE_DESCENDANTS);
+                writeString(((IncludeDescendants) item).getCode());
+                writeRef(((IncludeDescendants) item).getKind());
+            } else if (item instanceof Fragment) {
+                Fragment fragment = (Fragment) item;
+                writeVarInt(FRAGMENT);
+                writeString(fragment.getClazz());
+                writeString(fragment.getType());
+                writeRef(fragment.getUsage());
+                writeContent(fragment.getContent());
+            } else if (item instanceof au.csiro.fhir.claml.model.claml.List) {
+                au.csiro.fhir.claml.model.claml.List list = (au.csiro.fhir.claml.model.claml.List) item;
+                writeVarInt(LIST);
+                writeString(list.getClazz());
+                writeSize(list.getListItem());
+                for (ListItem listItem : list.getListItem()) {
+                    writeString(listItem.getClazz());
+                    writeContent(listItem.getContent());
+                }
+            } else if (item instanceof Table) {
+                Table table = (Table) item;
+                writeVarInt(TABLE);
+                writeString(table.getClazz());
+                Caption caption = table.getCaption();
+                out.writeBoolean(caption != null);
+                if (caption != null) {
+                    writeString(caption.getClazz());
+                    writeContent(caption.getContent());
+                }
+                writeRows(table.getTHead() != null ? table.getTHead().getRow() : null, table.getTHead() != null ? table.getTHead().getClazz() : null);
+                writeRows(table.getTBody() != null ? table.getTBody().getRow() : null, table.getTBody() != null ? table.getTBody().getClazz() : null);
+                writeRows(table.getTFoot() != null ? table.getTFoot().getRow() : null, table.getTFoot() != null ? table.getTFoot().getClazz() : null);
+            } else {
+                throw new IOException("Cannot write " + item.getClass().getSimpleName() + " content to a ClaML snapshot");
+            }
+        }
+    }
+
+    /**
+     * Writes a table section, or only a false flag if the table does not have it.
+     */
+    private void writeRows(List<Row> rows, String clazz) throws IOException {
+        out.writeBoolean(rows != null);
+        if (rows == null) {
+            return;
+        }
+        writeString(clazz);
+        writeSize(rows);
+        for (Row row : rows) {
+            writeString(row.getClazz());
+            writeSize(row.getCell());
+            for (Cell cell : row.getCell()) {
+                writeString(cell.getClazz());
+                writeString(cell.getRowspan());
+                writeString(cell.getColspan());
+                writeContent(cell.getContent());
+            }
+        }
+    }
+
+    /**
+     * Writes an IDREF as the id of the object it points to.
+     */
+    private void writeRef(Object target) throws IOException {
+        writeString(target != null ? idOf(target) : null);
+    }
+
+    private void writeRefs(List<Object> targets) throws IOException {
+        writeSize(targets);
+        for (Object target : targets) {
+            writeRef(target);
+        }
+    }
+
+    private static String idOf(Object target) throws IOException {
+        if (target instanceof ClassKind) {
+            return ((ClassKind) target).getName();
+        } else if (target instanceof RubricKind) {
+            return ((RubricKind) target).getName();
+        } else if (target instanceof UsageKind) {
+            return ((UsageKind) target).getName();
+        } else if (target instanceof Variant) {
+            return ((Variant) target).getName();
+        } else if (target instanceof Author) {
+            return ((Author) target).getName();
+        } else if (target instanceof Rubric) {
+            return ((Rubric) target).getId();
+        }
+        throw new IOException("Cannot write a reference to " + target.getClass().getSimpleName() + " to a ClaML snapshot");
+    }
+
+    private void writeSize(List<?> list) throws IOException {
+        writeVarInt(list.size());
+    }
+
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            writeVarInt(STRING_NULL);
+            return;
+        }
+        if (value.length() <= MAX_INTERNED_LENGTH) {
+            Integer index = strings.get(value);
+            if (index != null) {
+                writeVarInt(STRING_TABLE + index);
+                return;
+            }
+            strings.put(value, strings.size());
+            writeVarInt(STRING_INTERNED);
+        } else {
+            writeVarInt(STRING_INLINE);
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+}
@@ -0,0 +1,162 @@
+package au.csiro.fhir.claml;
+
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the transitive closure of a code system's hierarchy: a row of ancestor, descendant and
+ * distance for every concept and each of its ancestors, and for every concept with itself at
+ * distance 0. The distance is the length of the shortest path. Modifier-generated codes are linked
+ * to the class they were generated from through their parent properties, like any other concept.
+ * <p>
+ * Rows are produced one descendant at a time by a breadth-first walk up its parents, so only the
+ * hierarchy is held in memory and not the closure, however many rows it has. Descendants are in
+ * the order of the conversion and their ancestors by increasing distance.
+ * <p>
+ * The CSV format has a header line and quotes codes where needed. The binary format is written with
+ * {@link DataOutputStream}, all numbers big-endian:
+ *
+ * <pre>
+ * int    magic 0x434C4354 ("CLCT")
+ * int    format version
+ * int    number of codes
+ * UTF    each code, its position being its id
+ * per code, in id order:
+ *   int  number of ancestors, including itself
+ *   per ancestor:
+ *     int   ancestor id
+ *     short distance
+ * </pre>
+ */
+public class ClosureTableWriter {
+
+    static final int MAGIC = 0x434C4354;
+
+    static final int FORMAT_VERSION = 1;
+
+    /**
+     * The layout of the rows.
+     */
+    public enum Format {
+        CSV, BINARY;
+
+        /**
+         * @return CSV if the name, without a .gz or .xz suffix, ends in .csv, and BINARY otherwise.
+         */
+        public static Format of(File file) {
+            String name = file.getName().toLowerCase().replaceAll("\\.(gz|xz)$", "");
+            return name.endsWith(".csv") ? CSV : BINARY;
+        }
+    }
+
+    private final TerminologyIndex index;
+    private final int[] queue;
+    private final int[] distance;
+    // The descendant each concept was last reached from, plus one, so the arrays need no clearing
+    private final int[] seenFrom;
+
+    public ClosureTableWriter(TerminologyIndex index) {
+        this.index = index;
+        int n = index.size();
+        this.queue = new int[n];
+        this.distance = new int[n];
+        this.seenFrom = new int[n];
+    }
+
+    /**
+     * Writes the closure. The stream is not closed.
+     *
+     * @return The number of rows written.
+     */
+    public long write(OutputStream out, Format format) throws IOException {
+        return format == Format.CSV ? writeCsv(out) : writeBinary(out);
+    }
+
+    private long writeCsv(OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+        String[] codes = new String[index.size()];
+        for (int id = 0; id < codes.length; id++) {
+            codes[id] = quote(index.code(id));
+        }
+        writer.write("ancestor,descendant,distance\n");
+        long rows = 0;
+        for (int id = 0; id < codes.length; id++) {
+            int count = ancestors(id);
+            for (int i = 0; i < count; i++) {
+                writer.write(codes[queue[i]]);
+                writer.write(',');
+                writer.write(codes[id]);
+                writer.write(',');
+                writer.write(Integer.toString(distance[i]));
+                writer.write('\n');
+            }
+            rows += count;
+        }
+        writer.flush();
+        return rows;
+    }
+
+    private long writeBinary(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT_VERSION);
+        data.writeInt(index.size());
+        for (int id = 0; id < index.size(); id++) {
+            data.writeUTF(index.code(id));
+        }
+        long rows = 0;
+        for (int id = 0; id < index.size(); id++) {
+            int count = ancestors(id);
+            data.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                data.writeInt(queue[i]);
+                data.writeShort(distance[i]);
+            }
+            rows += count;
+        }
+        data.flush();
+        return rows;
+    }
+
+    /**
+     * Collects the concept and its ancestors in the first entries of queue, with their distances at
+     * the same positions in distance.
+     *
+     * @return The number of entries.
+     */
+    private int ancestors(int id) {
+        int stamp = id + 1;
+        int head = 0;
+        int tail = 0;
+        queue[tail] = id;
+        distance[tail++] = 0;
+        seenFrom[id] = stamp;
+        while (head < tail) {
+            int node = queue[head];
+            int d = distance[head++];
+            for (int i = 0; i < index.parentCount(node); i++) {
+                int parent = index.parent(node, i);
+                if (seenFrom[parent] != stamp) {
+                    seenFrom[parent] = stamp;
+                    queue[tail] = parent;
+                    distance[tail++] = d + 1;
+                }
+            }
+        }
+        return tail;
+    }
+
+    static String quote(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+}
@@ -0,0 +1,118 @@
+package au.csiro.fhir.claml;
+
+import java.util.Arrays;
+
+/**
+ * Interns the codes of a classification, giving each one a dense int id in the order it was first
+ * seen. Everything else that is kept per code can then be stored in arrays indexed by id instead of
+ * in maps keyed by code.
+ * <p>
+ * The codes are held once in an array and looked up with an open-addressing hash table of ids, so a
+ * code costs a few ints on top of the string itself rather than a map entry and a boxed Integer.
+ * Not thread-safe.
+ */
+public class CodeDictionary {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private String[] codes;
+    private int[] hashes;
+    // Slots hold id + 1, so 0 means empty
+    private int[] table;
+    private int size;
+
+    public CodeDictionary() {
+        this(1024);
+    }
+
+    /**
+     * @param expectedSize The number of codes expected, to avoid rehashing.
+     */
+    public CodeDictionary(int expectedSize) {
+        int capacity = Math.max(16, expectedSize);
+        codes = new String[capacity];
+        hashes = new int[capacity];
+        table = new int[tableSize(capacity)];
+    }
+
+    private static int tableSize(int capacity) {
+        return Integer.highestOneBit((int) Math.min(1 << 30, (long) Math.ceil(capacity / LOAD_FACTOR)) * 2 - 1);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return The id of the code, adding it if it has not been seen before.
+     */
+    public int intern(String code) {
+        int hash = spread(code.hashCode());
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0) {
+            int id = table[slot] - 1;
+            if (hashes[id] == hash && codes[id].equals(code)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int id = size++;
+        if (id == codes.length) {
+            codes = Arrays.copyOf(codes, id * 2);
+            hashes = Arrays.copyOf(hashes, id * 2);
+        }
+        codes[id] = code;
+        hashes[id] = hash;
+        table[slot] = id + 1;
+        if (size > table.length * LOAD_FACTOR) {
+            rehash();
+        }
+        return id;
+    }
+
+    /**
+     * @return The id of the code, or -1 if it has not been interned.
+     */
+    public int id(String code) {
+        int hash = spread(code.hashCode());
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0) {
+            int id = table[slot] - 1;
+            if (hashes[id] == hash && codes[id].equals(code)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public String code(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("No code with id " + id);
+        }
+        return codes[id];
+    }
+
+    /**
+     * @return The number of codes, which is also the next id.
+     */
+    public int size() {
+        return size;
+    }
+
+    private void rehash() {
+        int[] newTable = new int[table.length * 2];
+        int mask = newTable.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (newTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newTable[slot] = id + 1;
+        }
+        table = newTable;
+    }
+
+}
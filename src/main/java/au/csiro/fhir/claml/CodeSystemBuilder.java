@@ -0,0 +1,32 @@
+package au.csiro.fhir.claml;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+
+/**
+ * Collects the output of a transformation into a single in-memory {@link CodeSystem}.
+ */
+public class CodeSystemBuilder implements ConceptSink {
+
+    private CodeSystem cs;
+
+    @Override
+    public void start(CodeSystem header) {
+        this.cs = header;
+    }
+
+    @Override
+    public void accept(ConceptDefinitionComponent concept) {
+        cs.addConcept(concept);
+    }
+
+    @Override
+    public void finish(int count) {
+        cs.setCount(count);
+    }
+
+    public CodeSystem getCodeSystem() {
+        return cs;
+    }
+
+}
@@ -0,0 +1,35 @@
+package au.csiro.fhir.claml;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+
+/**
+ * Receives the output of a transformation: the code system header, then each concept as soon as it
+ * has been produced (declared classes in document order, followed by modifier-generated concepts),
+ * and finally the total number of concepts.
+ */
+public interface ConceptSink extends Closeable {
+
+    /**
+     * @param header The code system with all its metadata and properties, but no concepts or count.
+     */
+    void start(CodeSystem header) throws IOException;
+
+    /**
+     * @param concept A fully populated concept. The sink must not assume it can be modified later.
+     */
+    void accept(ConceptDefinitionComponent concept) throws IOException;
+
+    /**
+     * @param count The number of concepts passed to {@link #accept(ConceptDefinitionComponent)}.
+     */
+    void finish(int count) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+
+}
@@ -0,0 +1,445 @@
+package au.csiro.fhir.claml;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The options of a ClaML to FHIR transformation. Getters return the documented default when an
+ * option has not been set.
+ */
+public class ConversionOptions {
+
+    /**
+     * How the hierarchy is represented in the output.
+     */
+    public enum HierarchyOutput {
+        /** Parent and child properties on every concept. */
+        PROPERTIES,
+        /** Parent properties only. */
+        PARENTS,
+        /**
+         * Concepts nested under their first parent, with parent properties for any other parents.
+         * Only possible when the code system is built in memory.
+         */
+        NESTED
+    }
+
+    private List<String> displayRubrics;
+    private String definitionRubric;
+    private List<String> designationRubrics;
+    private List<String> excludeClassKinds;
+    private List<String> excludeRubricKinds;
+    private Boolean excludeKindlessClasses;
+    private String hierarchyMeaning;
+    private String id;
+    private String url;
+    private String valueSet;
+    private String content;
+    private boolean versionNeeded;
+    private Boolean applyModifiers;
+    private Boolean experimental;
+    private String status;
+    private boolean streamOutput;
+    private boolean parallel;
+    private File snapshotDir;
+    private String inputEntry;
+    private long splitSize;
+    private File ndjsonOutput;
+    private String uploadUrl;
+    private FhirUploader.Mode uploadMode = FhirUploader.Mode.SINGLE;
+    private int uploadChunkSize = 1000;
+    private int uploadThreads = 4;
+    private int uploadRetries = 5;
+    private File intervalOutput;
+    private boolean intervalProperties;
+    private File closureOutput;
+    private HierarchyOutput hierarchyOutput = HierarchyOutput.PROPERTIES;
+    private boolean logDiagnostics;
+    private File diagnosticsOutput;
+    private boolean runReport;
+
+    /**
+     * @return The rubrics that might contain the concepts' displays, in order of preference. Default
+     * is 'preferred'.
+     */
+    public List<String> getDisplayRubrics() {
+        if (displayRubrics == null || displayRubrics.isEmpty()) {
+            return Collections.singletonList("preferred");
+        }
+        return displayRubrics;
+    }
+
+    public ConversionOptions setDisplayRubrics(List<String> displayRubrics) {
+        this.displayRubrics = displayRubrics;
+        return this;
+    }
+
+    /**
+     * @return The rubric that contains the concepts' definitions. Default is 'definition'.
+     */
+    public String getDefinitionRubric() {
+        return definitionRubric != null ? definitionRubric : "definition";
+    }
+
+    public ConversionOptions setDefinitionRubric(String definitionRubric) {
+        this.definitionRubric = definitionRubric;
+        return this;
+    }
+
+    public List<String> getDesignationRubrics() {
+        return designationRubrics != null ? designationRubrics : Collections.emptyList();
+    }
+
+    public ConversionOptions setDesignationRubrics(List<String> designationRubrics) {
+        this.designationRubrics = designationRubrics;
+        return this;
+    }
+
+    public List<String> getExcludeClassKinds() {
+        return excludeClassKinds != null ? excludeClassKinds : Collections.emptyList();
+    }
+
+    public ConversionOptions setExcludeClassKinds(List<String> excludeClassKinds) {
+        this.excludeClassKinds = excludeClassKinds;
+        return this;
+    }
+
+    /**
+     * @return The rubric kinds that are left out of the code system altogether.
+     */
+    public List<String> getExcludeRubricKinds() {
+        return excludeRubricKinds != null ? excludeRubricKinds : Collections.emptyList();
+    }
+
+    public ConversionOptions setExcludeRubricKinds(List<String> excludeRubricKinds) {
+        this.excludeRubricKinds = excludeRubricKinds;
+        return this;
+    }
+
+    public boolean isExcludeKindlessClasses() {
+        return excludeKindlessClasses != null && excludeKindlessClasses;
+    }
+
+    public ConversionOptions setExcludeKindlessClasses(Boolean excludeKindlessClasses) {
+        this.excludeKindlessClasses = excludeKindlessClasses;
+        return this;
+    }
+
+    /**
+     * @return The hierarchyMeaning of the code system. Default is 'is-a'.
+     */
+    public String getHierarchyMeaning() {
+        return hierarchyMeaning != null ? hierarchyMeaning : "is-a";
+    }
+
+    public ConversionOptions setHierarchyMeaning(String hierarchyMeaning) {
+        this.hierarchyMeaning = hierarchyMeaning;
+        return this;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public ConversionOptions setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public ConversionOptions setUrl(String url) {
+        this.url = url;
+        return this;
+    }
+
+    public String getValueSet() {
+        return valueSet;
+    }
+
+    public ConversionOptions setValueSet(String valueSet) {
+        this.valueSet = valueSet;
+        return this;
+    }
+
+    /**
+     * @return The extent of the content of the code system. Default is 'complete'.
+     */
+    public String getContent() {
+        return content != null ? content : "complete";
+    }
+
+    public ConversionOptions setContent(String content) {
+        this.content = content;
+        return this;
+    }
+
+    public boolean isVersionNeeded() {
+        return versionNeeded;
+    }
+
+    public ConversionOptions setVersionNeeded(boolean versionNeeded) {
+        this.versionNeeded = versionNeeded;
+        return this;
+    }
+
+    public boolean isApplyModifiers() {
+        return applyModifiers != null && applyModifiers;
+    }
+
+    public ConversionOptions setApplyModifiers(Boolean applyModifiers) {
+        this.applyModifiers = applyModifiers;
+        return this;
+    }
+
+    /**
+     * @return If the code system is for testing purposes. Default is true.
+     */
+    public boolean isExperimental() {
+        return experimental == null || experimental;
+    }
+
+    public ConversionOptions setExperimental(Boolean experimental) {
+        this.experimental = experimental;
+        return this;
+    }
+
+    /**
+     * @return The code system status. Default is 'draft'.
+     */
+    public String getStatus() {
+        return status != null ? status : "draft";
+    }
+
+    public ConversionOptions setStatus(String status) {
+        this.status = status;
+        return this;
+    }
+
+    /**
+     * @return If concepts should be written to the output as they are produced instead of building
+     * the whole code system in memory first. Always true when the output is split.
+     */
+    public boolean isStreamOutput() {
+        return streamOutput || splitSize > 0;
+    }
+
+    public ConversionOptions setStreamOutput(boolean streamOutput) {
+        this.streamOutput = streamOutput;
+        return this;
+    }
+
+    /**
+     * @return If classes should be converted concurrently on all processors. The output is the same
+     * as a sequential conversion.
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    public ConversionOptions setParallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    /**
+     * @return The directory of parsed ClaML snapshots, or null if snapshots are not used.
+     */
+    public File getSnapshotDir() {
+        return snapshotDir;
+    }
+
+    public ConversionOptions setSnapshotDir(File snapshotDir) {
+        this.snapshotDir = snapshotDir;
+        return this;
+    }
+
+    /**
+     * @return The regular expression that selects the ClaML entry of a zip archive, or null if the
+     * archive holds a single .xml entry.
+     */
+    public String getInputEntry() {
+        return inputEntry;
+    }
+
+    public ConversionOptions setInputEntry(String inputEntry) {
+        this.inputEntry = inputEntry;
+        return this;
+    }
+
+    /**
+     * @return The size in bytes at which the output is split into another file, or 0 to write a
+     * single file. Splitting implies streaming the output.
+     */
+    public long getSplitSize() {
+        return splitSize;
+    }
+
+    public ConversionOptions setSplitSize(long splitSize) {
+        this.splitSize = splitSize;
+        return this;
+    }
+
+    /**
+     * @return The file to also write every concept to as a line of JSON, or null for none.
+     */
+    public File getNdjsonOutput() {
+        return ndjsonOutput;
+    }
+
+    public ConversionOptions setNdjsonOutput(File ndjsonOutput) {
+        this.ndjsonOutput = ndjsonOutput;
+        return this;
+    }
+
+    /**
+     * @return The base URL of the FHIR server to upload the code system to, or null to not upload it.
+     */
+    public String getUploadUrl() {
+        return uploadUrl;
+    }
+
+    public ConversionOptions setUploadUrl(String uploadUrl) {
+        this.uploadUrl = uploadUrl;
+        return this;
+    }
+
+    public FhirUploader.Mode getUploadMode() {
+        return uploadMode;
+    }
+
+    public ConversionOptions setUploadMode(FhirUploader.Mode uploadMode) {
+        this.uploadMode = uploadMode;
+        return this;
+    }
+
+    /**
+     * @return The number of concepts in each chunk when uploading in chunks.
+     */
+    public int getUploadChunkSize() {
+        return uploadChunkSize;
+    }
+
+    public ConversionOptions setUploadChunkSize(int uploadChunkSize) {
+        this.uploadChunkSize = uploadChunkSize;
+        return this;
+    }
+
+    /**
+     * @return The number of chunks sent to the server at the same time.
+     */
+    public int getUploadThreads() {
+        return uploadThreads;
+    }
+
+    public ConversionOptions setUploadThreads(int uploadThreads) {
+        this.uploadThreads = uploadThreads;
+        return this;
+    }
+
+    /**
+     * @return How many times a failed request is retried.
+     */
+    public int getUploadRetries() {
+        return uploadRetries;
+    }
+
+    public ConversionOptions setUploadRetries(int uploadRetries) {
+        this.uploadRetries = uploadRetries;
+        return this;
+    }
+
+    /**
+     * @return The file to write the interval labels of the hierarchy to, or null for none.
+     */
+    public File getIntervalOutput() {
+        return intervalOutput;
+    }
+
+    public ConversionOptions setIntervalOutput(File intervalOutput) {
+        this.intervalOutput = intervalOutput;
+        return this;
+    }
+
+    /**
+     * @return If the interval labels of the hierarchy should be added to the concepts as properties.
+     * Only possible when the code system is built in memory.
+     */
+    public boolean isIntervalProperties() {
+        return intervalProperties;
+    }
+
+    public ConversionOptions setIntervalProperties(boolean intervalProperties) {
+        this.intervalProperties = intervalProperties;
+        return this;
+    }
+
+    /**
+     * @return The file to write the transitive closure of the hierarchy to, or null for none. It is
+     * CSV if its name ends in .csv, before any compression suffix, and binary otherwise.
+     */
+    public File getClosureOutput() {
+        return closureOutput;
+    }
+
+    public ConversionOptions setClosureOutput(File closureOutput) {
+        this.closureOutput = closureOutput;
+        return this;
+    }
+
+    /**
+     * @return How the hierarchy is represented in the output. Default is parent and child
+     * properties.
+     */
+    public HierarchyOutput getHierarchyOutput() {
+        return hierarchyOutput;
+    }
+
+    public ConversionOptions setHierarchyOutput(HierarchyOutput hierarchyOutput) {
+        this.hierarchyOutput = hierarchyOutput;
+        return this;
+    }
+
+    /**
+     * @return If every issue found during the conversion should be logged as it is found, rather
+     * than only counted and summarised at the end.
+     */
+    public boolean isLogDiagnostics() {
+        return logDiagnostics;
+    }
+
+    public ConversionOptions setLogDiagnostics(boolean logDiagnostics) {
+        this.logDiagnostics = logDiagnostics;
+        return this;
+    }
+
+    /**
+     * @return The file to write the report of the issues found during the conversion to, as JSON,
+     * or null for none.
+     */
+    public File getDiagnosticsOutput() {
+        return diagnosticsOutput;
+    }
+
+    public ConversionOptions setDiagnosticsOutput(File diagnosticsOutput) {
+        this.diagnosticsOutput = diagnosticsOutput;
+        return this;
+    }
+
+    /**
+     * @return If a JSON report of the time spent in each phase of the conversion, and of what it
+     * read and produced, should be written next to the output.
+     */
+    public boolean isRunReport() {
+        return runReport;
+    }
+
+    public ConversionOptions setRunReport(boolean runReport) {
+        this.runReport = runReport;
+        return this;
+    }
+
+}
@@ -0,0 +1,713 @@
+package au.csiro.fhir.claml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.UnrecognizedOptionException;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.Parameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Serves conversions over HTTP, so that the FHIR and JAXB contexts of the {@link FhirClamlService}
+ * are created once and stay warm instead of being created for every file as with the command line.
+ * <p>
+ * A job is submitted with POST /jobs, either with the ClaML file as the request body or with -i
+ * naming a file under the input root the server was started with. The options query parameter
+ * holds the options of the command line that only affect the transformation, see
+ * {@link #TRANSFORM_OPTIONS}. The server has no authentication, so options that name other files
+ * or hosts are turned away with 400: the output is always written to a directory of the job, and
+ * the side outputs listed in the exports query parameter, e.g. exports=ndjson,closure, are written
+ * there too. The response is 202 with the job's status and its URL in the Location header.
+ * GET /jobs/{id} returns the status and the number of concepts converted so far, GET
+ * /jobs/{id}/result and GET /jobs/{id}/{export} stream the output once the job is done, and
+ * DELETE /jobs/{id} cancels the job if it has not finished and removes its files.
+ * <p>
+ * Jobs run on a fixed number of threads with a bounded queue, and a full queue turns new jobs away
+ * with 503. Like the {@link BatchConverter}, a job reserves an estimate of the heap it needs before
+ * it starts, so large releases wait for running ones to finish instead of exhausting the heap.
+ * <p>
+ * A job submitted with index=true also builds a {@link TerminologyIndex} of its code system, which
+ * answers GET /CodeSystem/$lookup, $validate-code and $subsumes with the system and the other
+ * parameters of those operations in the query, until the job is removed.
+ * <p>
+ * Finished jobs are removed with their files and index once they are older than the retention
+ * time, or when more than {@value #MAX_FINISHED_JOBS} jobs have finished, starting with the oldest.
+ */
+@Component
+public class ConversionServer {
+
+    private static final Logger log = LoggerFactory.getLogger(ConversionServer.class);
+
+    private static final int MAX_QUEUED_JOBS = 100;
+
+    static final int MAX_FINISHED_JOBS = 100;
+
+    private static final long MB = 1024 * 1024;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * The command line options a client may use. They only change how the ClaML is transformed,
+     * and -i is confined to the input root.
+     */
+    static final Set<String> TRANSFORM_OPTIONS = Set.of("content", "applyModifiers", "d", "definition",
+            "designations", "excludeClassKinds", "excludeRubricKinds", "excludeKindlessClasses", "hierarchyOutput",
+            "hierarchyMeaning", "i", "inputEntry", "id", "url", "valueSet", "versionNeeded", "experimental",
+            "status", "streamOutput", "parallel", "intervalProperties", "logDiagnostics");
+
+    /**
+     * The side outputs a job can be asked for, which are written to its directory under fixed names.
+     */
+    enum Export {
+        NDJSON("concepts.ndjson", "application/x-ndjson", ConversionOptions::setNdjsonOutput),
+        INTERVALS("intervals.bin", "application/octet-stream", ConversionOptions::setIntervalOutput),
+        CLOSURE("closure.csv", "text/csv", ConversionOptions::setClosureOutput),
+        DIAGNOSTICS("diagnostics.json", "application/json", ConversionOptions::setDiagnosticsOutput),
+        REPORT(null, "application/json", (options, file) -> options.setRunReport(true));
+
+        private final String fileName;
+        private final String contentType;
+        private final BiConsumer<ConversionOptions, File> setter;
+
+        Export(String fileName, String contentType, BiConsumer<ConversionOptions, File> setter) {
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.setter = setter;
+        }
+
+        String toCode() {
+            return name().toLowerCase();
+        }
+    }
+
+    @Autowired
+    private FhirClamlService fhirClamlService;
+
+    @Autowired
+    private FhirContext fhirContext;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private HttpServer http;
+    private ThreadPoolExecutor executor;
+    private ExecutorService httpExecutor;
+    private ScheduledExecutorService cleaner;
+    private Duration retention = Duration.ofDays(1);
+    private Semaphore heapBudget;
+    private int budgetMb;
+    private File workDir;
+    private File inputRoot;
+
+    /**
+     * The state of a job.
+     */
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    private static class Job {
+        final String id = UUID.randomUUID().toString();
+        final File dir;
+        final File output;
+        final Set<Export> exports = EnumSet.noneOf(Export.class);
+        final Instant submitted = Instant.now();
+        final AtomicInteger concepts = new AtomicInteger();
+        private volatile Status status = Status.QUEUED;
+        volatile Instant started;
+        volatile Instant finished;
+        volatile String error;
+
+        int reservedMb;
+        Future<?> future;
+        boolean indexed;
+        volatile TerminologyIndex index;
+
+        Job(File workDir) {
+            this.dir = new File(workDir, id);
+            this.output = new File(dir, "codesystem.json");
+        }
+
+        /**
+         * Changes the status, unless another thread already changed it, e.g. a job cancelled
+         * while it runs must not become DONE.
+         *
+         * @return true if the status was changed.
+         */
+        synchronized boolean transition(Status from, Status to) {
+            if (status != from) {
+                return false;
+            }
+            status = to;
+            return true;
+        }
+
+        /**
+         * @return true if the job was queued or running and is now cancelled.
+         */
+        synchronized boolean cancel() {
+            return transition(Status.QUEUED, Status.CANCELLED) || transition(Status.RUNNING, Status.CANCELLED);
+        }
+
+        File file(Export export) {
+            return export == Export.REPORT ? FhirClamlService.getRunReportFile(output) : new File(dir, export.fileName);
+        }
+    }
+
+    /**
+     * Counts the concepts of a job as they are produced.
+     */
+    private static class ProgressSink implements ConceptSink {
+        private final Job job;
+
+        ProgressSink(Job job) {
+            this.job = job;
+        }
+
+        @Override
+        public void start(CodeSystem header) {
+            job.concepts.set(0);
+        }
+
+        @Override
+        public void accept(ConceptDefinitionComponent concept) {
+            job.concepts.incrementAndGet();
+        }
+
+        @Override
+        public void finish(int count) {
+            job.concepts.set(count);
+        }
+    }
+
+    /**
+     * Starts serving on the port. Input can only be uploaded, not named with -i.
+     *
+     * @param threads The maximum number of concurrent conversions, or 0 to use the number of
+     * available processors.
+     * @param workDir The directory where uploaded input and the output of the jobs are kept.
+     */
+    public void start(int port, int threads, File workDir) throws IOException {
+        start(port, threads, workDir, null);
+    }
+
+    /**
+     * Starts serving on the port.
+     *
+     * @param inputRoot The directory that files named with -i must be in, or null to only accept
+     * uploaded input.
+     */
+    public void start(int port, int threads, File workDir, File inputRoot) throws IOException {
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.workDir = workDir;
+        this.inputRoot = inputRoot != null ? inputRoot.getCanonicalFile() : null;
+        workDir.mkdirs();
+        this.budgetMb = (int) Math.max(1, Runtime.getRuntime().maxMemory() * BatchConverter.HEAP_BUDGET / MB);
+        this.heapBudget = new Semaphore(budgetMb, true);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_JOBS), r -> new Thread(r, "conversion-" + threadNumber.incrementAndGet()));
+
+        http = HttpServer.create(new InetSocketAddress(port), 0);
+        http.createContext("/jobs", this::handle);
+        http.createContext("/CodeSystem", this::handleOperation);
+        httpExecutor = Executors.newCachedThreadPool();
+        http.setExecutor(httpExecutor);
+        http.start();
+        cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "conversion-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cleaner.scheduleWithFixedDelay(this::expireJobs, 1, 1, TimeUnit.MINUTES);
+        log.info("Serving conversions on port " + getPort() + " with " + threads + " threads and a heap budget of "
+                + budgetMb + " MB, working in " + workDir
+                + (inputRoot != null ? " and reading input from " + this.inputRoot : ""));
+    }
+
+    /**
+     * @return The port the server listens on, which is useful when it was started on port 0.
+     */
+    public int getPort() {
+        return http.getAddress().getPort();
+    }
+
+    /**
+     * @param retention How long a finished job is kept. Defaults to a day.
+     */
+    public void setRetention(Duration retention) {
+        this.retention = retention;
+    }
+
+    /**
+     * Stops accepting requests and cancels the jobs that are still running.
+     */
+    public void stop() {
+        if (http != null) {
+            http.stop(0);
+            for (Job job : jobs.values()) {
+                job.cancel();
+            }
+            executor.shutdownNow();
+            httpExecutor.shutdownNow();
+            cleaner.shutdownNow();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/+");
+            Job job = path.length > 1 ? jobs.get(path[1]) : null;
+            if (path.length == 1 && method.equals("POST")) {
+                submit(exchange);
+            } else if (path.length == 1 || job == null) {
+                respond(exchange, 404, error("Not found"));
+            } else if (path.length == 2 && method.equals("GET")) {
+                respond(exchange, 200, status(job));
+            } else if (path.length == 2 && method.equals("DELETE")) {
+                delete(job);
+                respond(exchange, 200, status(job));
+            } else if (path.length == 3 && path[2].equals("result") && method.equals("GET")) {
+                sendFile(exchange, job, job.output, "application/fhir+json");
+            } else if (path.length == 3 && method.equals("GET")) {
+                sendExport(exchange, job, path[2]);
+            } else {
+                respond(exchange, 405, error("Method not allowed"));
+            }
+        } catch (RuntimeException e) {
+            log.error("Could not handle " + exchange.getRequestMethod() + " " + exchange.getRequestURI(), e);
+            respond(exchange, 500, error(e.getLocalizedMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void submit(HttpExchange exchange) throws IOException {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        CommandLine line;
+        ConversionOptions options;
+        Set<Export> exports = EnumSet.noneOf(Export.class);
+        try {
+            String[] args = Application.splitArguments(query.getOrDefault("options", ""));
+            String banned = findBannedOption(args);
+            if (banned != null) {
+                throw new UnrecognizedOptionException("Banned option", banned);
+            }
+            line = new DefaultParser().parse(transformOptions(), args);
+            options = Application.toConversionOptions(line);
+            for (String export : query.getOrDefault("exports", "").split(",")) {
+                if (!export.isBlank()) {
+                    exports.add(Export.valueOf(export.trim().toUpperCase(Locale.ROOT)));
+                }
+            }
+        } catch (UnrecognizedOptionException e) {
+            reject(exchange, "Option " + e.getOption() + " cannot be used on the server, only options of the "
+                    + "transformation and the exports query parameter");
+            return;
+        } catch (ParseException | IllegalArgumentException e) {
+            reject(exchange, e.getMessage());
+            return;
+        }
+
+        File input = null;
+        if (line.hasOption("i")) {
+            input = resolveInput(line.getOptionValue("i"));
+            if (input == null) {
+                reject(exchange, inputRoot == null ? "This server only accepts the ClaML file as the request body"
+                        : "The input must be a file under " + inputRoot);
+                return;
+            }
+        }
+
+        Job job = new Job(workDir);
+        job.indexed = Boolean.parseBoolean(query.get("index"));
+        job.exports.addAll(exports);
+        job.dir.mkdirs();
+        if (input == null) {
+            input = new File(job.dir, "input");
+            try (InputStream in = exchange.getRequestBody()) {
+                Files.copy(in, input.toPath());
+            }
+            if (input.length() == 0) {
+                deleteRecursively(job.dir);
+                respond(exchange, 400, error("Send the ClaML file as the request body or name it with -i"));
+                return;
+            }
+        } else {
+            drain(exchange);
+        }
+        for (Export export : job.exports) {
+            export.setter.accept(options, job.file(export));
+        }
+        job.reservedMb = (int) Math.min(budgetMb, Math.max(1, BatchConverter.estimateHeapBytes(input, options) / MB));
+
+        File jobInput = input;
+        jobs.put(job.id, job);
+        try {
+            job.future = executor.submit(() -> run(job, jobInput, options));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            deleteRecursively(job.dir);
+            exchange.getResponseHeaders().set("Retry-After", "60");
+            respond(exchange, 503, error("Too many jobs are waiting, try again later"));
+            return;
+        }
+        log.info("Queued job " + job.id + " for " + input + ", reserving " + job.reservedMb + " MB");
+        exchange.getResponseHeaders().set("Location", "/jobs/" + job.id);
+        respond(exchange, 202, status(job));
+    }
+
+    /**
+     * @return The options of the command line that clients may use, none of them required.
+     */
+    private static Options transformOptions() {
+        Options result = new Options();
+        for (Option option : Application.createOptions().getOptions()) {
+            if (TRANSFORM_OPTIONS.contains(option.getOpt() != null ? option.getOpt() : option.getLongOpt())) {
+                option.setRequired(false);
+                result.addOption(option);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The first argument that names an option of the command line that clients may not use,
+     * or null. Parsing with {@link #transformOptions()} alone would take e.g. -diagnostics for -d
+     * with the value iagnostics.
+     */
+    private static String findBannedOption(String[] args) {
+        Options all = Application.createOptions();
+        for (String arg : args) {
+            String name = arg.replaceFirst("^--?", "").replaceFirst("=.*", "");
+            if (arg.startsWith("-") && all.hasOption(name)) {
+                Option option = all.getOption(name);
+                if (!TRANSFORM_OPTIONS.contains(option.getOpt() != null ? option.getOpt() : option.getLongOpt())) {
+                    return arg;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The input file named by a client, resolved against the input root, or null if there
+     * is no input root or the file is not under it, e.g. because of .. or a symbolic link.
+     */
+    private File resolveInput(String path) throws IOException {
+        if (inputRoot == null) {
+            return null;
+        }
+        File file = new File(path);
+        File canonical = (file.isAbsolute() ? file : new File(inputRoot, path)).getCanonicalFile();
+        return canonical.toPath().startsWith(inputRoot.toPath()) && canonical.isFile() ? canonical : null;
+    }
+
+    /**
+     * Turns a submission away with 400. The body has to be read to the end first, or the connection
+     * cannot be used again.
+     */
+    private static void reject(HttpExchange exchange, String message) throws IOException {
+        drain(exchange);
+        respond(exchange, 400, error(message));
+    }
+
+    private static void drain(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    private void run(Job job, File input, ConversionOptions options) {
+        try {
+            heapBudget.acquire(job.reservedMb);
+        } catch (InterruptedException e) {
+            job.cancel();
+            job.finished = Instant.now();
+            return;
+        }
+        try {
+            if (!job.transition(Status.QUEUED, Status.RUNNING)) {
+                return;
+            }
+            job.started = Instant.now();
+            TerminologyIndex index = null;
+            if (job.indexed) {
+                TerminologyIndexBuilder indexBuilder = new TerminologyIndexBuilder();
+                fhirClamlService.claml2fhir(input, options, job.output, new TeeConceptSink(new ProgressSink(job), indexBuilder));
+                index = indexBuilder.getIndex();
+            } else {
+                fhirClamlService.claml2fhir(input, options, job.output, new ProgressSink(job));
+            }
+            // Set before the index is published, as the lookups compare the finishing times
+            job.finished = Instant.now();
+            job.index = index;
+            if (job.transition(Status.RUNNING, Status.DONE)) {
+                log.info("Finished job " + job.id + " with " + job.concepts.get() + " concepts");
+            } else {
+                job.index = null;
+            }
+        } catch (Throwable t) {
+            if (job.transition(Status.RUNNING, Status.FAILED)) {
+                job.error = t.getLocalizedMessage();
+                log.error("Job " + job.id + " failed", t);
+            }
+        } finally {
+            if (job.finished == null) {
+                job.finished = Instant.now();
+            }
+            heapBudget.release(job.reservedMb);
+        }
+        expireJobs();
+    }
+
+    private void delete(Job job) throws IOException {
+        if (job.cancel() && job.future != null) {
+            job.future.cancel(true);
+        }
+        job.index = null;
+        jobs.remove(job.id);
+        deleteRecursively(job.dir);
+        log.info("Removed job " + job.id);
+    }
+
+    /**
+     * Removes the finished jobs that are older than the retention time, and then the oldest ones
+     * while there are more than {@value #MAX_FINISHED_JOBS}.
+     */
+    void expireJobs() {
+        List<Job> finished = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            if (job.finished != null && job.status != Status.QUEUED && job.status != Status.RUNNING) {
+                finished.add(job);
+            }
+        }
+        finished.sort(Comparator.comparing((Job job) -> job.finished));
+        Instant expiry = Instant.now().minus(retention);
+        for (int i = 0; i < finished.size(); i++) {
+            Job job = finished.get(i);
+            if (job.finished.isBefore(expiry) || finished.size() - i > MAX_FINISHED_JOBS) {
+                try {
+                    delete(job);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Could not remove job " + job.id + ": " + e.getLocalizedMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Answers $lookup, $validate-code and $subsumes from the index of the most recently finished job
+     * that converted the code system.
+     */
+    private void handleOperation(HttpExchange exchange) throws IOException {
+        try {
+            String operation = exchange.getRequestURI().getPath().replaceAll("^/+CodeSystem/+|/+$", "");
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String system = query.containsKey("system") ? query.get("system") : query.get("url");
+            if (!exchange.getRequestMethod().equals("GET")) {
+                respond(exchange, 405, error("Method not allowed"));
+                return;
+            }
+            if (system == null) {
+                respond(exchange, 400, error("The system parameter is required"));
+                return;
+            }
+            TerminologyIndex index = findIndex(system, query.get("version"));
+            if (index == null) {
+                respond(exchange, 404, error("No indexed code system " + system));
+                return;
+            }
+            Parameters result;
+            switch (operation) {
+            case "$lookup":
+                result = index.lookup(query.getOrDefault("code", ""));
+                if (result == null) {
+                    respond(exchange, 404, error("Unknown code " + query.get("code") + " in " + system));
+                    return;
+                }
+                break;
+            case "$validate-code":
+                result = index.validateCode(query.getOrDefault("code", ""), query.get("display"));
+                break;
+            case "$subsumes":
+                result = index.subsumesParameters(query.getOrDefault("codeA", ""), query.getOrDefault("codeB", ""));
+                break;
+            default:
+                respond(exchange, 404, error("Unknown operation " + operation));
+                return;
+            }
+            byte[] body = fhirContext.newJsonParser().encodeResourceToString(result).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/fhir+json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, error(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private TerminologyIndex findIndex(String system, String version) {
+        TerminologyIndex found = null;
+        Instant foundFinished = null;
+        for (Job job : jobs.values()) {
+            TerminologyIndex index = job.index;
+            Instant finished = job.finished;
+            if (index != null && finished != null && system.equals(index.getUrl())
+                    && (version == null || version.equals(index.getVersion()))
+                    && (found == null || finished.isAfter(foundFinished))) {
+                found = index;
+                foundFinished = finished;
+            }
+        }
+        return found;
+    }
+
+    private void sendExport(HttpExchange exchange, Job job, String name) throws IOException {
+        Export export;
+        try {
+            export = Export.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 404, error("Not found"));
+            return;
+        }
+        if (!job.exports.contains(export)) {
+            respond(exchange, 404, error("Job " + job.id + " was not asked for " + name));
+            return;
+        }
+        sendFile(exchange, job, job.file(export), export.contentType);
+    }
+
+    private void sendFile(HttpExchange exchange, Job job, File file, String contentType) throws IOException {
+        if (job.status != Status.DONE) {
+            respond(exchange, 409, error("Job " + job.id + " is " + job.status));
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, file.length());
+        try (OutputStream out = exchange.getResponseBody()) {
+            Files.copy(file.toPath(), out);
+        }
+    }
+
+    private byte[] status(Job job) throws IOException {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("id", job.id);
+        status.put("status", job.status.name());
+        status.put("concepts", job.concepts.get());
+        status.put("reservedMb", job.reservedMb);
+        status.put("submitted", job.submitted.toString());
+        if (job.started != null) {
+            status.put("started", job.started.toString());
+        }
+        if (job.finished != null) {
+            status.put("finished", job.finished.toString());
+        }
+        if (job.error != null) {
+            status.put("error", job.error);
+        }
+        if (job.status == Status.DONE) {
+            status.put("result", "/jobs/" + job.id + "/result");
+            Map<String, String> exports = new LinkedHashMap<>();
+            for (Export export : job.exports) {
+                exports.put(export.toCode(), "/jobs/" + job.id + "/" + export.toCode());
+            }
+            if (!exports.isEmpty()) {
+                status.put("exports", exports);
+            }
+        }
+        if (job.index != null) {
+            status.put("system", job.index.getUrl());
+        }
+        return mapper.writeValueAsBytes(status);
+    }
+
+    private static byte[] error(String message) throws IOException {
+        return mapper.writeValueAsBytes(Collections.singletonMap("error", message));
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    static Map<String, String> parseQuery(String query) {
+        Map<String, String> result = new HashMap<>();
+        if (query == null) {
+            return result;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            result.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+
+    private static void deleteRecursively(File dir) throws IOException {
+        if (!dir.exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+}
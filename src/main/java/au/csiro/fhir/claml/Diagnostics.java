@@ -0,0 +1,248 @@
+package au.csiro.fhir.claml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Collects the issues found while converting a classification. Rather than logging every
+ * occurrence, which on a full release with modifiers produces gigabytes of logs, issues are counted
+ * by category and a few examples of each are kept. At the end of a conversion a single summary is
+ * logged, and a report can be written as JSON.
+ * <p>
+ * Individual events are only logged if asked for, and their messages are only built then. Events
+ * may be recorded from several threads at once.
+ */
+public class Diagnostics {
+
+    private static final Logger log = LoggerFactory.getLogger(Diagnostics.class);
+
+    /**
+     * The number of examples kept for each category.
+     */
+    static final int SAMPLE_SIZE = 10;
+
+    public enum Level {
+        INFO, WARN, ERROR
+    }
+
+    /**
+     * The kinds of issue. The subject of an event is the code of the class or modifier class it
+     * was found on, unless the description says otherwise.
+     */
+    public enum Category {
+        EXCLUDED_CLASS_KIND(Level.INFO, "Classes skipped because their kind is excluded"),
+        KINDLESS_CLASS(Level.INFO, "Classes without a kind"),
+        KINDLESS_CLASS_SKIPPED(Level.INFO, "Classes skipped because they have no kind"),
+        UNRECOGNISED_CLASS_KIND(Level.WARN, "Classes with an unrecognised kind"),
+        UNEXPECTED_RUBRIC_KIND(Level.WARN, "Rubrics with an unexpected kind"),
+        MULTIPLE_LABELS(Level.WARN, "Display or definition rubrics with more than one label"),
+        MULTIPLE_DISPLAY_RUBRICS(Level.WARN, "Classes with more than one rubric of the display rubric kind"),
+        EMPTY_LABEL(Level.WARN, "Empty labels skipped, by rubric id"),
+        MISSING_CODE(Level.WARN, "Classes without a code"),
+        MISSING_DISPLAY(Level.WARN, "Concepts without a display, given their code as display"),
+        DUPLICATE_CODE(Level.ERROR, "Classes declared more than once"),
+        UNRECOGNISED_TERM_CLASS(Level.WARN, "Term elements with an unrecognised class, by Term class"),
+        UNSUPPORTED_LABEL_CONTENT(Level.WARN, "Label content rendered as its element name, by element"),
+        MODIFIERS_ON_NON_LEAF(Level.INFO, "Non-leaf classes whose modifiers were applied to their leaf descendants"),
+        EXCLUDED_MODIFIER(Level.INFO, "Modifiers not applied to a class because of an ExcludeModifier"),
+        PRECEDING_MODIFIER_EXCLUSION(Level.INFO, "Modifier classes not applied to a code because of an excludeOnPrecedingModifier"),
+        MODIFIED_CODE_EXISTS(Level.WARN, "Modifier-generated codes skipped because they are declared classes"),
+        MODIFIER_WITHOUT_CLASSES(Level.WARN, "Modifiers without modifier classes, by modifier"),
+        MALFORMED_EXCLUSION(Level.WARN, "Malformed excludeOnPrecedingModifier metas ignored");
+
+        private final Level level;
+        private final String description;
+
+        Category(Level level, String description) {
+            this.level = level;
+            this.description = description;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * @return The name used in reports, e.g. missing-display.
+         */
+        public String toCode() {
+            return name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    private static final Category[] CATEGORIES = Category.values();
+
+    /**
+     * Logs every event as it is recorded and collects nothing, for components used on their own
+     * rather than as part of a conversion.
+     */
+    static final Diagnostics LOGGING = new Diagnostics(true, false);
+
+    private final boolean logEvents;
+    private final boolean collect;
+    private final AtomicLongArray counts = new AtomicLongArray(CATEGORIES.length);
+    private final List<List<String>> samples = new ArrayList<>(CATEGORIES.length);
+
+    public Diagnostics() {
+        this(false);
+    }
+
+    /**
+     * @param logEvents true to also log every event as it is recorded.
+     */
+    public Diagnostics(boolean logEvents) {
+        this(logEvents, true);
+    }
+
+    private Diagnostics(boolean logEvents, boolean collect) {
+        this.logEvents = logEvents;
+        this.collect = collect;
+        for (int i = 0; i < CATEGORIES.length; i++) {
+            samples.add(new ArrayList<>(SAMPLE_SIZE));
+        }
+    }
+
+    public void record(Category category, String subject) {
+        record(category, subject, null);
+    }
+
+    /**
+     * @param detail More about the event, only used when it is logged, or null.
+     */
+    public void record(Category category, String subject, String detail) {
+        if (collect && counts.incrementAndGet(category.ordinal()) <= SAMPLE_SIZE) {
+            List<String> sample = samples.get(category.ordinal());
+            synchronized (sample) {
+                sample.add(subject);
+            }
+        }
+        if (logEvents) {
+            logEvent(category, subject, detail);
+        }
+    }
+
+    private static void logEvent(Category category, String subject, String detail) {
+        switch (category.getLevel()) {
+        case INFO:
+            if (log.isInfoEnabled()) {
+                log.info(message(category, subject, detail));
+            }
+            break;
+        case WARN:
+            if (log.isWarnEnabled()) {
+                log.warn(message(category, subject, detail));
+            }
+            break;
+        case ERROR:
+            log.error(message(category, subject, detail));
+            break;
+        }
+    }
+
+    private static String message(Category category, String subject, String detail) {
+        return category.getDescription() + ": " + subject + (detail != null ? " (" + detail + ")" : "");
+    }
+
+    public long getCount(Category category) {
+        return counts.get(category.ordinal());
+    }
+
+    /**
+     * @return The first subjects recorded in the category, at most {@value #SAMPLE_SIZE}.
+     */
+    public List<String> getSamples(Category category) {
+        List<String> sample = samples.get(category.ordinal());
+        synchronized (sample) {
+            return new ArrayList<>(sample);
+        }
+    }
+
+    /**
+     * @return The total number of events recorded.
+     */
+    public long getTotal() {
+        long total = 0;
+        for (int i = 0; i < CATEGORIES.length; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Logs the number of events in every category that has any, with examples, as a single message.
+     * It is logged as a warning if any category is a warning or an error.
+     */
+    public void logSummary() {
+        if (getTotal() == 0) {
+            return;
+        }
+        StringBuilder summary = new StringBuilder("Conversion diagnostics:");
+        boolean warn = false;
+        for (Category category : CATEGORIES) {
+            long count = getCount(category);
+            if (count == 0) {
+                continue;
+            }
+            warn |= category.getLevel() != Level.INFO;
+            summary.append("\n  ").append(category.getLevel()).append(' ').append(category.getDescription())
+                    .append(": ").append(count).append(", e.g. ").append(String.join(", ", getSamples(category)));
+            if (count > SAMPLE_SIZE) {
+                summary.append(", ...");
+            }
+        }
+        if (warn) {
+            log.warn(summary.toString());
+        } else {
+            log.info(summary.toString());
+        }
+    }
+
+    /**
+     * @return The counts and examples of the categories that have any events, by category code, in
+     * a form that can be serialised as JSON.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> categories = new LinkedHashMap<>();
+        for (Category category : CATEGORIES) {
+            long count = getCount(category);
+            if (count > 0) {
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("level", category.getLevel().name());
+                entry.put("description", category.getDescription());
+                entry.put("count", count);
+                entry.put("examples", getSamples(category));
+                categories.put(category.toCode(), entry);
+            }
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("total", getTotal());
+        result.put("categories", categories);
+        return result;
+    }
+
+    /**
+     * Writes {@link #toMap()} as JSON. The stream is not closed.
+     */
+    public void write(OutputStream out) throws IOException {
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT)
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                .writeValue(out, toMap());
+    }
+
+}
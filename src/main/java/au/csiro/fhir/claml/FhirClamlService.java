@@ -2,24 +2,29 @@ package au.csiro.fhir.claml;
 
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.stream.Collectors;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParserFactory;
-import javax.xml.transform.sax.SAXSource;
+import javax.xml.stream.XMLStreamException;
 
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r4.model.CodeSystem;
@@ -33,34 +38,26 @@ import org.hl7.fhir.r4.model.CodeSystem.PropertyType;
 import org.hl7.fhir.r4.model.CodeType;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.StringType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
 
+import au.csiro.fhir.claml.ConversionOptions.HierarchyOutput;
+import au.csiro.fhir.claml.RubricRoleTable.Role;
 import au.csiro.fhir.claml.model.claml.ClaML;
 import au.csiro.fhir.claml.model.claml.Class;
 import au.csiro.fhir.claml.model.claml.ClassKind;
-import au.csiro.fhir.claml.model.claml.ExcludeModifier;
-import au.csiro.fhir.claml.model.claml.Fragment;
 import au.csiro.fhir.claml.model.claml.Identifier;
 import au.csiro.fhir.claml.model.claml.Label;
-import au.csiro.fhir.claml.model.claml.ListItem;
-import au.csiro.fhir.claml.model.claml.Meta;
 import au.csiro.fhir.claml.model.claml.ModifiedBy;
-import au.csiro.fhir.claml.model.claml.Modifier;
-import au.csiro.fhir.claml.model.claml.ModifierClass;
-import au.csiro.fhir.claml.model.claml.Para;
-import au.csiro.fhir.claml.model.claml.Reference;
 import au.csiro.fhir.claml.model.claml.Rubric;
 import au.csiro.fhir.claml.model.claml.RubricKind;
 import au.csiro.fhir.claml.model.claml.SubClass;
 import au.csiro.fhir.claml.model.claml.SuperClass;
-import au.csiro.fhir.claml.model.claml.Term;
 import au.csiro.fhir.claml.model.claml.Title;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.DataFormatException;
@@ -70,110 +67,453 @@ public class FhirClamlService {
 
 	  @Autowired
 	  private FhirContext context;
-	  
 
-	
+	  @Autowired
+	  private JAXBContext jaxbContext;
+
+	  private LabelRenderer labelRenderer = new PlainTextLabelRenderer();
+
     private static final Logger log = LoggerFactory.getLogger(FhirClamlService.class);
 
-    String claml2fhir(File clamlFile,
-                      List<String> displayRubrics,
-                      String definitionRubric,
-                      List<String> designationRubrics,
-                      List<String> excludeClassKind,
-                      Boolean excludeKindlessClasses,
-                      String hierarchyMeaning,
-                      String id,
-                      String url,
-                      String valueSet,
-                      String content,
-                      boolean versionNeeded,
-                      Boolean applyModifiers,
-                      Boolean experimental,
-                      String status,
-                      File output) throws DataFormatException, IOException, ParserConfigurationException, SAXException {
+    /**
+     * The number of classes read ahead and converted together when converting in parallel.
+     */
+    private static final int PARALLEL_CHUNK_SIZE = 4096;
+
+    /**
+     * The number of classes converted by one fork-join task.
+     */
+    private static final int PARALLEL_TASK_SIZE = 64;
+
+    String claml2fhir(File clamlFile, ConversionOptions options, File output) throws DataFormatException, IOException, ParserConfigurationException, SAXException {
+        return claml2fhir(clamlFile, options, output, null);
+    }
+
+    /**
+     * @param listener A sink that is also given the output as it is produced, e.g. to follow the
+     * progress of the conversion, or null for none. If a snapshot turns out to be corrupt part way,
+     * the listener is started again with the conversion of the ClaML file.
+     */
+    String claml2fhir(File clamlFile, ConversionOptions options, File output, ConceptSink listener) throws DataFormatException, IOException, ParserConfigurationException, SAXException {
 
+        Diagnostics diagnostics = new Diagnostics(options.isLogDiagnostics());
+        RunReport report = newRunReport(clamlFile, diagnostics);
         try {
-            JAXBContext jaxbContext = JAXBContext.newInstance(ClaML.class);
+            if (output.getParentFile() != null) {
+            	output.getParentFile().mkdirs();
+            }
+            ClamlSnapshotCache cache = null;
+            File snapshot = null;
+            if (options.getSnapshotDir() != null) {
+                cache = new ClamlSnapshotCache(options.getSnapshotDir());
+                snapshot = cache.getSnapshotFile(clamlFile, options.getInputEntry());
+                if (snapshot.isFile()) {
+                    if (convertSnapshot(snapshot, options, output, listener, diagnostics, report)) {
+                        writeReports(diagnostics, report, options, output);
+                        return "";
+                    }
+                    // Nothing that was counted in the snapshot carries over
+                    diagnostics = new Diagnostics(options.isLogDiagnostics());
+                    report = newRunReport(clamlFile, diagnostics);
+                }
+            }
+            // A snapshot is reused with other options, so it has to hold everything
+            ClamlFilter filter = cache != null ? ClamlFilter.NONE : new ClamlFilter(options);
+            try (ClamlReader reader = new ClamlReader(jaxbContext, ClamlInput.open(clamlFile, options.getInputEntry()), filter)) {
+                if (cache != null) {
+                    try (ClamlSnapshotCache.Recording recording = cache.record(snapshot, reader.readHeader(), reader)) {
+                        convert(reader.readHeader(), timed(recording, options, report), options, output, listener,
+                                diagnostics, report);
+                        recording.commit();
+                    }
+                } else {
+                    convert(reader.readHeader(), timed(reader, options, report), options, output, listener,
+                            diagnostics, report);
+                }
+                report.addClassesExcluded(reader.getSkippedClasses());
+            }
 
-            if (designationRubrics == null) {
-                designationRubrics = Collections.emptyList();
+        } catch (JAXBException | XMLStreamException e) {
+            throw new IOException("Could not read ClaML file " + clamlFile, e);
+        }
+        writeReports(diagnostics, report, options, output);
+
+
+        return "";
+
+    }
+
+    private static RunReport newRunReport(File clamlFile, Diagnostics diagnostics) {
+        RunReport report = new RunReport();
+        report.setInputBytes(clamlFile.length());
+        report.setDiagnostics(diagnostics);
+        return report;
+    }
+
+    private static void writeReports(Diagnostics diagnostics, RunReport report, ConversionOptions options, File output)
+            throws IOException {
+        if (options.getDiagnosticsOutput() != null) {
+            try (AtomicOutputFile file = new AtomicOutputFile(options.getDiagnosticsOutput())) {
+                diagnostics.write(file.getOutputStream());
+                file.commit();
             }
-            if (excludeClassKind == null) {
-                excludeClassKind = Collections.emptyList();
+        }
+        if (options.isRunReport()) {
+            report.finish();
+            File reportFile = getRunReportFile(output);
+            try (AtomicOutputFile file = new AtomicOutputFile(reportFile)) {
+                report.write(file.getOutputStream());
+                file.commit();
             }
-            
-            SAXParserFactory spf = SAXParserFactory.newInstance();
-            spf.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
-            spf.setFeature("http://xml.org/sax/features/validation", false);
-
-            XMLReader xmlReader = spf.newSAXParser().getXMLReader();
-            InputSource inputSource = new InputSource(
-                    new FileReader(clamlFile));
-            SAXSource source = new SAXSource(xmlReader, inputSource);
-            
-            Unmarshaller jaxbUnmarshaller = jaxbContext.createUnmarshaller();
-            ClaML claml = (ClaML) jaxbUnmarshaller.unmarshal(source);
+            log.info("Wrote run report to " + reportFile);
+        }
+    }
 
-            CodeSystem cs = claml2FhirObject(claml, displayRubrics, definitionRubric, designationRubrics, excludeClassKind,
-                    excludeKindlessClasses, hierarchyMeaning, id, url, valueSet, content, versionNeeded, applyModifiers, experimental, status);
+    /**
+     * @return The file the run report of a conversion to the output is written to.
+     */
+    static File getRunReportFile(File output) {
+        return new File(output.getPath() + ".report.json");
+    }
 
-            if (output.getParentFile() != null) {
-            	output.getParentFile().mkdirs();
+    /**
+     * Timing every class and concept costs a little, so it is only done for a run report.
+     */
+    private static Iterator<Class> timed(Iterator<Class> classes, ConversionOptions options, RunReport report) {
+        return options.isRunReport() ? report.time(classes) : classes;
+    }
+
+    /**
+     * Converts a previously saved snapshot instead of the ClaML file.
+     *
+     * @return false if the snapshot could not be read, in which case it is deleted and nothing has
+     * been committed to the output. The listener may have been given part of the output.
+     */
+    private boolean convertSnapshot(File snapshot, ConversionOptions options, File output, ConceptSink listener,
+            Diagnostics diagnostics, RunReport report) throws IOException {
+        Exception corruption = null;
+        try (ClamlSnapshotReader reader = new ClamlSnapshotReader(new FileInputStream(snapshot))) {
+            ClaML header = null;
+            try {
+                header = reader.readHeader();
+            } catch (IOException e) {
+                corruption = e;
+            }
+            if (header != null) {
+                log.info("Reading parsed ClaML snapshot " + snapshot);
+                try {
+                    convert(header, timed(new SnapshotClasses(reader), options, report), options, output, listener,
+                            diagnostics, report);
+                    return true;
+                } catch (CorruptSnapshotException e) {
+                    // The output files, split parts included, are only committed once complete, so
+                    // they are discarded. Chunks already uploaded are in the progress file, and the
+                    // retry from the XML skips them as their content is the same
+                    corruption = (Exception) e.getCause();
+                }
             }
-            context.newJsonParser().encodeResourceToWriter(cs, new FileWriter(output));
+        }
+        log.warn("Ignoring unreadable ClaML snapshot " + snapshot + ": " + corruption.getLocalizedMessage());
+        Files.deleteIfExists(snapshot.toPath());
+        return false;
+    }
 
+    /**
+     * Thrown when the classes of a snapshot cannot be read, to tell it from the failures of the
+     * conversion itself.
+     */
+    private static class CorruptSnapshotException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
 
-        } catch (JAXBException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+        CorruptSnapshotException(RuntimeException cause) {
+            super(cause.getCause() instanceof IOException ? cause.getCause() : cause);
         }
+    }
 
+    /**
+     * The classes of a snapshot, with any failure to read them as a {@link CorruptSnapshotException}.
+     */
+    private static class SnapshotClasses implements Iterator<Class> {
+        private final ClamlSnapshotReader reader;
 
-        return "";
+        SnapshotClasses(ClamlSnapshotReader reader) {
+            this.reader = reader;
+        }
 
+        @Override
+        public boolean hasNext() {
+            try {
+                return reader.hasNext();
+            } catch (RuntimeException e) {
+                throw new CorruptSnapshotException(e);
+            }
+        }
+
+        @Override
+        public Class next() {
+            try {
+                return reader.next();
+            } catch (RuntimeException e) {
+                throw new CorruptSnapshotException(e);
+            }
+        }
+    }
+
+    private void convert(ClaML header, Iterator<Class> classes, ConversionOptions options, File output, ConceptSink listener,
+            Diagnostics diagnostics, RunReport report) throws IOException {
+        if (options.isIntervalProperties() && options.isStreamOutput()) {
+            log.warn("Interval properties are only added when the code system is built in memory, not when it is streamed");
+        }
+        if (options.getHierarchyOutput() == HierarchyOutput.NESTED && (options.isStreamOutput() || options.getSplitSize() > 0)) {
+            log.warn("Concepts can only be nested when the code system is built in memory: writing parent properties instead");
+        }
+        if (options.getUploadUrl() != null && options.getUploadMode() != FhirUploader.Mode.SINGLE
+                && (options.isIntervalProperties() || options.getHierarchyOutput() == HierarchyOutput.NESTED)) {
+            log.warn("Chunks are uploaded as the concepts are converted, so they have neither interval properties nor "
+                    + "nested concepts: upload in single mode to send the code system as it is written");
+        }
+        if (options.getSplitSize() > 0) {
+            try (ConceptSink writer = new SplitCodeSystemWriter(context, output, options.getSplitSize())) {
+                convertWithExports(header, classes, options, output, listener, diagnostics, report, writer);
+            }
+        } else if (options.isStreamOutput()) {
+            try (AtomicOutputFile file = new AtomicOutputFile(output)) {
+                try (ConceptSink writer = new StreamingCodeSystemWriter(context, file.getOutputStream())) {
+                    convertWithExports(header, classes, options, output, listener, diagnostics, report, writer);
+                }
+                file.commit();
+            }
+        } else {
+            CodeSystemBuilder builder = new CodeSystemBuilder();
+            convertWithExports(header, classes, options, output, listener, diagnostics, report, builder);
+            CodeSystem cs = builder.getCodeSystem();
+            report.enter(RunReport.Phase.TRANSFORM);
+            finishInMemory(cs, options);
+            report.enter(RunReport.Phase.ENCODE);
+            long start = System.nanoTime();
+            try (AtomicOutputFile file = new AtomicOutputFile(output)) {
+                try (Writer writer = new OutputStreamWriter(file.getOutputStream(), StandardCharsets.UTF_8)) {
+                    context.newJsonParser().encodeResourceToWriter(cs, writer);
+                }
+                file.commit();
+            }
+            log.info("Encoded " + cs.getCount() + " concepts with hierarchy as " + options.getHierarchyOutput()
+                    + " in " + (System.nanoTime() - start) / 1000000 + " ms: " + output.length() + " bytes");
+            if (uploadsFinishedCodeSystem(options)) {
+                new FhirUploader(context, options, null).upload(cs);
+            }
+        }
+    }
+
+    /**
+     * A code system built in memory is uploaded in a single request once it is finished, so that the
+     * server gets the same code system as the output, with interval properties and nested concepts.
+     */
+    private static boolean uploadsFinishedCodeSystem(ConversionOptions options) {
+        return options.getUploadUrl() != null && options.getUploadMode() == FhirUploader.Mode.SINGLE
+                && !options.isStreamOutput() && options.getSplitSize() <= 0;
+    }
+
+    /**
+     * Adds what can only be added once all the concepts of a code system built in memory are known.
+     */
+    private void finishInMemory(CodeSystem cs, ConversionOptions options) {
+        if (options.isIntervalProperties()) {
+            addIntervalProperties(cs);
+        }
+        if (options.getHierarchyOutput() == HierarchyOutput.NESTED) {
+            nestConcepts(cs);
+        }
+    }
+
+    /**
+     * Adds the interval labels of the hierarchy to every concept, as described in
+     * {@link IntervalIndexFile}. They can only be computed once all the concepts are known.
+     */
+    private void addIntervalProperties(CodeSystem cs) {
+        TerminologyIndex index = TerminologyIndexBuilder.index(cs);
+        cs.addProperty().setCode("intervalStart").setType(PropertyType.INTEGER)
+                .setDescription("Pre-order number of the concept in the tree of first parents");
+        cs.addProperty().setCode("intervalEnd").setType(PropertyType.INTEGER)
+                .setDescription("Highest intervalStart of the concept's subtree in the tree of first parents");
+        cs.addProperty().setCode("depth").setType(PropertyType.INTEGER)
+                .setDescription("Number of first parents between the concept and its root");
+        for (ConceptDefinitionComponent concept : cs.getConcept()) {
+            String code = concept.getCode();
+            concept.addProperty().setCode("intervalStart").setValue(new IntegerType(index.getIntervalStart(code)));
+            concept.addProperty().setCode("intervalEnd").setValue(new IntegerType(index.getIntervalEnd(code)));
+            concept.addProperty().setCode("depth").setValue(new IntegerType(index.getDepth(code)));
+        }
+    }
+
+    private static ConceptSink timed(ConceptSink sink, ConversionOptions options, RunReport report) {
+        return options.isRunReport() ? report.time(sink) : sink;
+    }
+
+    /**
+     * Nests every concept under its first parent and removes the parent property that the nesting
+     * replaces. A concept with more than one parent is only nested once, because codes have to be
+     * unique in a code system, and keeps parent properties for its other parents. Concepts in a
+     * cycle are nested as described in {@link TerminologyIndex}, so the nesting never has a cycle.
+     * <p>
+     * The concepts are assigned in a single pass over the hierarchy index, in their original order.
+     */
+    static void nestConcepts(CodeSystem cs) {
+        TerminologyIndex index = TerminologyIndexBuilder.index(cs);
+        List<ConceptDefinitionComponent> roots = new ArrayList<>();
+        for (int id = 0; id < index.size(); id++) {
+            ConceptDefinitionComponent concept = index.concept(id);
+            if (index.depth(id) == 0) {
+                roots.add(concept);
+                continue;
+            }
+            String parent = index.code(index.parent(id, 0));
+            concept.getProperty().removeIf(p -> p.getCode().equals("parent") && parent.equals(p.getValue().primitiveValue()));
+            index.concept(index.parent(id, 0)).addConcept(concept);
+        }
+        cs.setConcept(roots);
+    }
+
+    /**
+     * Converts into the sink, and in the same pass into the NDJSON export, the FHIR server, the
+     * interval index and the listener if they were asked for. A code system built in memory is
+     * uploaded later, see {@link #uploadsFinishedCodeSystem(ConversionOptions)}.
+     */
+    private void convertWithExports(ClaML header, Iterator<Class> classes, ConversionOptions options, File output,
+            ConceptSink listener, Diagnostics diagnostics, RunReport report, ConceptSink sink) throws IOException {
+        boolean upload = options.getUploadUrl() != null && !uploadsFinishedCodeSystem(options);
+        if (options.getNdjsonOutput() == null && !upload && options.getIntervalOutput() == null
+                && options.getClosureOutput() == null && listener == null) {
+            claml2Fhir(header, classes, options, timed(sink, options, report), diagnostics, report);
+            return;
+        }
+        List<ConceptSink> exports = new ArrayList<>();
+        AtomicOutputFile ndjsonFile = null;
+        try {
+            if (options.getNdjsonOutput() != null) {
+                ndjsonFile = new AtomicOutputFile(options.getNdjsonOutput());
+                exports.add(new NdjsonConceptWriter(ndjsonFile.getOutputStream()));
+            }
+            if (upload) {
+                exports.add(new FhirUploader(context, options, new File(output.getAbsolutePath() + ".upload")));
+            }
+            TerminologyIndexBuilder hierarchy = null;
+            if (options.getIntervalOutput() != null || options.getClosureOutput() != null) {
+                hierarchy = new TerminologyIndexBuilder(false);
+                exports.add(hierarchy);
+            }
+            if (listener != null) {
+                exports.add(listener);
+            }
+            try (ConceptSink tee = new TeeConceptSink(exports.toArray(new ConceptSink[0]))) {
+                claml2Fhir(header, classes, options, timed(new TeeConceptSink(sink, tee), options, report), diagnostics, report);
+            }
+            if (options.getIntervalOutput() != null) {
+                try (AtomicOutputFile file = new AtomicOutputFile(options.getIntervalOutput())) {
+                    IntervalIndexFile.write(hierarchy.getIndex(), file.getOutputStream());
+                    file.commit();
+                }
+            }
+            if (options.getClosureOutput() != null) {
+                try (AtomicOutputFile file = new AtomicOutputFile(options.getClosureOutput())) {
+                    long rows = new ClosureTableWriter(hierarchy.getIndex()).write(file.getOutputStream(),
+                            ClosureTableWriter.Format.of(options.getClosureOutput()));
+                    file.commit();
+                    log.info("Wrote " + rows + " closure rows to " + options.getClosureOutput());
+                }
+            }
+            if (ndjsonFile != null) {
+                ndjsonFile.commit();
+            }
+        } finally {
+            if (ndjsonFile != null) {
+                ndjsonFile.close();
+            }
+        }
     }
 
     protected CodeSystem claml2FhirObject(ClaML claml, List<String> displayRubrics, String definitionRubric,
             List<String> designationRubrics, List<String> excludeClassKind, Boolean excludeKindlessClasses,
             String hierarchyMeaning, String id, String url, String valueSet, String content,
             boolean versionNeeded, Boolean applyModifiers, Boolean experimental, String status) {
-        
-        // Default values
-        if (displayRubrics == null || displayRubrics.isEmpty()) {
-            displayRubrics = new ArrayList<String>();
-            displayRubrics.add("preferred");
-        }
-        if (definitionRubric == null) {
-            definitionRubric = "definition";
-        }
-        if (hierarchyMeaning == null) {
-            hierarchyMeaning = "is-a";
-        }
-        if (content == null) {
-            content = "complete";
+        return claml2FhirObject(claml, new ConversionOptions()
+                .setDisplayRubrics(displayRubrics)
+                .setDefinitionRubric(definitionRubric)
+                .setDesignationRubrics(designationRubrics)
+                .setExcludeClassKinds(excludeClassKind)
+                .setExcludeKindlessClasses(excludeKindlessClasses)
+                .setHierarchyMeaning(hierarchyMeaning)
+                .setId(id)
+                .setUrl(url)
+                .setValueSet(valueSet)
+                .setContent(content)
+                .setVersionNeeded(versionNeeded)
+                .setApplyModifiers(applyModifiers)
+                .setExperimental(experimental)
+                .setStatus(status));
+    }
+
+    protected CodeSystem claml2FhirObject(ClaML claml, ConversionOptions options) {
+        CodeSystemBuilder builder = new CodeSystemBuilder();
+        try {
+            claml2Fhir(claml, claml.getClazz().iterator(), options, builder);
+        } catch (IOException e) {
+            // The builder does not do any I/O
+            throw new UncheckedIOException(e);
         }
-        
+        finishInMemory(builder.getCodeSystem(), options);
+        return builder.getCodeSystem();
+    }
+
+    /**
+     * Transforms a ClaML classification into a code system, passing each concept to the sink as
+     * soon as it has been produced.
+     *
+     * @param claml The ClaML header sections. Any classes it holds are ignored.
+     * @param classes The classes of the classification, in document order.
+     */
+    protected void claml2Fhir(ClaML claml, Iterator<Class> classes, ConversionOptions options, ConceptSink sink) throws IOException {
+        claml2Fhir(claml, classes, options, sink, new Diagnostics(options.isLogDiagnostics()));
+    }
+
+    /**
+     * Converts as {@link #claml2Fhir(ClaML, Iterator, ConversionOptions, ConceptSink)} does, recording
+     * the issues found into the diagnostics and logging their summary at the end.
+     */
+    protected void claml2Fhir(ClaML claml, Iterator<Class> classes, ConversionOptions options, ConceptSink sink,
+            Diagnostics diagnostics) throws IOException {
+        claml2Fhir(claml, classes, options, sink, diagnostics, new RunReport());
+    }
+
+    /**
+     * Converts as {@link #claml2Fhir(ClaML, Iterator, ConversionOptions, ConceptSink, Diagnostics)}
+     * does, charging the time to the phases of the report and counting what is excluded and
+     * generated. The output is still in {@link RunReport.Phase#ENCODE} when this returns.
+     */
+    protected void claml2Fhir(ClaML claml, Iterator<Class> classes, ConversionOptions options, ConceptSink sink,
+            Diagnostics diagnostics, RunReport report) throws IOException {
+        report.enter(RunReport.Phase.TRANSFORM);
         CodeSystem cs = new CodeSystem();
-        cs.setStatus(PublicationStatus.fromCode(status));
-        cs.setExperimental(experimental.booleanValue());
+        cs.setStatus(PublicationStatus.fromCode(options.getStatus()));
+        cs.setExperimental(options.isExperimental());
         try {
-            cs.setContent(CodeSystemContentMode.fromCode(content));
-            cs.setHierarchyMeaning(CodeSystemHierarchyMeaning.fromCode(hierarchyMeaning));
+            cs.setContent(CodeSystemContentMode.fromCode(options.getContent()));
+            cs.setHierarchyMeaning(CodeSystemHierarchyMeaning.fromCode(options.getHierarchyMeaning()));
         } catch (FHIRException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
         }  //TODO
 
-        if (id != null) {
-            cs.setId(id);
+        if (options.getId() != null) {
+            cs.setId(options.getId());
         }
 
-        if (url != null) {
-            cs.setUrl(url);
+        if (options.getUrl() != null) {
+            cs.setUrl(options.getUrl());
         }
 
-        if (valueSet != null) {
-            cs.setValueSet(valueSet);
+        if (options.getValueSet() != null) {
+            cs.setValueSet(options.getValueSet());
         }
 
         if (claml.getIdentifier().size() > 1) {
@@ -182,7 +522,7 @@ public class FhirClamlService {
         for  (Identifier ident : claml.getIdentifier()) {
             cs.addIdentifier(new org.hl7.fhir.r4.model.Identifier().setSystem(ident.getAuthority()).setValue(ident.getUid()));
         }
-        cs.setVersionNeeded(versionNeeded);
+        cs.setVersionNeeded(options.isVersionNeeded());
 
         Title title = claml.getTitle();
         if (title != null) {
@@ -205,11 +545,10 @@ public class FhirClamlService {
 //                }
         }
 
+        RubricRoleTable roles = new RubricRoleTable(claml, options);
         cs.addProperty().setCode("kind").setType(PropertyType.CODE);
         for (RubricKind rk : claml.getRubricKinds().getRubricKind()) {
-            if (! definitionRubric.equals(rk.getName()) &&
-                    !displayRubrics.contains(rk.getName()) &&
-                    !designationRubrics.contains(rk.getName())) {
+            if (roles.getRole(rk) == Role.PROPERTY) {
                 PropertyComponent p = cs.addProperty();
                 p.setCode(rk.getName());
                 p.setType(PropertyType.STRING);
@@ -226,307 +565,380 @@ public class FhirClamlService {
             }
         }
 
-        Integer count = 0;
-        
-        Map<String,ConceptDefinitionComponent> concepts = new HashMap<>();
-        Map<String,List<ModifiedBy>> modifiedBy = new HashMap<>();
-        Map<String,Set<ExcludeModifier>> excludeModifiers = new HashMap<>();
-        Map<String,Set<String>> descendents = new HashMap<>();
-
-        for (Class c : claml.getClazz()) {
-            if (c.getKind() != null && excludeClassKind.contains(getClassKindName(c.getKind()))) {
-                log.info("Concept " + c.getCode() + " has excluded kind " + getClassKindName(c.getKind()) + ": skipping");
-                continue;
-            }
-            if (concepts.containsKey(c.getCode()) ) {
-                log.error("A concept already exists with code " + c);
-            }
-            ConceptDefinitionComponent concept = cs.addConcept().setCode(c.getCode());
-            concepts.put(c.getCode(), concept);
-            modifiedBy.put(c.getCode(),  new ArrayList<>());
-            if (!descendents.containsKey(c.getCode()) ) {
-                descendents.put(c.getCode(), new HashSet<>());
+        sink.start(cs);
+
+        ConversionState state = new ConversionState(new ModifierIndex(claml.getModifierClass(), roles, labelRenderer, diagnostics), sink, diagnostics);
+        if (options.isParallel()) {
+            convertInParallel(classes, options, roles, state);
+        } else {
+            while (classes.hasNext()) {
+                Class c = classes.next();
+                ConceptDefinitionComponent concept = convertClass(c, options, roles, diagnostics);
+                if (concept != null) {
+                    state.add(c, concept);
+                } else {
+                    state.excluded++;
+                }
             }
-            count++;
-            if (c.getKind() != null) {
-                if (getClassKindName(c.getKind()) != null) {
-                    concept.addProperty().setCode("kind").setValue(new CodeType(getClassKindName(c.getKind())));
-               } else {
-                    log.warn("Unrecognised class kind on class " + c.getCode() + ": " + c.getKind());
+        }
+        int count = state.count;
+        report.addClassesExcluded(state.excluded);
+
+        if (options.isApplyModifiers()) {
+            report.enter(RunReport.Phase.MODIFIERS);
+            ClamlHierarchy hierarchy = state.hierarchy.build();
+            // Modifiers are only applied to leaf classes, so the modifiers of a non-leaf class are
+            // applied to its leaf descendants instead
+            ModifierExpander expander = new ModifierExpander(state.modifierIndex, state.codes, state.displays, sink, diagnostics);
+            BitSet seen = new BitSet(state.codes.size());
+            for (int i = 0; i < state.modifiedCount; i++) {
+                int modified = state.modified[i];
+                if (!hierarchy.isLeaf(modified)) {
+                    diagnostics.record(Diagnostics.Category.MODIFIERS_ON_NON_LEAF, state.codes.code(modified));
                 }
-            } else if (excludeKindlessClasses) {
-                log.info("Concept " + c.getCode() + " has excluded kind " + getClassKindName(c.getKind()) + ": skipping");
-                continue;
+                for (int target : hierarchy.leaves(modified)) {
+                    if (seen.get(target)) {
+                        continue;
+                    }
+                    seen.set(target);
+                    if (!state.isDeclared(target)) {
+                        // Excluded or never declared
+                        continue;
+                    }
+                    int generated = expander.expand(target, getEffectiveModifiers(target, state));
+                    report.addModifierConcepts(generated);
+                    count += generated;
+                }
+            }
+        }
+        
+        report.enter(RunReport.Phase.ENCODE);
+        sink.finish(count);
+        diagnostics.logSummary();
+    }
+
+    /**
+     * Converts one class into a concept, without touching any state shared between classes, so
+     * classes can be converted concurrently.
+     *
+     * @return The concept, or null if the class is excluded.
+     */
+    private ConceptDefinitionComponent convertClass(Class c, ConversionOptions options, RubricRoleTable roles,
+            Diagnostics diagnostics) {
+        String kindName = getClassKindName(c.getKind());
+        if (c.getKind() != null && options.getExcludeClassKinds().contains(kindName)) {
+            diagnostics.record(Diagnostics.Category.EXCLUDED_CLASS_KIND, c.getCode(), kindName);
+            return null;
+        }
+        if (c.getKind() == null && options.isExcludeKindlessClasses()) {
+            diagnostics.record(Diagnostics.Category.KINDLESS_CLASS_SKIPPED, c.getCode());
+            return null;
+        }
+        ConceptDefinitionComponent concept = new ConceptDefinitionComponent().setCode(c.getCode());
+        if (c.getKind() != null) {
+            if (kindName != null) {
+                concept.addProperty().setCode("kind").setValue(new CodeType(kindName));
             } else {
-                log.info("Concept " + c.getCode() + " has no kind.");
+                diagnostics.record(Diagnostics.Category.UNRECOGNISED_CLASS_KIND, c.getCode(), String.valueOf(c.getKind()));
             }
+        } else {
+            diagnostics.record(Diagnostics.Category.KINDLESS_CLASS, c.getCode());
+        }
+        if (options.getHierarchyOutput() == HierarchyOutput.PROPERTIES) {
             for (SubClass sub : c.getSubClass()) {
                 concept.addProperty().setCode("child").setValue(new CodeType(sub.getCode()));
-                descendents.get(c.getCode()).add(sub.getCode());
-                if (descendents.containsKey(sub.getCode()) && !descendents.get(sub.getCode()).isEmpty()) {
-                    descendents.get(c.getCode()).addAll(descendents.get(sub.getCode()));
-                }
             }
-            for (SuperClass sup : c.getSuperClass()) {
-                concept.addProperty().setCode("parent").setValue(new CodeType(sup.getCode()));
-                if (!descendents.containsKey(sup.getCode())) {
-                    descendents.put(sup.getCode(), new HashSet<>());
+        }
+        for (SuperClass sup : c.getSuperClass()) {
+            concept.addProperty().setCode("parent").setValue(new CodeType(sup.getCode()));
+        }
+        @SuppressWarnings("unchecked")
+        List<Rubric>[] displayRubricValues = new List[roles.getDisplayRubricCount()];
+        for (Rubric rubric : c.getRubric()) {
+            Object kind = rubric.getKind();
+            Role role = roles.getRole(kind);
+            if (role == null) {
+                diagnostics.record(Diagnostics.Category.UNEXPECTED_RUBRIC_KIND, c.getCode(), String.valueOf(kind));
+                continue;
+            }
+            switch (role) {
+            case DISPLAY:
+                if (rubric.getLabel().size() > 1) {
+                    diagnostics.record(Diagnostics.Category.MULTIPLE_LABELS, c.getCode(), ((RubricKind) kind).getName());
                 }
-                descendents.get(sup.getCode()).add(c.getCode());
-                if (!descendents.get(c.getCode()).isEmpty()) {
-                    descendents.get(sup.getCode()).addAll(descendents.get(c.getCode()));
+                int priority = roles.getDisplayPriority(kind);
+                if (displayRubricValues[priority] == null) {
+                    displayRubricValues[priority] = new ArrayList<>();
                 }
-            }
-            Map<String,List<Rubric>> displayRubricValues = new HashMap<>();
-            for (Rubric rubric : c.getRubric()) {
-                Object kind = rubric.getKind();
-                if (kind instanceof RubricKind) {
-                    RubricKind rkind = (RubricKind) kind;
-                    if (displayRubrics.contains(rkind.getName())) {
-                        final String value;
-                        if (rubric.getLabel().size() > 1) {
-                            log.warn("Found more than one label on display rubric " + rkind.getName() + " for code " + c.getCode());
-                        }
-                        value = getLabelValue(rubric.getLabel().get(0)).trim();
-                        if (!displayRubricValues.containsKey(rkind.getName())) {
-                        	displayRubricValues.put(rkind.getName(), new ArrayList<>());
-                        }
-                        displayRubricValues.get(rkind.getName()).add(rubric);
-                    } else if (rkind.getName().equals(definitionRubric)) {
-                            final String value;
-                            if (rubric.getLabel().size() > 1) {
-                                log.warn("Found more than one label on definition rubric for code " + c.getCode());
-                            }
-                            value = getLabelValue(rubric.getLabel().get(0)).trim();
-                            concept.setDefinition(value);
-
-                    } else if (designationRubrics.contains(rkind.getName())) {
-                        addDesignationsForRubric(concept, rubric);
-                    } else {
-                        for (Label l : rubric.getLabel()) {
-                            String v = getLabelValue(l).trim();
-                            if (v != null && v.length() > 0) {
-                                ConceptPropertyComponent prop = concept.addProperty();
-                                prop.setCode(rkind.getName());
-                                prop.setValue(new StringType(v));
-                            }
-                        }
+                displayRubricValues[priority].add(rubric);
+                break;
+            case DEFINITION:
+                if (rubric.getLabel().size() > 1) {
+                    diagnostics.record(Diagnostics.Category.MULTIPLE_LABELS, c.getCode(), "definition");
+                }
+                concept.setDefinition(getLabelValue(rubric.getLabel().get(0), diagnostics).trim());
+                break;
+            case DESIGNATION:
+                addDesignationsForRubric(concept, rubric, c.getCode(), diagnostics);
+                break;
+            case PROPERTY:
+                for (Label l : rubric.getLabel()) {
+                    String v = getLabelValue(l, diagnostics).trim();
+                    if (v.length() > 0) {
+                        ConceptPropertyComponent prop = concept.addProperty();
+                        prop.setCode(((RubricKind) kind).getName());
+                        prop.setValue(new StringType(v));
                     }
-                } else {
-                    log.warn("Unexpected rubric kind " + kind);
                 }
+                break;
+            case IGNORED:
+                break;
             }
-            
-            for (String dr : displayRubrics) {
-            	if (!displayRubricValues.containsKey(dr)) {
-            		continue;
-            	}
-        		List<Rubric> values = displayRubricValues.get(dr);
-            	if (!concept.hasDisplay()) {
-            		if (values.size() > 1) {
-            			log.warn("Found multiple display rubrics " + dr + " for code " + c.getCode());
-            		}
-            		Rubric rubric = values.get(0);
-                    String value = getLabelValue(rubric.getLabel().get(0)).trim();
-
-            		concept.setDisplay(value);
-            		if (rubric.getLabel().size() > 1) {
-            			if (log.isWarnEnabled()) {
-                            log.warn("Found more than one label on display rubric " + dr + " for code " + c.getCode());
-            			}
-            			for (int i = 1; i < values.size(); i++) {
-            				addDesignationForLabel(concept, rubric, (RubricKind) rubric.getKind(), rubric.getLabel().get(i));
-            			}
-            		}
-            	} else {
-            		// We've already got a display, dump everything else as a designation
-            		for (Rubric r : values) {
-            			addDesignationsForRubric(concept, r);
-            		}
-            	}
-            }
-
-            if (!concept.hasCode()) {
-                log.warn("Concept " + concept + " has no code!");
-            } else {
-                if (!concept.hasDisplay()) {
-                    log.warn("Concept " + concept.getCode() + " has no display text. Using code as display text");
-                    concept.setDisplay(concept.getCode());
-                    if (!concept.hasDefinition()) {
-                        concept.setDefinition(concept.getCode());
-                    }
-                } else if (!concept.hasDefinition()) {
-                    concept.setDefinition(concept.getDisplay());
+        }
+        
+        for (int priority = 0; priority < displayRubricValues.length; priority++) {
+            List<Rubric> values = displayRubricValues[priority];
+            if (values == null) {
+                continue;
+            }
+            String dr = roles.getDisplayRubric(priority);
+        	if (!concept.hasDisplay()) {
+        		if (values.size() > 1) {
+        			diagnostics.record(Diagnostics.Category.MULTIPLE_DISPLAY_RUBRICS, c.getCode(), dr);
+        		}
+        		Rubric rubric = values.get(0);
+                String value = getLabelValue(rubric.getLabel().get(0), diagnostics).trim();
+
+        		concept.setDisplay(value);
+        		if (rubric.getLabel().size() > 1) {
+        			// Already recorded as multiple labels when the rubric was sorted
+        			for (int i = 1; i < values.size(); i++) {
+        				addDesignationForLabel(concept, rubric, (RubricKind) rubric.getKind(), rubric.getLabel().get(i), diagnostics);
+        			}
+        		}
+        	} else {
+        		// We've already got a display, dump everything else as a designation
+        		for (Rubric r : values) {
+        			addDesignationsForRubric(concept, r, c.getCode(), diagnostics);
+        		}
+        	}
+        }
+
+        if (!concept.hasCode()) {
+            diagnostics.record(Diagnostics.Category.MISSING_CODE, String.valueOf(c.getCode()));
+        } else {
+            if (!concept.hasDisplay()) {
+                diagnostics.record(Diagnostics.Category.MISSING_DISPLAY, concept.getCode());
+                concept.setDisplay(concept.getCode());
+                if (!concept.hasDefinition()) {
+                    concept.setDefinition(concept.getCode());
                 }
+            } else if (!concept.hasDefinition()) {
+                concept.setDefinition(concept.getDisplay());
+            }
+        }
+        return concept;
+    }
+
+    /**
+     * What the conversion collects from the classes, in document order, for the modifier step. Every
+     * per-code structure is an array indexed by the id the code dictionary gives the code.
+     */
+    private static class ConversionState {
+        final CodeDictionary codes = new CodeDictionary();
+        final ClamlHierarchy hierarchy = new ClamlHierarchy(codes);
+        final ModifierIndex modifierIndex;
+        final ConceptSink sink;
+        final Diagnostics diagnostics;
+        // The display of each declared class, null for codes that are only referenced
+        String[] displays = new String[1024];
+        @SuppressWarnings("unchecked")
+        List<ModifiedBy>[] modifiedBy = new List[1024];
+        // The ids of the classes with ModifiedBy elements, in document order
+        int[] modified = new int[64];
+        int modifiedCount;
+        int count;
+        int excluded;
+
+        ConversionState(ModifierIndex modifierIndex, ConceptSink sink, Diagnostics diagnostics) {
+            this.modifierIndex = modifierIndex;
+            this.sink = sink;
+            this.diagnostics = diagnostics;
+        }
+
+        boolean isDeclared(int id) {
+            return id < displays.length && displays[id] != null;
+        }
+
+        void add(Class c, ConceptDefinitionComponent concept) throws IOException {
+            int id = codes.intern(c.getCode());
+            if (isDeclared(id)) {
+                diagnostics.record(Diagnostics.Category.DUPLICATE_CODE, c.getCode());
             }
+            for (SubClass sub : c.getSubClass()) {
+                hierarchy.addEdge(id, codes.intern(sub.getCode()));
+            }
+            for (SuperClass sup : c.getSuperClass()) {
+                hierarchy.addEdge(codes.intern(sup.getCode()), id);
+            }
+            count++;
+            if (id >= displays.length) {
+                int length = Math.max(id + 1, displays.length * 2);
+                displays = Arrays.copyOf(displays, length);
+                modifiedBy = Arrays.copyOf(modifiedBy, length);
+            }
+            displays[id] = concept.getDisplay();
+            sink.accept(concept);
             
             if (!c.getModifiedBy().isEmpty()) {
-                if (!modifiedBy.containsKey(c.getCode())) {
-                    modifiedBy.put(c.getCode(), new ArrayList<>());
+                if (modifiedBy[id] == null) {
+                    modifiedBy[id] = new ArrayList<>();
+                    if (modifiedCount == modified.length) {
+                        modified = Arrays.copyOf(modified, modifiedCount * 2);
+                    }
+                    modified[modifiedCount++] = id;
                 }
                 if (log.isDebugEnabled()) {
                     log.debug("Adding " + c.getModifiedBy().size() + " modifiers to class " + c.getCode());
                 }
-                modifiedBy.get(c.getCode()).addAll(c.getModifiedBy());
+                modifiedBy[id].addAll(c.getModifiedBy());
             }
             if (!c.getExcludeModifier().isEmpty()) {
-                if (!excludeModifiers.containsKey(c.getCode())) {
-                    excludeModifiers.put(c.getCode(), new HashSet<>());
-                }
                 if (log.isDebugEnabled()) {
                     log.debug("Adding " + c.getExcludeModifier().size() + " modifier exclusions to class " + c.getCode());
                 }
-                excludeModifiers.get(c.getCode()).addAll(c.getExcludeModifier());
+                modifierIndex.addExcludeModifiers(id, c.getExcludeModifier());
             }
         }
-        
-        Map <String,Set<ModifierClass>> modifierClasses = new HashMap<>();
-        for (ModifierClass modClass : claml.getModifierClass()) {
-            if (!modifierClasses.containsKey(modClass.getModifier())) {
-                modifierClasses.put(modClass.getModifier(), new HashSet<>());
+    }
+
+    /**
+     * Converts the classes on the common fork-join pool. Classes are read in chunks; while one chunk
+     * is being converted the next one is read, and the concepts of each chunk are then added to the
+     * state on this thread in document order, so the output is the same as a sequential conversion
+     * and the state needs no synchronisation.
+     */
+    private void convertInParallel(Iterator<Class> classes, ConversionOptions options, RubricRoleTable roles,
+            ConversionState state) throws IOException {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        Class[] chunk = readChunk(classes);
+        ConvertTask task = new ConvertTask(chunk, options, roles, state.diagnostics);
+        pool.execute(task);
+        while (chunk.length > 0) {
+            Class[] next = readChunk(classes);
+            ConvertTask nextTask = new ConvertTask(next, options, roles, state.diagnostics);
+            if (next.length > 0) {
+                pool.execute(nextTask);
             }
-            modifierClasses.get(modClass.getModifier()).add(modClass);
-        }
-        
-        if (applyModifiers) {
-            for (String modifiedConcept : modifiedBy.keySet()) {
-                //Don't add modifiers to non-leaf classes
-                if (descendents.containsKey(modifiedConcept) && !modifiedBy.get(modifiedConcept).isEmpty() && !descendents.get(modifiedConcept).isEmpty()) {
-                    if (log.isInfoEnabled()) {
-                        log.info("Modifiers are only applied to leaf classes. Skipping " + modifiedConcept);
-                    }
-                    for (String desc : descendents.get(modifiedConcept)) {
-                        log.info("Applying modifiers to descendent " + desc + " of code " + modifiedConcept);
-                        applyModifiersToClass(desc, modifierClasses, modifiedBy.get(modifiedConcept), concepts, displayRubrics, excludeModifiers, cs, count);
-                    }
+            task.join();
+            for (int i = 0; i < chunk.length; i++) {
+                if (task.concepts[i] != null) {
+                    state.add(chunk[i], task.concepts[i]);
                 } else {
-                    count = applyModifiersToClass(modifiedConcept, modifierClasses, modifiedBy.get(modifiedConcept), concepts, displayRubrics, excludeModifiers, cs, count);
+                    state.excluded++;
                 }
             }
+            chunk = next;
+            task = nextTask;
         }
-        
-        cs.setCount(count);
-        return cs;
     }
 
-    private int applyModifiersToClass(String modifiedConcept, Map<String, Set<ModifierClass>> modifierClasses,
-            List<ModifiedBy> modifiedBy, Map<String, ConceptDefinitionComponent> concepts,
-            List<String> displayRubrics, Map<String, Set<ExcludeModifier>> excludeModifiers, CodeSystem cs, Integer count) {
-        List<ConceptDefinitionComponent> candidates = new ArrayList<>();
-        candidates.add(concepts.get(modifiedConcept));
-        //Apply the modifiers in order to the modified concept
-        List<ConceptDefinitionComponent> newCandidates = null;
+    private static Class[] readChunk(Iterator<Class> classes) {
+        List<Class> chunk = new ArrayList<>(PARALLEL_CHUNK_SIZE);
+        while (chunk.size() < PARALLEL_CHUNK_SIZE && classes.hasNext()) {
+            chunk.add(classes.next());
+        }
+        return chunk.toArray(new Class[0]);
+    }
+
+    /**
+     * Converts a range of a chunk, splitting it in halves until it is small enough.
+     */
+    private class ConvertTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Class[] classes;
+        final ConceptDefinitionComponent[] concepts;
+        final ConversionOptions options;
+        final RubricRoleTable roles;
+        final Diagnostics diagnostics;
+        final int from;
+        final int to;
+
+        ConvertTask(Class[] classes, ConversionOptions options, RubricRoleTable roles, Diagnostics diagnostics) {
+            this(classes, new ConceptDefinitionComponent[classes.length], options, roles, diagnostics, 0, classes.length);
+        }
 
-        modifiers : for (ModifiedBy modBy : modifiedBy) {
+        private ConvertTask(Class[] classes, ConceptDefinitionComponent[] concepts, ConversionOptions options,
+                RubricRoleTable roles, Diagnostics diagnostics, int from, int to) {
+            this.classes = classes;
+            this.concepts = concepts;
+            this.options = options;
+            this.roles = roles;
+            this.diagnostics = diagnostics;
+            this.from = from;
+            this.to = to;
+        }
 
-            if (excludeModifiers.containsKey(modifiedConcept) && !excludeModifiers.get(modifiedConcept).isEmpty()) {
-                for (ExcludeModifier excludeMod : excludeModifiers.get(modifiedConcept)) {
-                    if (modBy.getCode().equals(excludeMod.getCode())) {
-                        log.info("Modifier " + modBy.getCode() + " is excluded for class " + modifiedConcept + " : Skipping");
-                        continue modifiers;
-                    }
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_TASK_SIZE) {
+                for (int i = from; i < to; i++) {
+                    concepts[i] = convertClass(classes[i], options, roles, diagnostics);
                 }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ConvertTask(classes, concepts, options, roles, diagnostics, from, mid),
+                        new ConvertTask(classes, concepts, options, roles, diagnostics, mid, to));
             }
-                
-            // for each candidate
-            newCandidates = new ArrayList<>();
-            for (ConceptDefinitionComponent cand : candidates) {
-                log.info("Applying modifier " + modBy.getCode() + " with " + modifierClasses.get(modBy.getCode()).size() + " modifierClasses to " + cand.getCode());
-
-                // for each applicable ModifierClass
-                modifierClasses : for (ModifierClass modClass : modifierClasses.get(modBy.getCode())) {
-                    log.debug("Applying modifierClass " + modClass.getCode() + " to " + cand.getCode());
-
-                    // If ModifiedBy.all == false and there is no ModifiedBy.ValidModifierClass for this modifier class, then skip it
-                    if (!modBy.isAll() && !modBy.getValidModifierClass().stream().anyMatch(vmc -> vmc.getCode().equals(modClass.getCode()))) {
-                        log.info("Skipping modifierClass " + modClass.getCode() + " due to missing ValidModifierClass on class " + cand.getCode());
+        }
+    }
 
-                        continue modifierClasses;
-                    }
-                    for ( Meta excl : modClass.getMeta().stream().filter(met -> met.getName().equals("excludeOnPrecedingModifier") ).collect(Collectors.toList())) {
-                        String[] substrings = excl.getValue().split(" ");
-                        if (substrings.length == 2 && cand.getCode().endsWith(substrings[1])) {
-                            log.info("Skipping modifierClass " + modClass.getCode() + " due to excludeOnPrecedingModifier on class " + cand.getCode());
-                            continue modifierClasses;
-                        }
-                    }
-                    String newCode = cand.getCode() + modClass.getCode();
-                    if (concepts.containsKey(newCode)) {
-                        log.warn("Code " + newCode + " already exists as a declared Class - skipping application of modifierClass " + modBy.getCode() + "::" + modClass.getCode() + " to code " + cand.getCode());
-                        continue modifierClasses;
-                    }
-                    ConceptDefinitionComponent concept = cs.addConcept();
-                    count++;
-                    newCandidates.add(concept);
-                    //Set code to append modifierClass code
-                    concept.setCode(newCode);
-                    log.debug("Creating code " + concept.getCode());
-                    Map<String,List<Rubric>> displayRubricValues = new HashMap<>();
-                    //Fix display to append modifierClass display
-                    for (Rubric rubric : modClass.getRubric()) {
-                        Object kind = rubric.getKind();
-                        if (kind instanceof RubricKind) {
-                            RubricKind rkind = (RubricKind) kind;
-                            if (displayRubrics.contains(rkind.getName())) {
-                                if (rubric.getLabel().size() > 1) {
-                                    log.warn("Found more than one label on display rubric " + rkind.getName() + " for code " + modClass.getCode());
-                                }
-                                if (!displayRubricValues.containsKey(rkind.getName())) {
-                                    displayRubricValues.put(rkind.getName(), new ArrayList<>());
-                                }
-                                displayRubricValues.get(rkind.getName()).add(rubric);
-                            }
-                        }
-                    }
-                    for (String dr : displayRubrics) {
-                        if (!displayRubricValues.containsKey(dr)) {
-                            continue;
-                        }
-                        List<Rubric> values = displayRubricValues.get(dr);
-                        if (values.size() > 1) {
-                            log.warn("Found multiple display rubrics " + dr + " for modifierClass " + modClass.getCode());
-                        }
-                        Rubric rubric = values.get(0);
-                        String value = getLabelValue(rubric.getLabel().get(0)).trim();
-
-                        concept.setDisplay(cand.getDisplay() + " : " + value);
-                        if (rubric.getLabel().size() > 1) {
-                            if (log.isWarnEnabled()) {
-                                log.warn("Found more than one label on display rubric " + dr + " for code " + modClass.getCode());
-                            }
-                        }
-                    }
-                    // Remove old parent/child links
-                    //                            concept.getProperty().removeIf(p -> p.getCode().equals("parent") || p.getCode().equals("child"));
-                    concept.addProperty().setCode("parent").setValue(new CodeType(cand.getCode()));
-                }
+    /**
+     * Collects the modifiers declared on a class and on its ancestors. Where the same modifier is
+     * declared more than once, the declaration nearest to the class is used. Modifiers inherited from
+     * further up the hierarchy are applied first.
+     */
+    private List<ModifiedBy> getEffectiveModifiers(int id, ConversionState state) {
+        List<ModifiedBy> result = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        addModifiers(result, state.modifiedBy[id], seen);
+        for (int ancestor : state.hierarchy.ancestors(id)) {
+            if (ancestor < state.modifiedBy.length) {
+                addModifiers(result, state.modifiedBy[ancestor], seen);
             }
-            candidates = newCandidates;
+        }
+        return result;
+    }
 
+    private static void addModifiers(List<ModifiedBy> result, List<ModifiedBy> declared, Set<String> seen) {
+        if (declared != null) {
+            result.addAll(0, declared.stream().filter(m -> seen.add(m.getCode())).collect(Collectors.toList()));
         }
-        return count;
     }
 
-	private void addDesignationsForRubric(ConceptDefinitionComponent concept, Rubric rubric) {
+	private void addDesignationsForRubric(ConceptDefinitionComponent concept, Rubric rubric, String code,
+	        Diagnostics diagnostics) {
 		if (rubric.getKind() instanceof RubricKind) {
 			RubricKind rkind = (RubricKind) rubric.getKind();
 			for (Label l : rubric.getLabel()) {
-				addDesignationForLabel(concept, rubric, rkind, l);
+				addDesignationForLabel(concept, rubric, rkind, l, diagnostics);
 			}
 		} else {
-			log.warn("Unexpected rubric kind " + rubric.getKind());
+			diagnostics.record(Diagnostics.Category.UNEXPECTED_RUBRIC_KIND, code, String.valueOf(rubric.getKind()));
 		}
 	}
 
-	private void addDesignationForLabel(ConceptDefinitionComponent concept, Rubric rubric, RubricKind rkind, Label l) {
-		String v = getLabelValue(l).trim();
+	private void addDesignationForLabel(ConceptDefinitionComponent concept, Rubric rubric, RubricKind rkind, Label l,
+	        Diagnostics diagnostics) {
+		String v = getLabelValue(l, diagnostics).trim();
 		if (v != null && v.length() > 0) {
 			ConceptDefinitionDesignationComponent desig = concept.addDesignation();
 			desig.setUse(new Coding().setDisplay(rkind.getName()));
 			desig.setValue(v);
 			desig.setLanguage(l.getLang());
 		} else {
-			log.warn("Skipping empty label for rubric " + rubric.getId());
+			diagnostics.record(Diagnostics.Category.EMPTY_LABEL, String.valueOf(rubric.getId()), concept.getCode());
 		}
 	}
 
@@ -536,69 +948,27 @@ public class FhirClamlService {
         } else if (kind instanceof ClassKind) {
             return ((ClassKind) kind).getName();
         } else {
-            log.warn("Unrecognized class kind:" + kind);
             return null;
         }
     }
 
-    private String getLabelValue(Object l) {
-        if (l instanceof Label) {
-            String result = "";
-            for (Object cont : ((Label) l).getContent()) {
-                if (result.length() > 0) {
-                    result += "\n";
-                }
-                result += getLabelValue(cont);
-            }
-            return result;
-        } else if (l instanceof String) { // This is a hack, check all contents?
-            return (String) l;
-        } else if (l instanceof Reference) {
-            return "[" + ((Reference) l).getContent() + "]";
-        } else if (l instanceof Para) {
-            String result = "";
-            for (Object cont : ((Para) l).getContent()) {
-                result += getLabelValue(cont);
-            }
-            return result;
-        } else if (l instanceof Fragment) {
-            String result = "";
-            Fragment frg = (Fragment) l;
-            for (Object cont : frg.getContent()) {
-                if (frg.getType() != null && frg.getType().equals("list")) {
-                    result += " - ";
-                }
-                result += getLabelValue(cont);
-            }
-            return result;
-        } else if (l instanceof Term) {
-            Term term = (Term) l;
-            if (term.getClazz().equals("tab")) {
-                return "\t";
-            } else if (term.getClazz().equals("subscript")) {
-                return "_" + term.getContent();
-            } else if (term.getClazz().equals("italics")) {
-                return term.getContent();
-            } else if (term.getClazz().equals("bold")) {
-                return term.getContent();
-            } else {
-                log.warn("Unrecognized Term class:" + term.getClazz());
-                return term.getContent();
-            }
-        } else if (l instanceof au.csiro.fhir.claml.model.claml.List) {
-            String result = "";
-            for (ListItem item : ((au.csiro.fhir.claml.model.claml.List) l).getListItem()) {
-                result += " - ";
-                for (Object cont : item.getContent()) {
-                    result += getLabelValue(cont);
-                }
-                result += "\n";
-            }
-            return result;
-        } else {
-            log.warn("Ignoring non-String label contents on Label (" + l.getClass().getSimpleName() + ")");
-            return l.getClass().getSimpleName().toUpperCase();
-        }
+    String getLabelValue(Object l) {
+        return labelRenderer.render(l);
+    }
+
+    private String getLabelValue(Object l, Diagnostics diagnostics) {
+        return labelRenderer.render(l, diagnostics);
+    }
+
+    public LabelRenderer getLabelRenderer() {
+        return labelRenderer;
+    }
+
+    /**
+     * @param labelRenderer The strategy used to turn rubric labels into text.
+     */
+    public void setLabelRenderer(LabelRenderer labelRenderer) {
+        this.labelRenderer = labelRenderer;
     }
 
 }
\ No newline at end of file
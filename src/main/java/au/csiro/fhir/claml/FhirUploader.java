@@ -0,0 +1,370 @@
+package au.csiro.fhir.claml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.CodeSystemContentMode;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * Uploads a code system to a FHIR server as it is being converted.
+ * <p>
+ * In {@link Mode#SINGLE} mode the whole code system is sent in one request once it is complete, or
+ * it can be sent with {@link #upload(CodeSystem)} once it has been finished in memory. In
+ * the other modes the concepts are sent in chunks while the conversion goes on: each chunk is a
+ * CodeSystem supplement of the code system with its own id and url, PUT on its own or in a
+ * transaction Bundle. The base code system follows with content 'not-present' and the count once
+ * every chunk has been accepted, so it only shows up on the server when all of its concepts are
+ * there.
+ * <p>
+ * Chunks are sent by a fixed number of threads, and the conversion blocks while as many chunks
+ * again are waiting to be sent, so memory stays bounded however slow the server is. Requests that
+ * fail with a connection error, 429 or a 5xx status are retried with exponential backoff. Every
+ * accepted chunk is recorded with a hash of its content in a progress file, so an upload that
+ * failed part way can be run again and only sends the chunks that are missing or have changed. The
+ * progress file is deleted once the upload is complete.
+ */
+public class FhirUploader implements ConceptSink {
+
+    private static final Logger log = LoggerFactory.getLogger(FhirUploader.class);
+
+    private static final long MAX_BACKOFF = 60_000;
+
+    /**
+     * How a code system is sent to the server.
+     */
+    public enum Mode {
+        /** The whole code system in one request. */
+        SINGLE,
+        /** A supplement for each chunk of concepts, then the base code system. */
+        SUPPLEMENTS,
+        /** As {@link #SUPPLEMENTS}, but each supplement is sent in a transaction Bundle. */
+        TRANSACTION
+    }
+
+    private final FhirContext context;
+    private final IGenericClient client;
+    private final Mode mode;
+    private final int chunkSize;
+    private final int retries;
+    private final File progressFile;
+    private long initialBackoff = 1000;
+
+    private CodeSystemBuilder builder;
+    private CodeSystem header;
+    private List<ConceptDefinitionComponent> chunk;
+    private int chunks;
+    private Map<Integer, String> acknowledged;
+    private Writer progress;
+    private ExecutorService executor;
+    private Semaphore inFlight;
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+    /**
+     * @param progressFile Where accepted chunks are recorded. Only used when uploading in chunks.
+     */
+    public FhirUploader(FhirContext context, ConversionOptions options, File progressFile) {
+        this.context = context;
+        // The endpoint may not serve a CapabilityStatement, and does not have to for what is sent.
+        // The uploader has its own client factory, as the context is shared with every other job
+        // and changing its factory would turn the validation off for all of them
+        ApacheRestfulClientFactory clientFactory = new ApacheRestfulClientFactory(context);
+        clientFactory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+        this.client = clientFactory.newGenericClient(options.getUploadUrl());
+        this.mode = options.getUploadMode();
+        this.chunkSize = options.getUploadChunkSize();
+        this.retries = options.getUploadRetries();
+        this.progressFile = progressFile;
+        if (mode != Mode.SINGLE) {
+            int threads = options.getUploadThreads();
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "fhir-upload-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.inFlight = new Semaphore(threads * 2);
+        }
+    }
+
+    /**
+     * Sets the delay before the first retry of a request, which doubles with each further retry.
+     */
+    void setInitialBackoff(long millis) {
+        this.initialBackoff = millis;
+    }
+
+    /**
+     * @return The number of chunks that were not sent because an earlier run already had.
+     */
+    public int getSkippedChunks() {
+        return skipped.get();
+    }
+
+    @Override
+    public void start(CodeSystem header) throws IOException {
+        // Other sinks may add concepts to the header they are given
+        header = header.copy();
+        if (mode == Mode.SINGLE) {
+            builder = new CodeSystemBuilder();
+            builder.start(header);
+            return;
+        }
+        if (!header.hasId() || !header.hasUrl()) {
+            throw new IOException("The code system needs an id and a url to be uploaded in chunks");
+        }
+        this.header = header;
+        this.chunk = new ArrayList<>(chunkSize);
+        this.acknowledged = readProgress(progressFile);
+        if (!acknowledged.isEmpty()) {
+            log.info("Resuming upload, " + acknowledged.size() + " chunks were sent before");
+        }
+        this.progress = Files.newBufferedWriter(progressFile.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public void accept(ConceptDefinitionComponent concept) throws IOException {
+        if (builder != null) {
+            builder.accept(concept);
+            return;
+        }
+        checkFailure();
+        chunk.add(concept);
+        if (chunk.size() >= chunkSize) {
+            dispatch();
+        }
+    }
+
+    private void dispatch() throws IOException {
+        int number = ++chunks;
+        List<ConceptDefinitionComponent> concepts = chunk;
+        chunk = new ArrayList<>(chunkSize);
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to upload chunk " + number);
+        }
+        executor.execute(() -> {
+            try {
+                sendChunk(number, concepts);
+            } catch (IOException | RuntimeException e) {
+                failure.compareAndSet(null, e instanceof IOException ? (IOException) e
+                        : new IOException("Upload of chunk " + number + " failed", e));
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private void sendChunk(int number, List<ConceptDefinitionComponent> concepts) throws IOException {
+        if (failure.get() != null) {
+            return;
+        }
+        CodeSystem supplement = header.copy();
+        String id = header.getIdElement().getIdPart() + "-" + number;
+        supplement.setId(id);
+        supplement.setUrl(header.getUrl() + "-" + number);
+        supplement.setContent(CodeSystemContentMode.SUPPLEMENT);
+        supplement.setSupplements(header.hasVersion() ? header.getUrl() + "|" + header.getVersion() : header.getUrl());
+        supplement.setConcept(concepts);
+        supplement.setCount(concepts.size());
+
+        String body;
+        if (mode == Mode.TRANSACTION) {
+            Bundle bundle = new Bundle();
+            bundle.setType(BundleType.TRANSACTION);
+            bundle.addEntry()
+                    .setFullUrl(client.getServerBase() + "/CodeSystem/" + id)
+                    .setResource(supplement)
+                    .getRequest()
+                    .setMethod(HTTPVerb.PUT)
+                    .setUrl("CodeSystem/" + id);
+            body = context.newJsonParser().encodeResourceToString(bundle);
+        } else {
+            body = context.newJsonParser().encodeResourceToString(supplement);
+        }
+
+        String hash = hash(body);
+        if (hash.equals(acknowledged.get(number))) {
+            skipped.incrementAndGet();
+            return;
+        }
+        if (mode == Mode.TRANSACTION) {
+            withRetries("chunk " + number, () -> client.transaction().withBundle(body).execute());
+        } else {
+            withRetries("chunk " + number, () -> client.update().resource(body).withId("CodeSystem/" + id).execute());
+        }
+        synchronized (this) {
+            progress.write(number + " " + hash + "\n");
+            progress.flush();
+        }
+        log.debug("Uploaded chunk " + number + " with " + concepts.size() + " concepts");
+    }
+
+    @Override
+    public void finish(int count) throws IOException {
+        if (builder != null) {
+            builder.finish(count);
+            upload(builder.getCodeSystem());
+            return;
+        }
+
+        if (!chunk.isEmpty()) {
+            dispatch();
+        }
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.info("Waiting for the upload of " + chunks + " chunks to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the upload to finish");
+        }
+        checkFailure();
+
+        CodeSystem base = header.copy();
+        base.setContent(CodeSystemContentMode.NOTPRESENT);
+        base.setCount(count);
+        withRetries("code system", () -> client.update().resource(base).execute());
+        progress.close();
+        progress = null;
+        Files.deleteIfExists(progressFile.toPath());
+        log.info("Uploaded " + count + " concepts in " + chunks + " chunks to " + client.getServerBase()
+                + (skipped.get() > 0 ? ", " + skipped.get() + " chunks were already there" : ""));
+    }
+
+    /**
+     * Sends a complete code system in one request, as {@link Mode#SINGLE} does.
+     */
+    public void upload(CodeSystem cs) throws IOException {
+        if (cs.hasId()) {
+            withRetries("code system", () -> client.update().resource(cs).execute());
+        } else if (cs.hasUrl()) {
+            // A retried create must not leave a second copy behind
+            withRetries("code system", () -> client.create().resource(cs)
+                    .conditionalByUrl("CodeSystem?url=" + cs.getUrl()).execute());
+        } else {
+            withRetries("code system", () -> client.create().resource(cs).execute());
+        }
+        log.info("Uploaded " + cs.getCount() + " concepts to " + client.getServerBase());
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure.get();
+        if (e != null) {
+            throw new IOException(e.getMessage() + ". Run the conversion again to resume the upload.", e);
+        }
+    }
+
+    /**
+     * Stops sending chunks. Those already accepted stay in the progress file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (progress != null) {
+            synchronized (this) {
+                progress.close();
+                progress = null;
+            }
+        }
+    }
+
+    private void withRetries(String what, Runnable request) throws IOException {
+        long backoff = initialBackoff;
+        for (int attempt = 1;; attempt++) {
+            try {
+                request.run();
+                return;
+            } catch (BaseServerResponseException e) {
+                boolean retryable = e instanceof FhirClientConnectionException
+                        || e.getStatusCode() == 429 || e.getStatusCode() >= 500;
+                if (!retryable || attempt > retries) {
+                    throw new IOException("Upload of " + what + " to " + client.getServerBase() + " failed: "
+                            + e.getLocalizedMessage(), e);
+                }
+                log.warn("Upload of " + what + " failed, retrying in " + backoff + " ms: " + e.getLocalizedMessage());
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to retry the upload of " + what);
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    /**
+     * @return The hash of every chunk recorded in the progress file, by chunk number.
+     */
+    static Map<Integer, String> readProgress(File progressFile) throws IOException {
+        Map<Integer, String> result = new HashMap<>();
+        if (!progressFile.exists()) {
+            return result;
+        }
+        for (String line : Files.readAllLines(progressFile.toPath(), StandardCharsets.UTF_8)) {
+            String[] parts = line.split(" ");
+            // A line cut short by an earlier failure is ignored
+            if (parts.length == 2 && parts[1].length() == 64) {
+                try {
+                    result.put(Integer.parseInt(parts[0]), parts[1]);
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring line of upload progress file " + progressFile + ": " + line);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String hash(String body) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest(body.getBytes(StandardCharsets.UTF_8))) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+}
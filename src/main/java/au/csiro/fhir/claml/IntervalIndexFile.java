@@ -0,0 +1,224 @@
+package au.csiro.fhir.claml;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The interval labels of a code system's hierarchy in a compact binary file, so that consumers can
+ * test subsumption with two integer comparisons instead of walking the parent properties of the
+ * code system.
+ * <p>
+ * The concepts are numbered in pre-order over the tree of their first parents. Code Y subsumes
+ * code X if start(Y) &lt;= start(X) &lt;= end(Y), where end is the highest number in the subtree.
+ * That is exact unless X is flagged as being in a polyhierarchy, i.e. X or one of its ancestors has
+ * more than one parent; then the parents recorded for the flagged concepts have to be followed as
+ * well, which {@link #subsumes(String, String)} does.
+ * <p>
+ * The file is written with {@link DataOutputStream}, all numbers big-endian:
+ *
+ * <pre>
+ * int    magic 0x434C4958 ("CLIX")
+ * int    format version
+ * UTF    code system url, or "" if none
+ * UTF    code system version, or "" if none
+ * int    number of concepts
+ * per concept, in pre-order (so its start is its position):
+ *   UTF  code
+ *   int  end
+ *   int  depth
+ *   byte flags, 1 if in a polyhierarchy
+ * int    number of concepts in a polyhierarchy
+ * per such concept:
+ *   int  start
+ *   int  number of parents
+ *   int  start of each parent
+ * </pre>
+ */
+public class IntervalIndexFile {
+
+    static final int MAGIC = 0x434C4958;
+
+    static final int FORMAT_VERSION = 1;
+
+    private static final int POLYHIERARCHY = 1;
+
+    private final String url;
+    private final String version;
+    private final String[] codes;
+    private final int[] end;
+    private final int[] depth;
+    private final BitSet polyhierarchy;
+    private final Map<Integer, int[]> parents;
+    private final Map<String, Integer> starts;
+
+    private IntervalIndexFile(String url, String version, String[] codes, int[] end, int[] depth,
+            BitSet polyhierarchy, Map<Integer, int[]> parents) {
+        this.url = url;
+        this.version = version;
+        this.codes = codes;
+        this.end = end;
+        this.depth = depth;
+        this.polyhierarchy = polyhierarchy;
+        this.parents = parents;
+        this.starts = new HashMap<>(codes.length * 2);
+        for (int i = 0; i < codes.length; i++) {
+            starts.put(codes[i], i);
+        }
+    }
+
+    /**
+     * Writes the labels of the index. The stream is not closed.
+     */
+    public static void write(TerminologyIndex index, OutputStream out) throws IOException {
+        int n = index.size();
+        int[] byStart = new int[n];
+        for (int id = 0; id < n; id++) {
+            byStart[index.intervalStart(id)] = id;
+        }
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT_VERSION);
+        data.writeUTF(index.getUrl() != null ? index.getUrl() : "");
+        data.writeUTF(index.getVersion() != null ? index.getVersion() : "");
+        data.writeInt(n);
+        int polyhierarchy = 0;
+        for (int id : byStart) {
+            data.writeUTF(index.code(id));
+            data.writeInt(index.intervalEnd(id));
+            data.writeInt(index.depth(id));
+            data.writeByte(index.isPolyhierarchy(id) ? POLYHIERARCHY : 0);
+            if (index.isPolyhierarchy(id)) {
+                polyhierarchy++;
+            }
+        }
+        data.writeInt(polyhierarchy);
+        for (int id : byStart) {
+            if (index.isPolyhierarchy(id)) {
+                int[] parents = index.parents(id);
+                data.writeInt(index.intervalStart(id));
+                data.writeInt(parents.length);
+                for (int parent : parents) {
+                    data.writeInt(index.intervalStart(parent));
+                }
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads a file written by {@link #write(TerminologyIndex, OutputStream)}. The stream is not
+     * closed.
+     */
+    public static IntervalIndexFile read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Input is not an interval index");
+        }
+        int formatVersion = data.readInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Interval index has format version " + formatVersion + " but " + FORMAT_VERSION + " is required");
+        }
+        String url = data.readUTF();
+        String version = data.readUTF();
+        int n = data.readInt();
+        String[] codes = new String[n];
+        int[] end = new int[n];
+        int[] depth = new int[n];
+        BitSet polyhierarchy = new BitSet(n);
+        for (int i = 0; i < n; i++) {
+            codes[i] = data.readUTF();
+            end[i] = data.readInt();
+            depth[i] = data.readInt();
+            if ((data.readByte() & POLYHIERARCHY) != 0) {
+                polyhierarchy.set(i);
+            }
+        }
+        int m = data.readInt();
+        Map<Integer, int[]> parents = new HashMap<>(m * 2);
+        for (int i = 0; i < m; i++) {
+            int start = data.readInt();
+            int[] p = new int[data.readInt()];
+            for (int j = 0; j < p.length; j++) {
+                p[j] = data.readInt();
+            }
+            parents.put(start, p);
+        }
+        return new IntervalIndexFile(url.isEmpty() ? null : url, version.isEmpty() ? null : version,
+                codes, end, depth, polyhierarchy, parents);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return codes.length;
+    }
+
+    /**
+     * @return The start of the code's interval, or -1 if it is unknown.
+     */
+    public int getStart(String code) {
+        Integer start = starts.get(code);
+        return start == null ? -1 : start;
+    }
+
+    public int getEnd(String code) {
+        return end[start(code)];
+    }
+
+    public int getDepth(String code) {
+        return depth[start(code)];
+    }
+
+    /**
+     * @return true if the first code is the same as the second one or one of its ancestors.
+     * @throws IllegalArgumentException If either code is unknown.
+     */
+    public boolean subsumes(String ancestor, String descendant) {
+        int a = start(ancestor);
+        int b = start(descendant);
+        if (a <= b && b <= end[a]) {
+            return true;
+        }
+        if (!polyhierarchy.get(b)) {
+            return false;
+        }
+        BitSet visited = new BitSet(codes.length);
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(b);
+        while (!queue.isEmpty()) {
+            for (int parent : parents.get(queue.poll())) {
+                if (a <= parent && parent <= end[a]) {
+                    return true;
+                }
+                if (polyhierarchy.get(parent) && !visited.get(parent)) {
+                    visited.set(parent);
+                    queue.add(parent);
+                }
+            }
+        }
+        return false;
+    }
+
+    private int start(String code) {
+        Integer start = starts.get(code);
+        if (start == null) {
+            throw new IllegalArgumentException("Unknown code " + code);
+        }
+        return start;
+    }
+
+}
@@ -0,0 +1,25 @@
+package au.csiro.fhir.claml;
+
+/**
+ * Turns the mixed content of a ClaML Label (text, Para, Fragment, List, Reference, Term...) into the
+ * text used for displays, definitions, designations and properties.
+ * <p>
+ * A renderer is shared by all the conversions of a {@link FhirClamlService}, so implementations must
+ * be thread-safe.
+ */
+public interface LabelRenderer {
+
+    /**
+     * @param content A Label or any element that can appear inside one.
+     * @return The rendered text, not trimmed.
+     */
+    String render(Object content);
+
+    /**
+     * Renders the content, recording any issues with it.
+     */
+    default String render(Object content, Diagnostics diagnostics) {
+        return render(content);
+    }
+
+}
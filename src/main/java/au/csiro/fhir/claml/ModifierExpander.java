@@ -0,0 +1,126 @@
+package au.csiro.fhir.claml;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.csiro.fhir.claml.model.claml.ModifiedBy;
+
+/**
+ * Generates the concepts produced by applying a chain of modifiers to a class.
+ * <p>
+ * Every applicable combination of modifier classes is a path in a tree whose levels are the
+ * modifiers of the chain. The tree is walked depth first, keeping only one code, display and
+ * position per level, and every concept is handed to the sink as soon as it is
+ * generated. Memory use therefore grows with the length of the chain rather than with the number
+ * of generated concepts. Which modifier classes apply is looked up in a {@link ModifierIndex}.
+ */
+public class ModifierExpander {
+
+    private static final Logger log = LoggerFactory.getLogger(ModifierExpander.class);
+
+    private final ModifierIndex index;
+    private final CodeDictionary codes;
+    private final String[] displays;
+    private final ConceptSink sink;
+    private final Diagnostics diagnostics;
+
+    /**
+     * @param displays The display of every declared class, by the id of its code, and null for codes
+     * that were not declared. Generated codes that clash with a declared class are skipped.
+     */
+    public ModifierExpander(ModifierIndex index, CodeDictionary codes, String[] displays, ConceptSink sink) {
+        this(index, codes, displays, sink, Diagnostics.LOGGING);
+    }
+
+    public ModifierExpander(ModifierIndex index, CodeDictionary codes, String[] displays, ConceptSink sink,
+            Diagnostics diagnostics) {
+        this.index = index;
+        this.codes = codes;
+        this.displays = displays;
+        this.sink = sink;
+        this.diagnostics = diagnostics;
+    }
+
+    private boolean isDeclared(String code) {
+        int id = codes.id(code);
+        return id >= 0 && id < displays.length && displays[id] != null;
+    }
+
+    /**
+     * Applies the modifiers in order to a class, skipping those its ExcludeModifiers name.
+     *
+     * @param id The id of the class's code.
+     * @return The number of concepts passed to the sink.
+     */
+    public int expand(int id, List<ModifiedBy> modifiedBy) throws IOException {
+        String modifiedConcept = codes.code(id);
+        List<ModifiedBy> steps = new ArrayList<>(modifiedBy.size());
+        for (ModifiedBy modBy : modifiedBy) {
+            if (index.isExcluded(id, modBy.getCode())) {
+                diagnostics.record(Diagnostics.Category.EXCLUDED_MODIFIER, modifiedConcept, modBy.getCode());
+            } else {
+                steps.add(modBy);
+            }
+        }
+        if (steps.isEmpty()) {
+            return 0;
+        }
+
+        int levels = steps.size();
+        String[] levelCodes = new String[levels + 1];
+        String[] levelDisplays = new String[levels + 1];
+        @SuppressWarnings("unchecked")
+        List<ModifierIndex.Entry>[] entries = new List[levels];
+        int[] positions = new int[levels];
+        for (int i = 0; i < levels; i++) {
+            entries[i] = index.getApplicable(steps.get(i));
+        }
+        levelCodes[0] = modifiedConcept;
+        levelDisplays[0] = displays[id];
+        int count = 0;
+        int level = 0;
+        while (level >= 0) {
+            if (positions[level] == entries[level].size()) {
+                positions[level] = 0;
+                level--;
+                continue;
+            }
+            ModifierIndex.Entry entry = entries[level].get(positions[level]++);
+            String parent = levelCodes[level];
+            if (entry.isExcludedAfter(parent)) {
+                diagnostics.record(Diagnostics.Category.PRECEDING_MODIFIER_EXCLUSION, parent, entry.getCode());
+                continue;
+            }
+            String newCode = parent + entry.getCode();
+            if (isDeclared(newCode)) {
+                diagnostics.record(Diagnostics.Category.MODIFIED_CODE_EXISTS, newCode, steps.get(level).getCode() + "::" + entry.getCode());
+                continue;
+            }
+            String display = entry.getDisplay() != null ? levelDisplays[level] + " : " + entry.getDisplay() : null;
+
+            ConceptDefinitionComponent concept = new ConceptDefinitionComponent();
+            concept.setCode(newCode);
+            concept.setDisplay(display);
+            concept.addProperty().setCode("parent").setValue(new CodeType(parent));
+            if (log.isDebugEnabled()) {
+                log.debug("Creating code " + newCode);
+            }
+            sink.accept(concept);
+            count++;
+
+            if (level + 1 < levels) {
+                level++;
+                levelCodes[level] = newCode;
+                levelDisplays[level] = display;
+            }
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,216 @@
+package au.csiro.fhir.claml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import au.csiro.fhir.claml.RubricRoleTable.Role;
+import au.csiro.fhir.claml.model.claml.ExcludeModifier;
+import au.csiro.fhir.claml.model.claml.Meta;
+import au.csiro.fhir.claml.model.claml.ModifiedBy;
+import au.csiro.fhir.claml.model.claml.ModifierClass;
+import au.csiro.fhir.claml.model.claml.Rubric;
+import au.csiro.fhir.claml.model.claml.RubricKind;
+import au.csiro.fhir.claml.model.claml.ValidModifierClass;
+
+/**
+ * Everything needed to decide which modifier classes apply where, compiled once per conversion:
+ * <ul>
+ * <li>the modifier classes of each modifier in document order, with their displays already rendered
+ * and their excludeOnPrecedingModifier metas already parsed,</li>
+ * <li>for each ModifiedBy (i.e. each class and modifier) the modifier classes it allows,</li>
+ * <li>for each class the modifiers its ExcludeModifiers name.</li>
+ * </ul>
+ */
+public class ModifierIndex {
+
+    /**
+     * A modifier class with everything the expansion needs from it.
+     */
+    public static class Entry {
+        private final ModifierClass modifierClass;
+        private final String display;
+        private final String[] excludedAfter;
+
+        Entry(ModifierClass modifierClass, String display, String[] excludedAfter) {
+            this.modifierClass = modifierClass;
+            this.display = display;
+            this.excludedAfter = excludedAfter;
+        }
+
+        public ModifierClass getModifierClass() {
+            return modifierClass;
+        }
+
+        public String getCode() {
+            return modifierClass.getCode();
+        }
+
+        /**
+         * @return The rendered display, or null if the modifier class has no display rubric.
+         */
+        public String getDisplay() {
+            return display;
+        }
+
+        /**
+         * @return true if an excludeOnPrecedingModifier meta rules this modifier class out after the
+         * given code, i.e. the code ends with the modifier class the meta names.
+         */
+        public boolean isExcludedAfter(String code) {
+            for (String suffix : excludedAfter) {
+                if (code.endsWith(suffix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final String[] NONE = new String[0];
+
+    private final Map<String, List<Entry>> byModifier = new LinkedHashMap<>();
+    private final Map<ModifiedBy, List<Entry>> applicable = new IdentityHashMap<>();
+    // The modifiers excluded for each class, by the id of its code
+    private Set<String>[] excludedModifiers = newSetArray(64);
+    private final Diagnostics diagnostics;
+
+    /**
+     * @param modifierClasses The modifier classes of the classification, in document order.
+     */
+    public ModifierIndex(Collection<ModifierClass> modifierClasses, RubricRoleTable roles, LabelRenderer labelRenderer) {
+        this(modifierClasses, roles, labelRenderer, Diagnostics.LOGGING);
+    }
+
+    public ModifierIndex(Collection<ModifierClass> modifierClasses, RubricRoleTable roles, LabelRenderer labelRenderer,
+            Diagnostics diagnostics) {
+        this.diagnostics = diagnostics;
+        for (ModifierClass modClass : modifierClasses) {
+            Entry entry = new Entry(modClass, renderDisplay(modClass, roles, labelRenderer, diagnostics),
+                    parseExclusions(modClass, diagnostics));
+            byModifier.computeIfAbsent(modClass.getModifier(), m -> new ArrayList<>()).add(entry);
+        }
+    }
+
+    private static String[] parseExclusions(ModifierClass modClass, Diagnostics diagnostics) {
+        List<String> suffixes = null;
+        for (Meta meta : modClass.getMeta()) {
+            if ("excludeOnPrecedingModifier".equals(meta.getName()) && meta.getValue() != null) {
+                String[] substrings = meta.getValue().split(" ");
+                if (substrings.length == 2) {
+                    if (suffixes == null) {
+                        suffixes = new ArrayList<>(1);
+                    }
+                    suffixes.add(substrings[1]);
+                } else {
+                    diagnostics.record(Diagnostics.Category.MALFORMED_EXCLUSION, modClass.getCode(), meta.getValue());
+                }
+            }
+        }
+        return suffixes != null ? suffixes.toArray(NONE) : NONE;
+    }
+
+    /**
+     * Uses the last display rubric kind, in order of preference, that the modifier class has.
+     */
+    private static String renderDisplay(ModifierClass modClass, RubricRoleTable roles, LabelRenderer labelRenderer,
+            Diagnostics diagnostics) {
+        Rubric[] first = new Rubric[roles.getDisplayRubricCount()];
+        for (Rubric rubric : modClass.getRubric()) {
+            if (roles.getRole(rubric.getKind()) == Role.DISPLAY) {
+                int priority = roles.getDisplayPriority(rubric.getKind());
+                if (rubric.getLabel().size() > 1) {
+                    diagnostics.record(Diagnostics.Category.MULTIPLE_LABELS, modClass.getCode(), ((RubricKind) rubric.getKind()).getName());
+                }
+                if (first[priority] == null) {
+                    first[priority] = rubric;
+                } else {
+                    diagnostics.record(Diagnostics.Category.MULTIPLE_DISPLAY_RUBRICS, modClass.getCode(), roles.getDisplayRubric(priority));
+                }
+            }
+        }
+        String value = null;
+        for (Rubric rubric : first) {
+            if (rubric != null) {
+                value = labelRenderer.render(rubric.getLabel().get(0), diagnostics).trim();
+            }
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String>[] newSetArray(int size) {
+        return new Set[size];
+    }
+
+    /**
+     * @param id The id of the class's code in the conversion's {@link CodeDictionary}.
+     */
+    public void addExcludeModifiers(int id, Collection<ExcludeModifier> excludeModifiers) {
+        if (excludeModifiers.isEmpty()) {
+            return;
+        }
+        if (id >= excludedModifiers.length) {
+            excludedModifiers = Arrays.copyOf(excludedModifiers, Math.max(id + 1, excludedModifiers.length * 2));
+        }
+        if (excludedModifiers[id] == null) {
+            excludedModifiers[id] = new HashSet<>();
+        }
+        for (ExcludeModifier excludeModifier : excludeModifiers) {
+            excludedModifiers[id].add(excludeModifier.getCode());
+        }
+    }
+
+    /**
+     * @return true if the class with the given code id has an ExcludeModifier for the modifier.
+     */
+    public boolean isExcluded(int id, String modifier) {
+        return id < excludedModifiers.length && excludedModifiers[id] != null && excludedModifiers[id].contains(modifier);
+    }
+
+    /**
+     * @return The modifier classes of the modifier, in document order.
+     */
+    public List<Entry> getModifierClasses(String modifier) {
+        return byModifier.getOrDefault(modifier, Collections.emptyList());
+    }
+
+    /**
+     * @return The modifier classes a ModifiedBy allows: all those of its modifier, or only those named
+     * by its ValidModifierClass elements when all is false.
+     */
+    public List<Entry> getApplicable(ModifiedBy modBy) {
+        List<Entry> result = applicable.get(modBy);
+        if (result == null) {
+            List<Entry> entries = byModifier.get(modBy.getCode());
+            if (entries == null) {
+                diagnostics.record(Diagnostics.Category.MODIFIER_WITHOUT_CLASSES, modBy.getCode());
+                entries = Collections.emptyList();
+            }
+            if (modBy.isAll()) {
+                result = entries;
+            } else {
+                Set<String> valid = new HashSet<>();
+                for (ValidModifierClass vmc : modBy.getValidModifierClass()) {
+                    valid.add(vmc.getCode());
+                }
+                result = new ArrayList<>(valid.size());
+                for (Entry entry : entries) {
+                    if (valid.contains(entry.getCode())) {
+                        result.add(entry);
+                    }
+                }
+            }
+            applicable.put(modBy, result);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,135 @@
+package au.csiro.fhir.claml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionDesignationComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptPropertyComponent;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Type;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * Writes every concept as one line of JSON, for loading into search and analytics stores without
+ * parsing the code system. Each line is a flat object:
+ *
+ * <pre>
+ * {"system":"...","version":"...","code":"A00.0","display":"...","definition":"...",
+ *  "designations":[{"language":"en","use":"inclusion","value":"..."}],
+ *  "properties":{"parent":["A00"],"kind":["category"],"note":["..."]}}
+ * </pre>
+ *
+ * The values of each property are grouped under its code in an array, so every line has the same
+ * shape whatever the number of values. Codings are written as their code. Fields without a value are
+ * left out. Nested concepts are written on lines of their own after their parent.
+ */
+public class NdjsonConceptWriter implements ConceptSink {
+
+    private final JsonGenerator generator;
+    private String system;
+    private String version;
+
+    public NdjsonConceptWriter(OutputStream out) throws IOException {
+        this.generator = new JsonFactory().createGenerator(out, JsonEncoding.UTF8);
+        generator.setRootValueSeparator(new SerializedString("\n"));
+    }
+
+    @Override
+    public void start(CodeSystem header) {
+        system = header.getUrl();
+        version = header.getVersion();
+    }
+
+    @Override
+    public void accept(ConceptDefinitionComponent concept) throws IOException {
+        generator.writeStartObject();
+        writeString("system", system);
+        writeString("version", version);
+        writeString("code", concept.getCode());
+        writeString("display", concept.getDisplay());
+        writeString("definition", concept.getDefinition());
+        if (concept.hasDesignation()) {
+            generator.writeArrayFieldStart("designations");
+            for (ConceptDefinitionDesignationComponent desig : concept.getDesignation()) {
+                generator.writeStartObject();
+                writeString("language", desig.getLanguage());
+                if (desig.hasUse()) {
+                    writeString("use", desig.getUse().hasCode() ? desig.getUse().getCode() : desig.getUse().getDisplay());
+                }
+                writeString("value", desig.getValue());
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+        if (concept.hasProperty()) {
+            Map<String, List<Type>> properties = new LinkedHashMap<>();
+            for (ConceptPropertyComponent prop : concept.getProperty()) {
+                if (prop.hasValue()) {
+                    properties.computeIfAbsent(prop.getCode(), c -> new ArrayList<>(1)).add(prop.getValue());
+                }
+            }
+            generator.writeObjectFieldStart("properties");
+            for (Map.Entry<String, List<Type>> property : properties.entrySet()) {
+                generator.writeArrayFieldStart(property.getKey());
+                for (Type value : property.getValue()) {
+                    writeValue(value);
+                }
+                generator.writeEndArray();
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndObject();
+        for (ConceptDefinitionComponent child : concept.getConcept()) {
+            accept(child);
+        }
+    }
+
+    @Override
+    public void finish(int count) throws IOException {
+        generator.writeRaw('\n');
+        generator.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        generator.close();
+    }
+
+    private void writeValue(Type value) throws IOException {
+        if (value instanceof Coding) {
+            generator.writeString(((Coding) value).getCode());
+        } else if (value instanceof BooleanType) {
+            generator.writeBoolean(((BooleanType) value).booleanValue());
+        } else if (value instanceof IntegerType) {
+            generator.writeNumber(((IntegerType) value).getValue());
+        } else if (value instanceof DecimalType) {
+            generator.writeNumber(new BigDecimal(((DecimalType) value).getValueAsString()));
+        } else if (value instanceof PrimitiveType) {
+            generator.writeString(((PrimitiveType<?>) value).getValueAsString());
+        } else {
+            throw new IOException("Unsupported concept property type " + value.fhirType());
+        }
+    }
+
+    private void writeString(String name, String value) throws IOException {
+        if (value != null) {
+            generator.writeStringField(name, value);
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package au.csiro.fhir.claml;
+
+import java.util.Arrays;
+import java.util.List;
+
+import au.csiro.fhir.claml.model.claml.Fragment;
+import au.csiro.fhir.claml.model.claml.Label;
+import au.csiro.fhir.claml.model.claml.ListItem;
+import au.csiro.fhir.claml.model.claml.Para;
+import au.csiro.fhir.claml.model.claml.Reference;
+import au.csiro.fhir.claml.model.claml.Term;
+
+/**
+ * Renders labels as plain text:
+ * <ul>
+ * <li>the items of a Label are separated by new lines,</li>
+ * <li>References are written in square brackets,</li>
+ * <li>the items of a List, and the content of list Fragments, are prefixed with " - ",</li>
+ * <li>tab Terms become a tab and subscript Terms are prefixed with "_",</li>
+ * <li>anything else (e.g. Tables) is replaced by its element name in upper case.</li>
+ * </ul>
+ * The content is walked with an explicit stack rather than recursion, so there is no limit on how
+ * deeply it is nested, and the text is appended to a builder that each thread reuses across calls.
+ */
+public class PlainTextLabelRenderer implements LabelRenderer {
+
+    /**
+     * Builders that grew beyond this are not kept for the next call.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    /**
+     * Pushed before every item of a Label but the first: a new line is written if the label has
+     * produced any text so far.
+     */
+    private static final Object LABEL_SEPARATOR = new Object();
+
+    private static final String LIST_PREFIX = " - ";
+
+    private final ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
+
+    /**
+     * The per-thread output buffer and work stack. Each stack entry has an object to render (or a
+     * literal string, or {@link #LABEL_SEPARATOR}) and an int argument.
+     */
+    private static class State {
+        StringBuilder text = new StringBuilder(256);
+        Object[] items = new Object[32];
+        int[] args = new int[32];
+        int top = -1;
+
+        void push(Object item, int arg) {
+            if (++top == items.length) {
+                items = Arrays.copyOf(items, top * 2);
+                args = Arrays.copyOf(args, top * 2);
+            }
+            items[top] = item;
+            args[top] = arg;
+        }
+
+        /**
+         * Pushes the items in reverse so they are popped in document order.
+         */
+        void pushAll(List<?> content) {
+            for (int i = content.size() - 1; i >= 0; i--) {
+                push(content.get(i), 0);
+            }
+        }
+    }
+
+    @Override
+    public String render(Object content) {
+        return render(content, Diagnostics.LOGGING);
+    }
+
+    @Override
+    public String render(Object content, Diagnostics diagnostics) {
+        State s = state.get();
+        StringBuilder text = s.text;
+        text.setLength(0);
+        s.top = -1;
+        s.push(content, 0);
+        while (s.top >= 0) {
+            Object item = s.items[s.top];
+            int arg = s.args[s.top];
+            s.items[s.top--] = null;
+            renderItem(item, arg, s, diagnostics);
+        }
+        String result = text.toString();
+        if (text.capacity() > MAX_RETAINED_CAPACITY) {
+            s.text = new StringBuilder(256);
+        }
+        return result;
+    }
+
+    private void renderItem(Object item, int arg, State s, Diagnostics diagnostics) {
+        StringBuilder text = s.text;
+        if (item instanceof String) {
+            text.append((String) item);
+        } else if (item == LABEL_SEPARATOR) {
+            if (text.length() > arg) {
+                text.append('\n');
+            }
+        } else if (item instanceof Label) {
+            List<Object> content = ((Label) item).getContent();
+            int start = text.length();
+            for (int i = content.size() - 1; i >= 0; i--) {
+                s.push(content.get(i), 0);
+                if (i > 0) {
+                    s.push(LABEL_SEPARATOR, start);
+                }
+            }
+        } else if (item instanceof Reference) {
+            text.append('[').append(((Reference) item).getContent()).append(']');
+        } else if (item instanceof Para) {
+            s.pushAll(((Para) item).getContent());
+        } else if (item instanceof Fragment) {
+            Fragment frg = (Fragment) item;
+            List<Object> content = frg.getContent();
+            boolean list = "list".equals(frg.getType());
+            for (int i = content.size() - 1; i >= 0; i--) {
+                s.push(content.get(i), 0);
+                if (list) {
+                    s.push(LIST_PREFIX, 0);
+                }
+            }
+        } else if (item instanceof Term) {
+            renderTerm((Term) item, text, diagnostics);
+        } else if (item instanceof au.csiro.fhir.claml.model.claml.List) {
+            List<ListItem> listItems = ((au.csiro.fhir.claml.model.claml.List) item).getListItem();
+            for (int i = listItems.size() - 1; i >= 0; i--) {
+                s.push("\n", 0);
+                s.pushAll(listItems.get(i).getContent());
+                s.push(LIST_PREFIX, 0);
+            }
+        } else {
+            diagnostics.record(Diagnostics.Category.UNSUPPORTED_LABEL_CONTENT, item.getClass().getSimpleName());
+            text.append(item.getClass().getSimpleName().toUpperCase());
+        }
+    }
+
+    private void renderTerm(Term term, StringBuilder text, Diagnostics diagnostics) {
+        String clazz = term.getClazz();
+        if ("tab".equals(clazz)) {
+            text.append('\t');
+        } else if ("subscript".equals(clazz)) {
+            text.append('_').append(term.getContent());
+        } else {
+            if (!"italics".equals(clazz) && !"bold".equals(clazz)) {
+                diagnostics.record(Diagnostics.Category.UNRECOGNISED_TERM_CLASS, clazz);
+            }
+            text.append(term.getContent());
+        }
+    }
+
+}
@@ -0,0 +1,116 @@
+package au.csiro.fhir.claml;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+import au.csiro.fhir.claml.model.claml.RubricKind;
+
+/**
+ * What each rubric kind of a classification is used for, compiled once from the RubricKinds section
+ * and the conversion options.
+ * <p>
+ * Rubrics reference their kind by IDREF, so every rubric of a given kind points at the same
+ * RubricKind instance and a role is found with a single identity lookup. Kinds that are not part of
+ * the header (e.g. when rubrics were built in code) are looked up by name instead. The table is not
+ * modified after it has been built, so it can be shared by threads converting classes concurrently.
+ */
+public class RubricRoleTable {
+
+    public enum Role {
+        /**
+         * Might hold the display; see {@link RubricRoleTable#getDisplayPriority(Object)}.
+         */
+        DISPLAY,
+        DEFINITION,
+        DESIGNATION,
+        PROPERTY,
+        IGNORED
+    }
+
+    private static final class Entry {
+        final Role role;
+        final int priority;
+
+        Entry(Role role, int priority) {
+            this.role = role;
+            this.priority = priority;
+        }
+    }
+
+    private final ConversionOptions options;
+    private final Map<RubricKind, Entry> byKind = new IdentityHashMap<>();
+    private final Map<String, Entry> byName = new HashMap<>();
+
+    public RubricRoleTable(ClaML claml, ConversionOptions options) {
+        this.options = options;
+        if (claml.getRubricKinds() != null) {
+            for (RubricKind rk : claml.getRubricKinds().getRubricKind()) {
+                Entry entry = byName.computeIfAbsent(rk.getName(), this::compile);
+                byKind.put(rk, entry);
+            }
+        }
+    }
+
+    private Entry entry(String name) {
+        Entry entry = byName.get(name);
+        if (entry == null) {
+            entry = compile(name);
+        }
+        return entry;
+    }
+
+    private Entry compile(String name) {
+        if (options.getExcludeRubricKinds().contains(name)) {
+            return new Entry(Role.IGNORED, -1);
+        }
+        int priority = options.getDisplayRubrics().indexOf(name);
+        if (priority >= 0) {
+            return new Entry(Role.DISPLAY, priority);
+        } else if (options.getDefinitionRubric().equals(name)) {
+            return new Entry(Role.DEFINITION, -1);
+        } else if (options.getDesignationRubrics().contains(name)) {
+            return new Entry(Role.DESIGNATION, -1);
+        }
+        return new Entry(Role.PROPERTY, -1);
+    }
+
+    private Entry lookup(Object kind) {
+        Entry entry = byKind.get(kind);
+        if (entry == null && kind instanceof RubricKind) {
+            entry = entry(((RubricKind) kind).getName());
+        }
+        return entry;
+    }
+
+    /**
+     * @param kind The kind of a rubric.
+     * @return The role of the rubric, or null if its kind is not a RubricKind.
+     */
+    public Role getRole(Object kind) {
+        Entry entry = lookup(kind);
+        return entry != null ? entry.role : null;
+    }
+
+    /**
+     * @return The position of the kind in the display rubrics, lowest first, or -1 if it is not a
+     * display rubric.
+     */
+    public int getDisplayPriority(Object kind) {
+        Entry entry = lookup(kind);
+        return entry != null ? entry.priority : -1;
+    }
+
+    /**
+     * @return The number of display rubric kinds, so priorities can index an array.
+     */
+    public int getDisplayRubricCount() {
+        return options.getDisplayRubrics().size();
+    }
+
+    public String getDisplayRubric(int priority) {
+        return options.getDisplayRubrics().get(priority);
+    }
+
+}
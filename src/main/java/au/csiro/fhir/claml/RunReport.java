@@ -0,0 +1,338 @@
+package au.csiro.fhir.claml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionDesignationComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptPropertyComponent;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import au.csiro.fhir.claml.model.claml.Class;
+
+/**
+ * Where the time of a conversion went and what it produced, for capacity planning.
+ * <p>
+ * The conversion thread is always in exactly one {@link Phase}, and its wall and CPU time are
+ * charged to that phase. Reading classes and handing concepts to the output are interleaved with
+ * transforming them, so {@link #time(Iterator)} and {@link #time(ConceptSink)} wrap the input and
+ * the output to switch phase around every call; this costs a little, so it is only done when a
+ * report is asked for. The CPU time of a phase is that of the conversion thread only, e.g. it does
+ * not include the fork-join workers of a parallel conversion, while the total CPU time is that of
+ * the whole process.
+ * <p>
+ * Garbage collection and peak heap are measured for the whole JVM, so they include anything else
+ * that runs at the same time. The peak heap is the sum of the peaks of the heap memory pools, which
+ * need not have peaked at the same time, so it is an upper bound.
+ */
+public class RunReport {
+
+    /**
+     * The stages of a conversion.
+     */
+    public enum Phase {
+        /** Reading and unmarshalling the ClaML, or reading a snapshot. */
+        PARSE,
+        /** Turning classes into concepts. */
+        TRANSFORM,
+        /** Generating the concepts of modifiers. */
+        MODIFIERS,
+        /** Encoding and writing the output and the exports. */
+        ENCODE;
+
+        public String toCode() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+    private final long[] wall = new long[PHASES.length];
+    private final long[] cpu = new long[PHASES.length];
+    private Phase current = Phase.PARSE;
+    private long wallMark;
+    private long cpuMark;
+
+    private final long startWall;
+    private final long startProcessCpu;
+    private final long startGcTime;
+    private final long startGcCount;
+    private long totalWall = -1;
+    private long totalProcessCpu;
+    private long gcTime;
+    private long gcCount;
+    private long peakHeap;
+
+    private long inputBytes;
+    private long classesRead;
+    private long classesExcluded;
+    private long conceptsEmitted;
+    private long modifierConcepts;
+    private final Map<String, Long> designations = new TreeMap<>();
+    private final Map<String, Long> properties = new TreeMap<>();
+    private Diagnostics diagnostics;
+
+    /**
+     * Starts the report in the {@link Phase#PARSE} phase.
+     */
+    public RunReport() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+            }
+        }
+        startGcTime = gcTime();
+        startGcCount = gcCount();
+        startProcessCpu = processCpuTime();
+        startWall = System.nanoTime();
+        wallMark = startWall;
+        cpuMark = threadCpuTime();
+    }
+
+    /**
+     * Charges the time since the last switch to the current phase and makes the given phase
+     * current.
+     *
+     * @return The phase that was current, so it can be restored.
+     */
+    public Phase enter(Phase phase) {
+        long now = System.nanoTime();
+        long cpuNow = threadCpuTime();
+        wall[current.ordinal()] += now - wallMark;
+        cpu[current.ordinal()] += cpuNow - cpuMark;
+        wallMark = now;
+        cpuMark = cpuNow;
+        Phase previous = current;
+        current = phase;
+        return previous;
+    }
+
+    /**
+     * Ends the report, charging the remaining time to the current phase.
+     */
+    public void finish() {
+        enter(current);
+        totalWall = System.nanoTime() - startWall;
+        totalProcessCpu = processCpuTime() - startProcessCpu;
+        gcTime = gcTime() - startGcTime;
+        gcCount = gcCount() - startGcCount;
+        peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid() && pool.getPeakUsage() != null) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+    }
+
+    private long threadCpuTime() {
+        return cpuTime ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    private static long processCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return 0;
+    }
+
+    private static long gcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    /**
+     * @return The classes, charging the time spent getting each one to {@link Phase#PARSE} and
+     * counting them.
+     */
+    public Iterator<Class> time(Iterator<Class> classes) {
+        return new Iterator<Class>() {
+            @Override
+            public boolean hasNext() {
+                Phase previous = enter(Phase.PARSE);
+                try {
+                    return classes.hasNext();
+                } finally {
+                    enter(previous);
+                }
+            }
+
+            @Override
+            public Class next() {
+                Phase previous = enter(Phase.PARSE);
+                try {
+                    Class c = classes.next();
+                    classesRead++;
+                    return c;
+                } finally {
+                    enter(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return A sink that passes everything on to the given one, charging the time spent in it to
+     * {@link Phase#ENCODE} and counting the concepts and their designations and properties.
+     */
+    public ConceptSink time(ConceptSink sink) {
+        return new ConceptSink() {
+            @Override
+            public void start(CodeSystem header) throws IOException {
+                Phase previous = enter(Phase.ENCODE);
+                try {
+                    sink.start(header);
+                } finally {
+                    enter(previous);
+                }
+            }
+
+            @Override
+            public void accept(ConceptDefinitionComponent concept) throws IOException {
+                count(concept);
+                Phase previous = enter(Phase.ENCODE);
+                try {
+                    sink.accept(concept);
+                } finally {
+                    enter(previous);
+                }
+            }
+
+            @Override
+            public void finish(int count) throws IOException {
+                Phase previous = enter(Phase.ENCODE);
+                try {
+                    sink.finish(count);
+                } finally {
+                    enter(previous);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                sink.close();
+            }
+        };
+    }
+
+    private void count(ConceptDefinitionComponent concept) {
+        conceptsEmitted++;
+        for (ConceptDefinitionDesignationComponent designation : concept.getDesignation()) {
+            String kind = designation.hasUse() && designation.getUse().hasDisplay() ? designation.getUse().getDisplay() : "";
+            designations.merge(kind, 1L, Long::sum);
+        }
+        for (ConceptPropertyComponent property : concept.getProperty()) {
+            properties.merge(property.getCode(), 1L, Long::sum);
+        }
+    }
+
+    public void setInputBytes(long inputBytes) {
+        this.inputBytes = inputBytes;
+    }
+
+    public void addClassesExcluded(long classesExcluded) {
+        this.classesExcluded += classesExcluded;
+    }
+
+    public void addModifierConcepts(long modifierConcepts) {
+        this.modifierConcepts += modifierConcepts;
+    }
+
+    /**
+     * @param diagnostics The issues found during the conversion, whose counts are included.
+     */
+    public void setDiagnostics(Diagnostics diagnostics) {
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * @return The wall time charged to the phase so far, in nanoseconds.
+     */
+    public long getWallTime(Phase phase) {
+        return wall[phase.ordinal()];
+    }
+
+    public long getClassesRead() {
+        return classesRead;
+    }
+
+    public long getConceptsEmitted() {
+        return conceptsEmitted;
+    }
+
+    public long getModifierConcepts() {
+        return modifierConcepts;
+    }
+
+    /**
+     * @return The report in a form that can be serialised as JSON. Times are in milliseconds.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> phases = new LinkedHashMap<>();
+        for (Phase phase : PHASES) {
+            Map<String, Object> times = new LinkedHashMap<>();
+            times.put("wallMs", wall[phase.ordinal()] / 1000000);
+            times.put("cpuMs", cpuTime ? cpu[phase.ordinal()] / 1000000 : null);
+            phases.put(phase.toCode(), times);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("wallMs", totalWall / 1000000);
+        result.put("processCpuMs", totalProcessCpu / 1000000);
+        result.put("gcMs", gcTime);
+        result.put("gcCount", gcCount);
+        result.put("peakHeapBytes", peakHeap);
+        result.put("phases", phases);
+        result.put("inputBytes", inputBytes);
+        result.put("classesRead", classesRead);
+        result.put("classesExcluded", classesExcluded);
+        result.put("conceptsEmitted", conceptsEmitted);
+        result.put("modifierConcepts", modifierConcepts);
+        result.put("designationsByRubricKind", designations);
+        result.put("propertiesByCode", properties);
+        if (diagnostics != null) {
+            result.put("diagnostics", diagnostics.toMap().get("categories"));
+        }
+        return result;
+    }
+
+    /**
+     * Writes {@link #toMap()} as JSON, finishing the report first if needed. The stream is not
+     * closed.
+     */
+    public void write(OutputStream out) throws IOException {
+        if (totalWall < 0) {
+            finish();
+        }
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT)
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                .writeValue(out, toMap());
+    }
+
+}
@@ -0,0 +1,161 @@
+package au.csiro.fhir.claml;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.CodeSystemContentMode;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Writes a code system as a series of FHIR JSON files of bounded size, for loaders and stores that
+ * cannot cope with one very large file.
+ * <p>
+ * Each part is a CodeSystem with the full header, content 'fragment' and a share of the concepts,
+ * streamed with a {@link StreamingCodeSystemWriter}. A new part is started once the current one has
+ * reached the size limit, so a part exceeds it by at most one concept and what the compressor still
+ * holds. The parts carry no count, as the total is only known once the last one has been written.
+ * If the header has an id, the parts get it with their number appended so they can be stored side
+ * by side.
+ * <p>
+ * Every part is an {@link AtomicOutputFile}, and none of them is committed before {@link #finish(int)},
+ * so a run that fails part way leaves the parts of any earlier run as they were. Parts of an earlier
+ * run numbered above the new count are deleted once the new parts are in place.
+ */
+public class SplitCodeSystemWriter implements ConceptSink {
+
+    private static final Logger log = LoggerFactory.getLogger(SplitCodeSystemWriter.class);
+
+    private final FhirContext context;
+    private final File output;
+    private final long maxBytes;
+    private final List<AtomicOutputFile> pending = new ArrayList<>();
+    private final List<File> parts = new ArrayList<>();
+
+    private CodeSystem header;
+    private AtomicOutputFile file;
+    private StreamingCodeSystemWriter writer;
+
+    /**
+     * @param output The name of the whole output. The parts are named after it with their number
+     * inserted before the extension, e.g. cs-1.json.gz, cs-2.json.gz and so on for cs.json.gz.
+     * @param maxBytes The size at which a part is closed.
+     */
+    public SplitCodeSystemWriter(FhirContext context, File output, long maxBytes) {
+        this.context = context;
+        this.output = output;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return The name of the given part of the output.
+     */
+    static File partFile(File output, int part) {
+        String name = output.getName();
+        int dot = name.length();
+        for (String extension : new String[] { ".gz", ".xz" }) {
+            if (name.toLowerCase().endsWith(extension)) {
+                dot -= extension.length();
+            }
+        }
+        if (name.toLowerCase().substring(0, dot).endsWith(".json")) {
+            dot -= ".json".length();
+        }
+        return new File(output.getParentFile(), name.substring(0, dot) + "-" + part + name.substring(dot));
+    }
+
+    /**
+     * @return The parts committed by {@link #finish(int)}.
+     */
+    public List<File> getParts() {
+        return parts;
+    }
+
+    @Override
+    public void start(CodeSystem header) throws IOException {
+        this.header = header;
+        startPart();
+    }
+
+    private void startPart() throws IOException {
+        int number = pending.size() + 1;
+        CodeSystem partHeader = header.copy();
+        partHeader.setContent(CodeSystemContentMode.FRAGMENT);
+        if (header.hasId()) {
+            partHeader.setId(header.getIdElement().getIdPart() + "-" + number);
+        }
+        file = new AtomicOutputFile(partFile(output, number));
+        writer = new StreamingCodeSystemWriter(context, file.getOutputStream());
+        writer.start(partHeader);
+    }
+
+    private void finishPart() throws IOException {
+        writer.finish(-1);
+        writer.close();
+        pending.add(file);
+        log.info("Wrote part " + file.getTarget());
+        file = null;
+        writer = null;
+    }
+
+    @Override
+    public void accept(ConceptDefinitionComponent concept) throws IOException {
+        if (writer == null) {
+            startPart();
+        }
+        writer.accept(concept);
+        if (file.getBytesWritten() >= maxBytes) {
+            finishPart();
+        }
+    }
+
+    @Override
+    public void finish(int count) throws IOException {
+        if (writer != null) {
+            finishPart();
+        }
+        for (AtomicOutputFile part : pending) {
+            part.commit();
+            parts.add(part.getTarget());
+        }
+        for (int number = parts.size() + 1; partFile(output, number).exists(); number++) {
+            Files.delete(partFile(output, number).toPath());
+            log.info("Deleted stale part " + partFile(output, number));
+        }
+        log.info("Wrote " + count + " concepts in " + parts.size() + " parts");
+    }
+
+    /**
+     * Discards the parts unless they have been committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            pending.add(file);
+            file = null;
+        }
+        IOException error = null;
+        for (AtomicOutputFile part : pending) {
+            try {
+                part.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                } else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+}
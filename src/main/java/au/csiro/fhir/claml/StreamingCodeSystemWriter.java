@@ -0,0 +1,183 @@
+package au.csiro.fhir.claml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionDesignationComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptPropertyComponent;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Type;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Writes a code system as FHIR JSON while the transformation is running, so the concepts never have
+ * to be held in memory. The header is encoded by HAPI; each concept is then written to a Jackson
+ * generator as soon as it is received, and the count is written after the concepts.
+ * <p>
+ * The output has the same content as the HAPI encoder would produce for the same code system, but
+ * count is written after concept instead of before property.
+ */
+public class StreamingCodeSystemWriter implements ConceptSink {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final FhirContext context;
+    private final JsonGenerator generator;
+    private boolean conceptsStarted;
+
+    public StreamingCodeSystemWriter(FhirContext context, OutputStream out) throws IOException {
+        this.context = context;
+        this.generator = new JsonFactory(mapper).createGenerator(out, JsonEncoding.UTF8);
+    }
+
+    @Override
+    public void start(CodeSystem header) throws IOException {
+        JsonNode json = mapper.readTree(context.newJsonParser().encodeResourceToString(header));
+        generator.writeStartObject();
+        for (Iterator<Map.Entry<String, JsonNode>> it = json.fields(); it.hasNext();) {
+            Map.Entry<String, JsonNode> field = it.next();
+            generator.writeFieldName(field.getKey());
+            generator.writeTree(field.getValue());
+        }
+    }
+
+    @Override
+    public void accept(ConceptDefinitionComponent concept) throws IOException {
+        if (!conceptsStarted) {
+            generator.writeArrayFieldStart("concept");
+            conceptsStarted = true;
+        }
+        writeConcept(concept);
+    }
+
+    /**
+     * @param count The number of concepts, or a negative number to leave the count out.
+     */
+    @Override
+    public void finish(int count) throws IOException {
+        if (conceptsStarted) {
+            generator.writeEndArray();
+        }
+        if (count >= 0) {
+            generator.writeNumberField("count", count);
+        }
+        generator.writeEndObject();
+        generator.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        generator.close();
+    }
+
+    private void writeConcept(ConceptDefinitionComponent concept) throws IOException {
+        if (concept.hasId() || concept.hasExtension() || concept.hasModifierExtension()) {
+            writeWithHapi(concept);
+            return;
+        }
+        generator.writeStartObject();
+        writeString("code", concept.getCodeElement());
+        writeString("display", concept.getDisplayElement());
+        writeString("definition", concept.getDefinitionElement());
+        if (concept.hasDesignation()) {
+            generator.writeArrayFieldStart("designation");
+            for (ConceptDefinitionDesignationComponent desig : concept.getDesignation()) {
+                generator.writeStartObject();
+                writeString("language", desig.getLanguageElement());
+                if (desig.hasUse()) {
+                    generator.writeFieldName("use");
+                    writeCoding(desig.getUse());
+                }
+                writeString("value", desig.getValueElement());
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+        if (concept.hasProperty()) {
+            generator.writeArrayFieldStart("property");
+            for (ConceptPropertyComponent prop : concept.getProperty()) {
+                generator.writeStartObject();
+                writeString("code", prop.getCodeElement());
+                if (prop.hasValue()) {
+                    writeValue(prop.getValue());
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+        if (concept.hasConcept()) {
+            generator.writeArrayFieldStart("concept");
+            for (ConceptDefinitionComponent child : concept.getConcept()) {
+                writeConcept(child);
+            }
+            generator.writeEndArray();
+        }
+        generator.writeEndObject();
+    }
+
+    private void writeValue(Type value) throws IOException {
+        String name = "value" + Character.toUpperCase(value.fhirType().charAt(0)) + value.fhirType().substring(1);
+        if (value instanceof Coding) {
+            generator.writeFieldName(name);
+            writeCoding((Coding) value);
+        } else if (value instanceof BooleanType) {
+            generator.writeBooleanField(name, ((BooleanType) value).booleanValue());
+        } else if (value instanceof IntegerType) {
+            generator.writeNumberField(name, ((IntegerType) value).getValue());
+        } else if (value instanceof DecimalType) {
+            generator.writeFieldName(name);
+            generator.writeNumber(new BigDecimal(((DecimalType) value).getValueAsString()));
+        } else if (value instanceof PrimitiveType) {
+            writeString(name, (PrimitiveType<?>) value);
+        } else {
+            throw new IOException("Unsupported concept property type " + value.fhirType());
+        }
+    }
+
+    private void writeCoding(Coding coding) throws IOException {
+        generator.writeStartObject();
+        writeString("system", coding.getSystemElement());
+        writeString("version", coding.getVersionElement());
+        writeString("code", coding.getCodeElement());
+        writeString("display", coding.getDisplayElement());
+        if (coding.hasUserSelected()) {
+            generator.writeBooleanField("userSelected", coding.getUserSelected());
+        }
+        generator.writeEndObject();
+    }
+
+    private void writeString(String name, PrimitiveType<?> value) throws IOException {
+        if (value != null && value.hasValue()) {
+            generator.writeStringField(name, value.getValueAsString());
+        }
+    }
+
+    /**
+     * Encodes concepts that carry elements this writer does not handle itself.
+     */
+    private void writeWithHapi(ConceptDefinitionComponent concept) throws IOException {
+        CodeSystem wrapper = new CodeSystem();
+        wrapper.addConcept(concept);
+        IParser parser = context.newJsonParser();
+        JsonNode json = mapper.readTree(parser.encodeResourceToString(wrapper));
+        generator.writeTree(json.get("concept").get(0));
+    }
+
+}
@@ -0,0 +1,65 @@
+package au.csiro.fhir.claml;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+
+/**
+ * Passes the output of a single transformation on to several sinks, in order, so that different
+ * outputs can be produced in the same pass.
+ */
+public class TeeConceptSink implements ConceptSink {
+
+    private final List<ConceptSink> sinks;
+
+    public TeeConceptSink(ConceptSink... sinks) {
+        this.sinks = Arrays.asList(sinks);
+    }
+
+    @Override
+    public void start(CodeSystem header) throws IOException {
+        for (ConceptSink sink : sinks) {
+            sink.start(header);
+        }
+    }
+
+    @Override
+    public void accept(ConceptDefinitionComponent concept) throws IOException {
+        for (ConceptSink sink : sinks) {
+            sink.accept(concept);
+        }
+    }
+
+    @Override
+    public void finish(int count) throws IOException {
+        for (ConceptSink sink : sinks) {
+            sink.finish(count);
+        }
+    }
+
+    /**
+     * Closes every sink, even if closing one of them fails.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (ConceptSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+}
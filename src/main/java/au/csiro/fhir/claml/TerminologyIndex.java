@@ -0,0 +1,412 @@
+package au.csiro.fhir.claml;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionDesignationComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptPropertyComponent;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.StringType;
+
+/**
+ * A read-only index of a converted code system that answers the $lookup, $validate-code and
+ * $subsumes terminology operations without a terminology server. It is built from the output of a
+ * conversion with a {@link TerminologyIndexBuilder}, and is safe to use from several threads. An
+ * index built without the concepts only answers questions about the hierarchy.
+ * <p>
+ * Codes are interned in a {@link CodeDictionary} and everything else is kept in arrays indexed by
+ * their ids. For subsumption, the hierarchy is labelled with intervals: a depth-first walk over
+ * each concept's first parent numbers the concepts in pre-order and records the last number in
+ * each subtree, so a concept is a descendant of another exactly when its number falls in the
+ * other's interval. That is the whole answer unless the concept or one of its ancestors has more
+ * than one parent, which is rare in ClaML; only then are the parents walked.
+ */
+public class TerminologyIndex {
+
+    /**
+     * The relationship between two codes, as returned by $subsumes.
+     */
+    public enum Outcome {
+        EQUIVALENT("equivalent"), SUBSUMES("subsumes"), SUBSUMED_BY("subsumed-by"), NOT_SUBSUMED("not-subsumed");
+
+        private final String code;
+
+        Outcome(String code) {
+            this.code = code;
+        }
+
+        public String toCode() {
+            return code;
+        }
+    }
+
+    private final CodeSystem header;
+    private final CodeDictionary codes;
+    private final ConceptDefinitionComponent[] concepts;
+    // Parents and children of every concept, in compressed rows indexed by id
+    private final int[] parentStart;
+    private final int[] parents;
+    private final int[] childStart;
+    private final int[] children;
+    // Pre-order number of each concept in the tree of first parents, and the last number in its subtree
+    private final int[] pre;
+    private final int[] end;
+    // Number of first parents between each concept and its root
+    private final int[] depth;
+    // Concepts with an ancestor, or themselves, with more than one parent
+    private final BitSet polyhierarchy;
+
+    TerminologyIndex(CodeSystem header, CodeDictionary codes, ConceptDefinitionComponent[] concepts,
+            int[] parentStart, int[] parents) {
+        this.header = header;
+        this.codes = codes;
+        this.concepts = concepts;
+        this.parentStart = parentStart;
+        this.parents = parents;
+        int n = concepts.length;
+
+        childStart = new int[n + 1];
+        for (int parent : parents) {
+            childStart[parent + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            childStart[i + 1] += childStart[i];
+        }
+        children = new int[parents.length];
+        int[] fill = childStart.clone();
+        for (int id = 0; id < n; id++) {
+            for (int i = parentStart[id]; i < parentStart[id + 1]; i++) {
+                children[fill[parents[i]]++] = id;
+            }
+        }
+
+        pre = new int[n];
+        end = new int[n];
+        depth = new int[n];
+        label();
+        polyhierarchy = new BitSet(n);
+        markPolyhierarchy();
+    }
+
+    /**
+     * Numbers the concepts in pre-order over the tree of first parents. Concepts that cannot be
+     * reached from a root, which only happens in a cycle, start trees of their own.
+     */
+    private void label() {
+        int n = concepts.length;
+        BitSet visited = new BitSet(n);
+        int[] stack = new int[n];
+        int[] next = new int[n];
+        int counter = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            for (int root = 0; root < n; root++) {
+                if (visited.get(root) || (pass == 0 && parentStart[root] != parentStart[root + 1])) {
+                    continue;
+                }
+                int depth = 0;
+                stack[0] = root;
+                next[0] = childStart[root];
+                visited.set(root);
+                pre[root] = counter++;
+                while (depth >= 0) {
+                    int node = stack[depth];
+                    if (next[depth] == childStart[node + 1]) {
+                        end[node] = counter - 1;
+                        depth--;
+                        continue;
+                    }
+                    int child = children[next[depth]++];
+                    // Only follow the edge from the child's first parent
+                    if (visited.get(child) || parents[parentStart[child]] != node) {
+                        continue;
+                    }
+                    visited.set(child);
+                    pre[child] = counter++;
+                    this.depth[child] = depth + 1;
+                    depth++;
+                    stack[depth] = child;
+                    next[depth] = childStart[child];
+                }
+            }
+        }
+    }
+
+    private void markPolyhierarchy() {
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int id = 0; id < concepts.length; id++) {
+            if (parentStart[id + 1] - parentStart[id] > 1) {
+                polyhierarchy.set(id);
+                queue.add(id);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int id = queue.poll();
+            for (int i = childStart[id]; i < childStart[id + 1]; i++) {
+                if (!polyhierarchy.get(children[i])) {
+                    polyhierarchy.set(children[i]);
+                    queue.add(children[i]);
+                }
+            }
+        }
+    }
+
+    public String getUrl() {
+        return header.getUrl();
+    }
+
+    public String getVersion() {
+        return header.getVersion();
+    }
+
+    /**
+     * @return The number of concepts.
+     */
+    public int size() {
+        return concepts.length;
+    }
+
+    /**
+     * @return The pre-order number of the code in the tree of first parents. A code subsumes another
+     * if the other's number is between this one and {@link #getIntervalEnd(String)}, unless
+     * {@link #isPolyhierarchy(String)}.
+     * @throws IllegalArgumentException If the code is unknown.
+     */
+    public int getIntervalStart(String code) {
+        return pre[id(code)];
+    }
+
+    /**
+     * @return The highest pre-order number in the code's subtree.
+     * @throws IllegalArgumentException If the code is unknown.
+     */
+    public int getIntervalEnd(String code) {
+        return end[id(code)];
+    }
+
+    /**
+     * @return The number of first parents between the code and its root.
+     * @throws IllegalArgumentException If the code is unknown.
+     */
+    public int getDepth(String code) {
+        return depth[id(code)];
+    }
+
+    /**
+     * @return true if the code or one of its ancestors has more than one parent, so the interval
+     * labels alone do not find all of its ancestors.
+     * @throws IllegalArgumentException If the code is unknown.
+     */
+    public boolean isPolyhierarchy(String code) {
+        return polyhierarchy.get(id(code));
+    }
+
+    String code(int id) {
+        return codes.code(id);
+    }
+
+    int intervalStart(int id) {
+        return pre[id];
+    }
+
+    int intervalEnd(int id) {
+        return end[id];
+    }
+
+    int depth(int id) {
+        return depth[id];
+    }
+
+    boolean isPolyhierarchy(int id) {
+        return polyhierarchy.get(id);
+    }
+
+    /**
+     * @return The ids of the parents of the concept with the id.
+     */
+    int[] parents(int id) {
+        return Arrays.copyOfRange(parents, parentStart[id], parentStart[id + 1]);
+    }
+
+    int parentCount(int id) {
+        return parentStart[id + 1] - parentStart[id];
+    }
+
+    int parent(int id, int i) {
+        return parents[parentStart[id] + i];
+    }
+
+    public boolean contains(String code) {
+        return codes.id(code) >= 0;
+    }
+
+    /**
+     * @return The display of the code, or null if it is unknown.
+     */
+    public String getDisplay(String code) {
+        int id = codes.id(code);
+        return id < 0 ? null : concept(id).getDisplay();
+    }
+
+    /**
+     * @return true if the first code is the same as the second one or one of its ancestors.
+     * @throws IllegalArgumentException If either code is unknown.
+     */
+    public boolean subsumes(String ancestor, String descendant) {
+        return subsumes(id(ancestor), id(descendant));
+    }
+
+    private boolean subsumes(int a, int b) {
+        if (pre[a] <= pre[b] && pre[b] <= end[a]) {
+            return true;
+        }
+        if (!polyhierarchy.get(b)) {
+            return false;
+        }
+        BitSet visited = new BitSet(concepts.length);
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(b);
+        while (!queue.isEmpty()) {
+            int id = queue.poll();
+            for (int i = parentStart[id]; i < parentStart[id + 1]; i++) {
+                int parent = parents[i];
+                if (parent == a || (pre[a] <= pre[parent] && pre[parent] <= end[a])) {
+                    return true;
+                }
+                if (polyhierarchy.get(parent) && !visited.get(parent)) {
+                    visited.set(parent);
+                    queue.add(parent);
+                }
+            }
+        }
+        return false;
+    }
+
+    ConceptDefinitionComponent concept(int id) {
+        if (concepts[id] == null) {
+            throw new IllegalStateException("The index only holds the hierarchy of " + header.getUrl());
+        }
+        return concepts[id];
+    }
+
+    private int id(String code) {
+        int id = codes.id(code);
+        if (id < 0) {
+            throw new IllegalArgumentException("Unknown code " + code + " in " + header.getUrl());
+        }
+        return id;
+    }
+
+    /**
+     * @return The $lookup output for the code, or null if it is unknown.
+     */
+    public Parameters lookup(String code) {
+        int id = codes.id(code);
+        if (id < 0) {
+            return null;
+        }
+        ConceptDefinitionComponent concept = concept(id);
+        Parameters result = new Parameters();
+        if (header.hasName()) {
+            result.addParameter("name", header.getName());
+        }
+        if (header.hasVersion()) {
+            result.addParameter("version", header.getVersion());
+        }
+        if (concept.hasDisplay()) {
+            result.addParameter("display", concept.getDisplay());
+        }
+        if (concept.hasDefinition()) {
+            addProperty(result, "definition").setValue(new StringType(concept.getDefinition()));
+        }
+        for (ConceptDefinitionDesignationComponent designation : concept.getDesignation()) {
+            ParametersParameterComponent parameter = result.addParameter().setName("designation");
+            if (designation.hasLanguage()) {
+                parameter.addPart().setName("language").setValue(new CodeType(designation.getLanguage()));
+            }
+            if (designation.hasUse()) {
+                parameter.addPart().setName("use").setValue(designation.getUse());
+            }
+            parameter.addPart().setName("value").setValue(new StringType(designation.getValue()));
+        }
+        for (ConceptPropertyComponent property : concept.getProperty()) {
+            // The hierarchy is taken from the index, which also knows the children of modified classes
+            if (!property.getCode().equals("parent") && !property.getCode().equals("child")) {
+                addProperty(result, property.getCode()).setValue(property.getValue());
+            }
+        }
+        for (int i = parentStart[id]; i < parentStart[id + 1]; i++) {
+            addProperty(result, "parent").setValue(new CodeType(codes.code(parents[i])));
+        }
+        for (int i = childStart[id]; i < childStart[id + 1]; i++) {
+            addProperty(result, "child").setValue(new CodeType(codes.code(children[i])));
+        }
+        return result;
+    }
+
+    private static ParametersParameterComponent addProperty(Parameters result, String code) {
+        ParametersParameterComponent property = result.addParameter().setName("property");
+        property.addPart().setName("code").setValue(new CodeType(code));
+        return property.addPart().setName("value");
+    }
+
+    /**
+     * @param display The display to check, or null to only check the code. Designations are
+     * accepted as well as the display.
+     * @return The $validate-code output.
+     */
+    public Parameters validateCode(String code, String display) {
+        Parameters result = new Parameters();
+        int id = codes.id(code);
+        if (id < 0) {
+            result.addParameter("result", false);
+            result.addParameter("message", "Unknown code " + code + " in " + header.getUrl());
+            return result;
+        }
+        ConceptDefinitionComponent concept = concept(id);
+        boolean valid = display == null || display.equals(concept.getDisplay())
+                || concept.getDesignation().stream().anyMatch(d -> display.equals(d.getValue()));
+        result.addParameter().setName("result").setValue(new BooleanType(valid));
+        if (!valid) {
+            result.addParameter("message", "The display '" + display + "' is not valid for code " + code
+                    + ", it should be '" + concept.getDisplay() + "'");
+        }
+        if (concept.hasDisplay()) {
+            result.addParameter("display", concept.getDisplay());
+        }
+        return result;
+    }
+
+    /**
+     * @throws IllegalArgumentException If either code is unknown.
+     */
+    public Outcome subsumesOutcome(String codeA, String codeB) {
+        int a = id(codeA);
+        int b = id(codeB);
+        if (a == b) {
+            return Outcome.EQUIVALENT;
+        } else if (subsumes(a, b)) {
+            return Outcome.SUBSUMES;
+        } else if (subsumes(b, a)) {
+            return Outcome.SUBSUMED_BY;
+        }
+        return Outcome.NOT_SUBSUMED;
+    }
+
+    /**
+     * @return The $subsumes output.
+     * @throws IllegalArgumentException If either code is unknown.
+     */
+    public Parameters subsumesParameters(String codeA, String codeB) {
+        Parameters result = new Parameters();
+        result.addParameter().setName("outcome").setValue(new CodeType(subsumesOutcome(codeA, codeB).toCode()));
+        return result;
+    }
+
+}
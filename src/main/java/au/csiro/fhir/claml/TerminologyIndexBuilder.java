@@ -0,0 +1,131 @@
+package au.csiro.fhir.claml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptPropertyComponent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the output of a transformation into a {@link TerminologyIndex}. The hierarchy is taken
+ * from the parent properties of the concepts, and from nesting if a code system with nested
+ * concepts is indexed with {@link #index(CodeSystem)}.
+ */
+public class TerminologyIndexBuilder implements ConceptSink {
+
+    private static final Logger log = LoggerFactory.getLogger(TerminologyIndexBuilder.class);
+
+    private CodeSystem header;
+    private CodeDictionary codes;
+    private final List<ConceptDefinitionComponent> concepts = new ArrayList<>();
+    private final List<List<String>> parentCodes = new ArrayList<>();
+    private final boolean keepConcepts;
+    private TerminologyIndex index;
+
+    public TerminologyIndexBuilder() {
+        this(true);
+    }
+
+    /**
+     * @param keepConcepts false to only index the hierarchy, which needs far less memory but cannot
+     * answer $lookup or $validate-code.
+     */
+    public TerminologyIndexBuilder(boolean keepConcepts) {
+        this.keepConcepts = keepConcepts;
+    }
+
+    /**
+     * @return An index of a code system that is already in memory.
+     */
+    public static TerminologyIndex index(CodeSystem cs) {
+        TerminologyIndexBuilder builder = new TerminologyIndexBuilder();
+        CodeSystem header = cs.copy();
+        header.setConcept(null);
+        builder.start(header);
+        for (ConceptDefinitionComponent concept : cs.getConcept()) {
+            builder.add(concept, null);
+        }
+        builder.finish(cs.getCount());
+        return builder.getIndex();
+    }
+
+    /**
+     * Starting again discards everything collected so far, e.g. when a conversion is retried.
+     */
+    @Override
+    public void start(CodeSystem header) {
+        this.header = header.copy();
+        codes = new CodeDictionary();
+        concepts.clear();
+        parentCodes.clear();
+        index = null;
+    }
+
+    @Override
+    public void accept(ConceptDefinitionComponent concept) {
+        add(concept, null);
+    }
+
+    private void add(ConceptDefinitionComponent concept, String nestedIn) {
+        int id = codes.intern(concept.getCode());
+        if (id < concepts.size()) {
+            log.warn("Ignoring duplicate concept " + concept.getCode());
+            return;
+        }
+        List<String> parents = new ArrayList<>(1);
+        if (nestedIn != null) {
+            parents.add(nestedIn);
+        }
+        for (ConceptPropertyComponent property : concept.getProperty()) {
+            if (property.getCode().equals("parent") && !parents.contains(property.getValue().primitiveValue())) {
+                parents.add(property.getValue().primitiveValue());
+            }
+        }
+        concepts.add(keepConcepts ? concept : null);
+        parentCodes.add(parents);
+        for (ConceptDefinitionComponent child : concept.getConcept()) {
+            add(child, concept.getCode());
+        }
+    }
+
+    /**
+     * Builds the index. Parents that are not concepts of the code system, e.g. because they were
+     * excluded, are left out.
+     */
+    @Override
+    public void finish(int count) {
+        int n = concepts.size();
+        int[] parentStart = new int[n + 1];
+        int[] parents = new int[parentCodes.stream().mapToInt(List::size).sum()];
+        int next = 0;
+        for (int id = 0; id < n; id++) {
+            parentStart[id] = next;
+            for (String code : parentCodes.get(id)) {
+                int parent = codes.id(code);
+                if (parent >= 0 && parent != id) {
+                    parents[next++] = parent;
+                }
+            }
+        }
+        parentStart[n] = next;
+        if (next < parents.length) {
+            parents = Arrays.copyOf(parents, next);
+        }
+        index = new TerminologyIndex(header, codes, concepts.toArray(new ConceptDefinitionComponent[0]),
+                parentStart, parents);
+        parentCodes.clear();
+        concepts.clear();
+    }
+
+    /**
+     * @return The index, once {@link #finish(int)} has been called.
+     */
+    public TerminologyIndex getIndex() {
+        return index;
+    }
+
+}
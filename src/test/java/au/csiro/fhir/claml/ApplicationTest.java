@@ -0,0 +1,78 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.cli.ParseException;
+import org.junit.Test;
+
+public class ApplicationTest {
+
+    @Test
+    public void testSplitArguments() {
+        assertArrayEquals(new String[] { "-i", "in.xml", "-o", "out.json" },
+                Application.splitArguments("  -i in.xml\t-o   out.json "));
+        assertArrayEquals(new String[] { "-i", "ICD 10/in file.xml", "-id", "icd" },
+                Application.splitArguments("-i \"ICD 10/in file.xml\" -id icd"));
+        // Quotes may be part of an argument, and an empty pair is an empty argument
+        assertArrayEquals(new String[] { "-d", "preferred long", "" },
+                Application.splitArguments("-d pre\"ferred long\" \"\""));
+        assertArrayEquals(new String[] { "-url", "http://example.org/a b" },
+                Application.splitArguments("-url \"http://example.org/a b"));
+        assertArrayEquals(new String[0], Application.splitArguments("   "));
+    }
+
+    @Test
+    public void testUploadOptions() throws Exception {
+        ConversionOptions options = Application.toConversionOptions(Application.parseArguments(
+                Application.splitArguments("-i in.xml -o out.json -uploadThreads 2 -uploadChunkSize 1 -uploadRetries 0 -uploadMode Transaction")));
+        assertEquals(2, options.getUploadThreads());
+        assertEquals(1, options.getUploadChunkSize());
+        assertEquals(0, options.getUploadRetries());
+        assertEquals(FhirUploader.Mode.TRANSACTION, options.getUploadMode());
+        for (String invalid : new String[] { "-uploadThreads 0", "-uploadThreads -1", "-uploadThreads two",
+                "-uploadChunkSize 0", "-uploadRetries -1", "-uploadRetries five", "-uploadMode chunked" }) {
+            try {
+                Application.toConversionOptions(Application.parseArguments(
+                        Application.splitArguments("-i in.xml -o out.json " + invalid)));
+                fail(invalid);
+            } catch (ParseException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testHierarchyOutputOption() throws Exception {
+        ConversionOptions options = Application.toConversionOptions(Application.parseArguments(
+                Application.splitArguments("-i in.xml -o out.json -hierarchyOutput Nested")));
+        assertEquals(ConversionOptions.HierarchyOutput.NESTED, options.getHierarchyOutput());
+        try {
+            Application.toConversionOptions(Application.parseArguments(
+                    Application.splitArguments("-i in.xml -o out.json -hierarchyOutput tree")));
+            fail();
+        } catch (ParseException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("properties, parents, nested"));
+        }
+    }
+
+    @Test
+    public void testSplitSizeOption() throws Exception {
+        assertEquals(0, Application.toConversionOptions(Application.parseArguments(
+                Application.splitArguments("-i in.xml -o out.json"))).getSplitSize());
+        assertEquals(3L * 1024 * 1024, Application.toConversionOptions(Application.parseArguments(
+                Application.splitArguments("-i in.xml -o out.json -splitSize 3"))).getSplitSize());
+        for (String invalid : new String[] { "-splitSize 0", "-splitSize -2", "-splitSize big" }) {
+            try {
+                Application.toConversionOptions(Application.parseArguments(
+                        Application.splitArguments("-i in.xml -o out.json " + invalid)));
+                fail(invalid);
+            } catch (ParseException e) {
+                // Expected
+            }
+        }
+    }
+
+}
@@ -0,0 +1,43 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AtomicOutputFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testShortName() throws Exception {
+        File target = new File(folder.getRoot(), "a");
+        byte[] content = "{}".getBytes(StandardCharsets.UTF_8);
+        try (AtomicOutputFile file = new AtomicOutputFile(target)) {
+            file.getOutputStream().write(content);
+            assertFalse(target.exists());
+            file.commit();
+        }
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertEquals(1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testDiscarded() throws Exception {
+        File target = new File(folder.getRoot(), "cs.json");
+        try (AtomicOutputFile file = new AtomicOutputFile(target)) {
+            file.getOutputStream().write(1);
+        }
+        assertFalse(target.exists());
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+}
@@ -0,0 +1,116 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.bind.JAXBContext;
+
+import org.apache.commons.cli.ParseException;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+import ca.uhn.fhir.context.FhirContext;
+
+public class BatchConverterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AnnotationConfigApplicationContext spring;
+    private BatchConverter batchConverter;
+    private File base;
+
+    @Before
+    public void start() throws Exception {
+        JAXBContext jaxbContext = JAXBContext.newInstance(ClaML.class);
+        spring = new AnnotationConfigApplicationContext();
+        spring.registerBean(FhirContext.class, FhirContext::forR4);
+        spring.registerBean(JAXBContext.class, () -> jaxbContext);
+        spring.register(FhirClamlService.class, BatchConverter.class);
+        spring.refresh();
+        batchConverter = spring.getBean(BatchConverter.class);
+        base = folder.newFolder("releases");
+        Files.write(new File(base, "small.xml").toPath(),
+                new SyntheticClamlGenerator().setClassCount(100).setDepth(2).setFanOut(5).toByteArray());
+        Files.write(new File(base, "with modifiers.xml").toPath(), new SyntheticClamlGenerator().setClassCount(200)
+                .setDepth(2).setFanOut(5).setModifiers(2).setModifierClasses(3).setModifiedEvery(2).toByteArray());
+        Files.write(new File(base, "broken.xml").toPath(), "<ClaML><Class".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void stop() {
+        spring.close();
+    }
+
+    @Test
+    public void testConvert() throws Exception {
+        File manifest = manifest(
+                "# Synthetic releases",
+                "-i small.xml -o small.json -id small -ndjson small.ndjson -snapshotDir snapshots",
+                "",
+                "  -i \"with modifiers.xml\" -o out/modified.json -applyModifiers true -streamOutput  ",
+                "-i broken.xml -o broken.json");
+        List<BatchConverter.Entry> entries = Application.readManifest(manifest);
+        assertEquals(3, entries.size());
+        assertEquals(new File(base, "with modifiers.xml"), entries.get(1).getInput());
+        assertEquals(new File(base, "snapshots"), entries.get(0).getOptions().getSnapshotDir());
+
+        new File(base, "out").mkdirs();
+        List<BatchConverter.Result> results = batchConverter.convert(entries, 2);
+        assertEquals(3, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertTrue(results.get(i).getEntry() == entries.get(i));
+            assertTrue(results.get(i).getWallMillis() >= 0);
+        }
+        assertNull(results.get(0).getError());
+        assertNull(results.get(1).getError());
+        assertNotNull(results.get(2).getError());
+
+        CodeSystem small = FhirContext.forR4().newJsonParser().parseResource(CodeSystem.class,
+                Files.readString(new File(base, "small.json").toPath()));
+        assertEquals("small", small.getIdElement().getIdPart());
+        assertEquals(small.getConcept().size(), Files.readAllLines(new File(base, "small.ndjson").toPath()).size());
+        assertTrue(new File(base, "snapshots").list().length > 0);
+        CodeSystem modified = FhirContext.forR4().newJsonParser().parseResource(CodeSystem.class,
+                Files.readString(new File(base, "out/modified.json").toPath()));
+        assertTrue(modified.getConcept().size() > 200);
+        assertTrue(!new File(base, "broken.json").exists());
+    }
+
+    @Test
+    public void testInvalidManifest() throws Exception {
+        for (String line : new String[] { "-i small.xml", "-i small.xml -o small.json -nonsense",
+                "-i small.xml -o small.json -hierarchyOutput nonsense", "-i small.xml -o small.json -uploadMode nonsense",
+                "-i small.xml -o small.json -uploadRetries many" }) {
+            File manifest = manifest("# Header", "-i small.xml -o small.json", line);
+            try {
+                Application.readManifest(manifest);
+                fail(line);
+            } catch (ParseException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Line 3 of " + manifest + ": "));
+            }
+        }
+    }
+
+    private File manifest(String... lines) throws Exception {
+        File manifest = new File(base, "manifest.txt");
+        Files.write(manifest.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        return manifest;
+    }
+
+}
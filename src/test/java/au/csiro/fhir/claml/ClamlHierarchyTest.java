@@ -0,0 +1,62 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class ClamlHierarchyTest {
+
+    @Test
+    public void testTreeIndependentOfDeclarationOrder() {
+        ClamlHierarchy hierarchy = new ClamlHierarchy();
+        // Grandchild edges are declared before the root, and the root edges are declared twice
+        hierarchy.addEdge("A.1", "A.1.1");
+        hierarchy.addEdge("A.1", "A.1.2");
+        hierarchy.addEdge("A", "A.1");
+        hierarchy.addEdge("A", "A.2");
+        hierarchy.addEdge("A", "A.1");
+        hierarchy.addCode("B");
+        hierarchy.build();
+
+        assertTrue(hierarchy.isTree());
+        assertEquals(new HashSet<>(Arrays.asList("A.1", "A.1.1", "A.1.2", "A.2")), new HashSet<>(hierarchy.descendants("A")));
+        assertEquals(Arrays.asList("A.1", "A.2"), hierarchy.children("A"));
+        assertEquals(Arrays.asList("A.1", "A"), hierarchy.ancestors("A.1.2"));
+        assertEquals(new HashSet<>(Arrays.asList("A.1.1", "A.1.2", "A.2")), new HashSet<>(hierarchy.leaves("A")));
+        assertFalse(hierarchy.isLeaf("A.1"));
+        assertTrue(hierarchy.isLeaf("A.2"));
+        assertTrue(hierarchy.isLeaf("B"));
+        assertTrue(hierarchy.descendants("B").isEmpty());
+        assertTrue(hierarchy.isLeaf("unknown"));
+    }
+
+    @Test
+    public void testPolyhierarchy() {
+        ClamlHierarchy hierarchy = new ClamlHierarchy();
+        hierarchy.addEdge("A", "C");
+        hierarchy.addEdge("B", "C");
+        hierarchy.addEdge("C", "D");
+        hierarchy.build();
+
+        assertFalse(hierarchy.isTree());
+        assertEquals(new HashSet<>(Arrays.asList("C", "D")), new HashSet<>(hierarchy.descendants("B")));
+        assertEquals(new HashSet<>(Arrays.asList("A", "B", "C")), new HashSet<>(hierarchy.ancestors("D")));
+    }
+
+    @Test
+    public void testCycleDoesNotLoop() {
+        ClamlHierarchy hierarchy = new ClamlHierarchy();
+        hierarchy.addEdge("A", "B");
+        hierarchy.addEdge("B", "A");
+        hierarchy.build();
+
+        assertEquals(Arrays.asList("B"), hierarchy.descendants("A"));
+        assertEquals(Arrays.asList("A"), hierarchy.ancestors("B"));
+    }
+
+}
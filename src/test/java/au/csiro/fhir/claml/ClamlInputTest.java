@@ -0,0 +1,122 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.xml.bind.JAXBContext;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+
+public class ClamlInputTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] XML;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        XML = new SyntheticClamlGenerator().setClassCount(50).toByteArray();
+    }
+
+    private static byte[] read(File file, String entryPattern) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = ClamlInput.open(file, entryPattern)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private File zip(String... names) throws IOException {
+        File file = folder.newFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            for (String name : names) {
+                out.putNextEntry(new ZipEntry(name));
+                out.write(name.endsWith(".xml") ? XML : "readme".getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    @Test
+    public void testFormats() throws Exception {
+        File xml = folder.newFile();
+        try (OutputStream out = new FileOutputStream(xml)) {
+            out.write(XML);
+        }
+        File gz = folder.newFile();
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gz))) {
+            out.write(XML);
+        }
+        File xz = folder.newFile();
+        try (OutputStream out = new XZOutputStream(new FileOutputStream(xz), new LZMA2Options())) {
+            out.write(XML);
+        }
+        File zip = zip("readme.txt", "release/ClaML.xml");
+
+        assertEquals(ClamlInput.Format.XML, ClamlInput.detect(xml));
+        assertEquals(ClamlInput.Format.GZIP, ClamlInput.detect(gz));
+        assertEquals(ClamlInput.Format.XZ, ClamlInput.detect(xz));
+        assertEquals(ClamlInput.Format.ZIP, ClamlInput.detect(zip));
+        for (File file : new File[] { xml, gz, xz, zip }) {
+            assertArrayEquals(XML, read(file, null));
+        }
+    }
+
+    @Test
+    public void testZipEntryPattern() throws Exception {
+        File zip = zip("icd10gm2024syst_claml_20230915.xml", "icd10gm2024_alpha.xml");
+        try {
+            read(zip, null);
+            fail("Expected the entry to be ambiguous");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("More than one entry"));
+        }
+        assertArrayEquals(XML, read(zip, "syst_claml"));
+        try {
+            read(zip, "ops");
+            fail("Expected no entry to match");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("No entry"));
+        }
+    }
+
+    @Test
+    public void testDeclaredEncoding() throws Exception {
+        File file = folder.newFile();
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+            out.write(("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n"
+                    + "<ClaML version=\"2.0.0\"><Title name=\"t\" version=\"1\">Krankheiten des Kreislaufsystems äöü</Title>"
+                    + "</ClaML>").getBytes(StandardCharsets.ISO_8859_1));
+        }
+        try (ClamlReader reader = new ClamlReader(JAXBContext.newInstance(ClaML.class), ClamlInput.open(file, null))) {
+            assertEquals("Krankheiten des Kreislaufsystems äöü", reader.readHeader().getTitle().getContent());
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.sax.SAXSource;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+import au.csiro.fhir.claml.model.claml.Class;
+import au.csiro.fhir.claml.model.claml.ClassKind;
+import au.csiro.fhir.claml.model.claml.Rubric;
+import au.csiro.fhir.claml.model.claml.RubricKind;
+
+public class ClamlReaderTest {
+
+    private static JAXBContext jaxbContext;
+
+    @BeforeClass
+    public static void init() throws JAXBException {
+        jaxbContext = JAXBContext.newInstance(ClaML.class);
+    }
+
+    @Test
+    public void testReadHeaderThenClasses() throws Exception {
+        try (ClamlReader reader = new ClamlReader(jaxbContext,
+                new FileInputStream(new ClassPathResource("modifiers-test.xml").getFile()))) {
+            ClaML header = reader.readHeader();
+            assertEquals("2.0.0", header.getVersion());
+            assertEquals("example", header.getTitle().getName());
+            assertEquals(2, header.getClassKinds().getClassKind().size());
+            assertEquals(2, header.getModifier().size());
+            assertEquals(4, header.getModifierClass().size());
+            assertTrue(header.getClazz().isEmpty());
+            // IDREFs in the header resolve to the header's rubric kinds
+            assertTrue(header.getModifierClass().get(0).getRubric().get(0).getKind() instanceof RubricKind);
+
+            List<String> codes = new ArrayList<>();
+            while (reader.hasNext()) {
+                Class c = reader.next();
+                codes.add(c.getCode());
+                // IDREFs in a class resolve to the kinds declared in the header
+                assertTrue(c.getKind() instanceof ClassKind);
+                assertTrue(c.getRubric().get(0).getKind() instanceof RubricKind);
+                assertTrue(header.getRubricKinds().getRubricKind().contains(c.getRubric().get(0).getKind()));
+            }
+            assertEquals("A,B,C,D,A.1,A.2,A.3", codes.stream().collect(Collectors.joining(",")));
+            assertFalse(reader.hasNext());
+        }
+    }
+
+    @Test
+    public void testDoesNotLoadExternalDtd() throws Exception {
+        try (ClamlReader reader = new ClamlReader(jaxbContext,
+                new FileInputStream(new ClassPathResource("simple-claml.xml").getFile()))) {
+            reader.readHeader();
+            int count = 0;
+            while (reader.hasNext()) {
+                reader.next();
+                count++;
+            }
+            assertEquals(6, count);
+        }
+    }
+
+    @Test
+    public void testSameResultAsFullUnmarshal() throws Exception {
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        XMLReader xmlReader = spf.newSAXParser().getXMLReader();
+        ClaML claml = (ClaML) jaxbContext.createUnmarshaller().unmarshal(new SAXSource(xmlReader,
+                new InputSource(new FileReader(new ClassPathResource("modifiers-test.xml").getFile()))));
+
+        FhirClamlService service = new FhirClamlService();
+        CodeSystem expected = service.claml2FhirObject(claml, Collections.emptyList(), null, Collections.emptyList(),
+                Collections.emptyList(), false, null, null, null, null, null, false, false, true, "draft");
+
+        try (ClamlReader reader = new ClamlReader(jaxbContext,
+                new FileInputStream(new ClassPathResource("modifiers-test.xml").getFile()))) {
+            CodeSystemBuilder builder = new CodeSystemBuilder();
+            service.claml2Fhir(reader.readHeader(), reader, new ConversionOptions(), builder);
+            assertTrue(expected.equalsDeep(builder.getCodeSystem()));
+        }
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        byte[] xml = new SyntheticClamlGenerator()
+                .setClassCount(300)
+                .setDepth(2)
+                .setFanOut(5)
+                .setRubricsPerClass(8)
+                .setLabelDepth(2)
+                .setModifiers(1)
+                .setModifierClasses(2)
+                .setModifiedEvery(3)
+                .toByteArray();
+        ConversionOptions options = new ConversionOptions()
+                .setExcludeClassKinds(Arrays.asList("block"))
+                .setExcludeRubricKinds(Arrays.asList("note", "introduction"))
+                .setApplyModifiers(true);
+        FhirClamlService service = new FhirClamlService();
+
+        CodeSystemBuilder unfiltered = new CodeSystemBuilder();
+        try (ClamlReader reader = new ClamlReader(jaxbContext, new ByteArrayInputStream(xml))) {
+            service.claml2Fhir(reader.readHeader(), reader, options, unfiltered);
+        }
+
+        List<Class> classes = new ArrayList<>();
+        try (ClamlReader reader = new ClamlReader(jaxbContext, new ByteArrayInputStream(xml), new ClamlFilter(options))) {
+            reader.readHeader();
+            while (reader.hasNext()) {
+                classes.add(reader.next());
+            }
+        }
+        assertFalse(classes.isEmpty());
+        for (Class c : classes) {
+            assertFalse("block".equals(((ClassKind) c.getKind()).getName()));
+            for (Rubric rubric : c.getRubric()) {
+                assertFalse(options.getExcludeRubricKinds().contains(((RubricKind) rubric.getKind()).getName()));
+            }
+        }
+
+        CodeSystemBuilder filtered = new CodeSystemBuilder();
+        try (ClamlReader reader = new ClamlReader(jaxbContext, new ByteArrayInputStream(xml), new ClamlFilter(options))) {
+            service.claml2Fhir(reader.readHeader(), reader, options, filtered);
+        }
+        assertTrue(unfiltered.getCodeSystem().equalsDeep(filtered.getCodeSystem()));
+    }
+
+}
@@ -0,0 +1,213 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+import au.csiro.fhir.claml.model.claml.Class;
+import au.csiro.fhir.claml.model.claml.RubricKind;
+import ca.uhn.fhir.context.FhirContext;
+
+public class ClamlSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] claml() throws Exception {
+        return new SyntheticClamlGenerator()
+                .setClassCount(500)
+                .setDepth(2)
+                .setFanOut(6)
+                .setRubricsPerClass(8)
+                .setLabelDepth(3)
+                .setLanguages("en", "fr")
+                .setModifiers(2)
+                .setModifierClasses(3)
+                .setModifiedEvery(5)
+                .toByteArray();
+    }
+
+    private static ConversionOptions options() {
+        return new ConversionOptions()
+                .setDisplayRubrics(Arrays.asList("preferredLong", "preferred"))
+                .setDesignationRubrics(Arrays.asList("inclusion", "exclusion"))
+                .setApplyModifiers(true);
+    }
+
+    private static CodeSystem convert(ClaML header, Iterator<Class> classes) throws IOException {
+        CodeSystemBuilder builder = new CodeSystemBuilder();
+        new FhirClamlService().claml2Fhir(header, classes, options(), builder);
+        return builder.getCodeSystem();
+    }
+
+    @Test
+    public void testSameConversionAsXml() throws Exception {
+        byte[] xml = claml();
+        JAXBContext jaxbContext = JAXBContext.newInstance(ClaML.class);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CodeSystem fromXml;
+        try (ClamlReader reader = new ClamlReader(jaxbContext, new ByteArrayInputStream(xml));
+                ClamlSnapshotWriter writer = new ClamlSnapshotWriter(out)) {
+            writer.writeHeader(reader.readHeader());
+            while (reader.hasNext()) {
+                writer.writeClass(reader.next());
+            }
+            writer.finish();
+        }
+        try (ClamlReader reader = new ClamlReader(jaxbContext, new ByteArrayInputStream(xml))) {
+            fromXml = convert(reader.readHeader(), reader);
+        }
+        assertTrue(out.size() < xml.length / 2);
+
+        try (ClamlSnapshotReader reader = new ClamlSnapshotReader(new ByteArrayInputStream(out.toByteArray()))) {
+            ClaML header = reader.readHeader();
+            // IDREFs point to the objects declared in the header
+            Class first = reader.next();
+            assertTrue(header.getClassKinds().getClassKind().contains(first.getKind()));
+            RubricKind kind = (RubricKind) first.getRubric().get(0).getKind();
+            assertSame(kind, header.getRubricKinds().getRubricKind().stream()
+                    .filter(k -> k.getName().equals(kind.getName())).findFirst().get());
+        }
+        try (ClamlSnapshotReader reader = new ClamlSnapshotReader(new ByteArrayInputStream(out.toByteArray()))) {
+            CodeSystem fromSnapshot = convert(reader.readHeader(), reader);
+            assertEquals(fromXml.getConcept().size(), fromSnapshot.getConcept().size());
+            assertTrue(fromXml.equalsDeep(fromSnapshot));
+        }
+    }
+
+    @Test
+    public void testRecording() throws Exception {
+        File input = folder.newFile("input.xml");
+        try (FileOutputStream out = new FileOutputStream(input)) {
+            out.write(claml());
+        }
+        File dir = new File(folder.getRoot(), "snapshots");
+        ClamlSnapshotCache cache = new ClamlSnapshotCache(dir);
+        File snapshot = cache.getSnapshotFile(input, null);
+        assertEquals(snapshot, cache.getSnapshotFile(input, null));
+        assertFalse(snapshot.exists());
+
+        JAXBContext jaxbContext = JAXBContext.newInstance(ClaML.class);
+        CodeSystem fromXml;
+        try (ClamlReader reader = new ClamlReader(jaxbContext, new FileInputStream(input))) {
+            try (ClamlSnapshotCache.Recording recording = cache.record(snapshot, reader.readHeader(), reader)) {
+                fromXml = convert(reader.readHeader(), recording);
+                recording.commit();
+            }
+        }
+        assertTrue(snapshot.isFile());
+        assertEquals(1, dir.list().length);
+
+        try (ClamlSnapshotReader reader = new ClamlSnapshotReader(new FileInputStream(snapshot))) {
+            assertTrue(fromXml.equalsDeep(convert(reader.readHeader(), reader)));
+        }
+    }
+
+    @Test
+    public void testAbandonedRecording() throws Exception {
+        File input = folder.newFile("input.xml");
+        try (FileOutputStream out = new FileOutputStream(input)) {
+            out.write(claml());
+        }
+        File dir = new File(folder.getRoot(), "snapshots");
+        ClamlSnapshotCache cache = new ClamlSnapshotCache(dir);
+        File snapshot = cache.getSnapshotFile(input, null);
+        try (ClamlReader reader = new ClamlReader(JAXBContext.newInstance(ClaML.class), new FileInputStream(input));
+                ClamlSnapshotCache.Recording recording = cache.record(snapshot, reader.readHeader(), reader)) {
+            recording.next();
+        }
+        assertFalse(snapshot.exists());
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws Exception {
+        File input = folder.newFile("input.xml");
+        Files.write(input.toPath(), claml());
+        File dir = new File(folder.getRoot(), "snapshots");
+        ConversionOptions options = options().setSnapshotDir(dir);
+        File expected = new File(folder.getRoot(), "expected.json");
+        File output = new File(folder.getRoot(), "output.json");
+
+        JAXBContext jaxbContext = JAXBContext.newInstance(ClaML.class);
+        try (AnnotationConfigApplicationContext spring = new AnnotationConfigApplicationContext()) {
+            spring.registerBean(FhirContext.class, FhirContext::forR4);
+            spring.registerBean(JAXBContext.class, () -> jaxbContext);
+            spring.register(FhirClamlService.class);
+            spring.refresh();
+            FhirClamlService service = spring.getBean(FhirClamlService.class);
+            service.claml2fhir(input, options, expected);
+            File snapshot = new ClamlSnapshotCache(dir).getSnapshotFile(input, null);
+            byte[] complete = Files.readAllBytes(snapshot.toPath());
+
+            // Cut short part way through the classes, and then not a snapshot at all
+            for (byte[] corrupt : new byte[][] { Arrays.copyOf(complete, complete.length * 2 / 3),
+                    "nonsense".getBytes(StandardCharsets.UTF_8) }) {
+                Files.write(snapshot.toPath(), corrupt);
+                TerminologyIndexBuilder listener = new TerminologyIndexBuilder();
+                service.claml2fhir(input, options, output, listener);
+
+                // The conversion falls back to the XML and records the snapshot again
+                assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(output.toPath()));
+                assertArrayEquals(complete, Files.readAllBytes(snapshot.toPath()));
+                CodeSystem cs = FhirContext.forR4().newJsonParser().parseResource(CodeSystem.class,
+                        new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8));
+                assertEquals(cs.getCount(), listener.getIndex().size());
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptLength() throws Exception {
+        // The version string of the header claims to be almost 2 GB long, and then to be -1 long
+        for (byte[] length : new byte[][] { { (byte) 0xF0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 },
+                { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F } }) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (DataOutputStream data = new DataOutputStream(out)) {
+                data.writeInt(ClamlSnapshotWriter.MAGIC);
+                data.writeInt(ClamlSnapshotWriter.FORMAT_VERSION);
+                data.write(ClamlSnapshotWriter.STRING_INLINE);
+                data.write(length);
+                data.write(new byte[1024 * 1024]);
+            }
+            try (ClamlSnapshotReader reader = new ClamlSnapshotReader(new ByteArrayInputStream(out.toByteArray()))) {
+                reader.readHeader();
+                fail();
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotASnapshot() throws Exception {
+        try (ClamlSnapshotReader reader = new ClamlSnapshotReader(new ByteArrayInputStream(claml()))) {
+            reader.readHeader();
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeType;
+import org.junit.Test;
+
+public class ClosureTableWriterTest {
+
+    @Test
+    public void testCsv() throws Exception {
+        // B and C are under A, and "D,1" is under both
+        CodeSystem cs = new CodeSystem();
+        cs.addConcept().setCode("A");
+        cs.addConcept().setCode("B").addProperty().setCode("parent").setValue(new CodeType("A"));
+        cs.addConcept().setCode("C").addProperty().setCode("parent").setValue(new CodeType("A"));
+        ConceptDefinitionComponent d = cs.addConcept().setCode("D,1");
+        d.addProperty().setCode("parent").setValue(new CodeType("B"));
+        d.addProperty().setCode("parent").setValue(new CodeType("C"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long rows = new ClosureTableWriter(TerminologyIndexBuilder.index(cs)).write(out, ClosureTableWriter.Format.CSV);
+        List<String> lines = Arrays.asList(new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n"));
+        assertEquals(Arrays.asList(
+                "ancestor,descendant,distance",
+                "A,A,0",
+                "B,B,0", "A,B,1",
+                "C,C,0", "A,C,1",
+                "\"D,1\",\"D,1\",0", "B,\"D,1\",1", "C,\"D,1\",1", "A,\"D,1\",2"), lines);
+        assertEquals(lines.size() - 1, rows);
+    }
+
+    @Test
+    public void testModifiedCodes() throws Exception {
+        CodeSystemBuilder builder = new CodeSystemBuilder();
+        TerminologyIndexBuilder full = new TerminologyIndexBuilder();
+        TerminologyIndexBuilder hierarchy = new TerminologyIndexBuilder(false);
+        SyntheticClamlGenerator.modified().convert(new ConversionOptions().setApplyModifiers(true), builder, full, hierarchy);
+        CodeSystem cs = builder.getCodeSystem();
+        assertTrue(cs.getCount() > 300);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long rows = new ClosureTableWriter(hierarchy.getIndex()).write(out, ClosureTableWriter.Format.BINARY);
+
+        // Every pair in the closure is a subsumption, and every subsumption is in the closure
+        TerminologyIndex index = full.getIndex();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(ClosureTableWriter.MAGIC, in.readInt());
+        assertEquals(ClosureTableWriter.FORMAT_VERSION, in.readInt());
+        String[] codes = new String[in.readInt()];
+        assertEquals(cs.getCount(), codes.length);
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = in.readUTF();
+        }
+        long read = 0;
+        for (String descendant : codes) {
+            Set<String> ancestors = new HashSet<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String ancestor = codes[in.readInt()];
+                short distance = in.readShort();
+                assertTrue(index.subsumes(ancestor, descendant));
+                assertEquals(ancestor.equals(descendant), distance == 0);
+                ancestors.add(ancestor);
+            }
+            for (String code : codes) {
+                assertEquals(code + " " + descendant, index.subsumes(code, descendant), ancestors.contains(code));
+            }
+            read += count;
+        }
+        assertEquals(rows, read);
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testFormat() {
+        assertEquals(ClosureTableWriter.Format.CSV, ClosureTableWriter.Format.of(new File("closure.csv.gz")));
+        assertEquals(ClosureTableWriter.Format.BINARY, ClosureTableWriter.Format.of(new File("closure.bin")));
+    }
+
+}
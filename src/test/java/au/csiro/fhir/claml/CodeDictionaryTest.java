@@ -0,0 +1,34 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class CodeDictionaryTest {
+
+    @Test
+    public void testInterning() {
+        CodeDictionary codes = new CodeDictionary(4);
+        int n = 100000;
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, codes.intern("A" + i));
+        }
+        assertEquals(n, codes.size());
+        for (int i = 0; i < n; i++) {
+            // Equal but not identical strings find the same id
+            assertEquals(i, codes.intern(new String("A" + i)));
+            assertEquals(i, codes.id("A" + i));
+            assertEquals("A" + i, codes.code(i));
+        }
+        assertEquals(n, codes.size());
+        assertEquals(-1, codes.id("B0"));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testUnknownId() {
+        CodeDictionary codes = new CodeDictionary();
+        codes.intern("A");
+        codes.code(1);
+    }
+
+}
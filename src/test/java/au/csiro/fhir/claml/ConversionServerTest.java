@@ -0,0 +1,252 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Map;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.Parameters;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+import ca.uhn.fhir.context.FhirContext;
+
+public class ConversionServerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AnnotationConfigApplicationContext spring;
+    private ConversionServer server;
+    private HttpClient client = HttpClient.newHttpClient();
+    private ObjectMapper mapper = new ObjectMapper();
+    private byte[] xml;
+    private File inputRoot;
+
+    @Before
+    public void start() throws Exception {
+        JAXBContext jaxbContext = JAXBContext.newInstance(ClaML.class);
+        spring = new AnnotationConfigApplicationContext();
+        spring.registerBean(FhirContext.class, FhirContext::forR4);
+        spring.registerBean(JAXBContext.class, () -> jaxbContext);
+        spring.register(FhirClamlService.class, ConversionServer.class);
+        spring.refresh();
+        server = spring.getBean(ConversionServer.class);
+        inputRoot = folder.newFolder("input");
+        server.start(0, 2, folder.newFolder("work"), inputRoot);
+        xml = new SyntheticClamlGenerator().setClassCount(500).setDepth(2).setFanOut(10).setRubricsPerClass(2).toByteArray();
+    }
+
+    @After
+    public void stop() {
+        server.stop();
+        spring.close();
+    }
+
+    @Test
+    public void testUpload() throws Exception {
+        HttpResponse<String> submitted = submit("-id synthetic -streamOutput", HttpRequest.BodyPublishers.ofByteArray(xml));
+        assertEquals(202, submitted.statusCode());
+        String location = submitted.headers().firstValue("Location").get();
+
+        Map<?, ?> status = await(location);
+        assertEquals("DONE", status.get("status"));
+
+        HttpResponse<String> result = client.send(HttpRequest.newBuilder(uri(location + "/result")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, result.statusCode());
+        CodeSystem cs = FhirContext.forR4().newJsonParser().parseResource(CodeSystem.class, result.body());
+        assertEquals("synthetic", cs.getIdElement().getIdPart());
+        assertEquals(cs.getCount(), ((Number) status.get("concepts")).intValue());
+
+        HttpResponse<String> deleted = client.send(HttpRequest.newBuilder(uri(location)).DELETE().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, deleted.statusCode());
+        assertEquals(404, client.send(HttpRequest.newBuilder(uri(location)).build(),
+                HttpResponse.BodyHandlers.ofString()).statusCode());
+    }
+
+    @Test
+    public void testPath() throws Exception {
+        File input = new File(inputRoot, "synthetic.xml");
+        Files.write(input.toPath(), xml);
+        HttpResponse<String> submitted = submit("-i \"" + input.getPath() + "\" -excludeRubricKinds note",
+                HttpRequest.BodyPublishers.noBody());
+        assertEquals(202, submitted.statusCode());
+        Map<?, ?> status = await(submitted.headers().firstValue("Location").get());
+        assertEquals("DONE", status.get("status"));
+        assertTrue(((Number) status.get("concepts")).intValue() > 0);
+
+        // Relative paths are resolved against the input root
+        assertEquals(202, submit("-i synthetic.xml", HttpRequest.BodyPublishers.noBody()).statusCode());
+
+        File outside = folder.newFile("outside.xml");
+        Files.write(outside.toPath(), xml);
+        assertEquals(400, submit("-i \"" + outside.getPath() + "\"", HttpRequest.BodyPublishers.noBody()).statusCode());
+        assertEquals(400, submit("-i ../outside.xml", HttpRequest.BodyPublishers.noBody()).statusCode());
+        assertEquals(400, submit("-i /etc/passwd", HttpRequest.BodyPublishers.noBody()).statusCode());
+    }
+
+    @Test
+    public void testExports() throws Exception {
+        URI uri = uri("/jobs?exports=ndjson,closure,diagnostics,report&options="
+                + URLEncoder.encode("-applyModifiers true", StandardCharsets.UTF_8));
+        HttpResponse<String> submitted = client.send(HttpRequest.newBuilder(uri)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(xml)).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(202, submitted.statusCode());
+        String location = submitted.headers().firstValue("Location").get();
+        Map<?, ?> status = await(location);
+        assertEquals("DONE", status.get("status"));
+        assertEquals(4, ((Map<?, ?>) status.get("exports")).size());
+
+        HttpResponse<String> ndjson = client.send(HttpRequest.newBuilder(uri(location + "/ndjson")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, ndjson.statusCode());
+        assertEquals(((Number) status.get("concepts")).longValue(), ndjson.body().lines().count());
+        HttpResponse<String> closure = client.send(HttpRequest.newBuilder(uri(location + "/closure")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertTrue(closure.body().startsWith("ancestor,descendant,distance"));
+        HttpResponse<String> report = client.send(HttpRequest.newBuilder(uri(location + "/report")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, report.statusCode());
+        assertTrue(mapper.readValue(report.body(), Map.class).containsKey("phases"));
+        assertEquals(404, client.send(HttpRequest.newBuilder(uri(location + "/intervals")).build(),
+                HttpResponse.BodyHandlers.ofString()).statusCode());
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        HttpResponse<String> submitted = client.send(HttpRequest.newBuilder(uri("/jobs?index=true&options="
+                + URLEncoder.encode("-url http://example.org/synthetic", StandardCharsets.UTF_8)))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(xml)).build(), HttpResponse.BodyHandlers.ofString());
+        Map<?, ?> status = await(submitted.headers().firstValue("Location").get());
+        assertEquals("http://example.org/synthetic", status.get("system"));
+
+        CodeSystem cs = FhirContext.forR4().newJsonParser().parseResource(CodeSystem.class, client.send(
+                HttpRequest.newBuilder(uri(status.get("result").toString())).build(), HttpResponse.BodyHandlers.ofString()).body());
+        ConceptDefinitionComponent child = cs.getConcept().stream()
+                .filter(c -> c.getProperty().stream().anyMatch(p -> p.getCode().equals("parent")))
+                .findFirst().get();
+        String parent = child.getProperty().stream().filter(p -> p.getCode().equals("parent")).findFirst().get()
+                .getValue().primitiveValue();
+
+        String system = "system=" + URLEncoder.encode("http://example.org/synthetic", StandardCharsets.UTF_8);
+        Parameters lookup = operation("$lookup?" + system + "&code=" + child.getCode());
+        assertEquals(child.getDisplay(), lookup.getParameter("display").getValue().primitiveValue());
+        Parameters subsumes = operation("$subsumes?" + system + "&codeA=" + parent + "&codeB=" + child.getCode());
+        assertEquals("subsumes", subsumes.getParameter("outcome").getValue().primitiveValue());
+        Parameters validate = operation("$validate-code?" + system + "&code=nonsense");
+        assertEquals("false", validate.getParameter("result").getValue().primitiveValue());
+
+        assertEquals(404, client.send(HttpRequest.newBuilder(uri("/CodeSystem/$lookup?system=other&code=A")).build(),
+                HttpResponse.BodyHandlers.ofString()).statusCode());
+    }
+
+    private Parameters operation(String query) throws Exception {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri("/CodeSystem/" + query)).build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        return FhirContext.forR4().newJsonParser().parseResource(Parameters.class, response.body());
+    }
+
+    @Test
+    public void testRejected() throws Exception {
+        assertEquals(400, submit("-o out.json", HttpRequest.BodyPublishers.ofByteArray(xml)).statusCode());
+        assertEquals(400, submit("-hierarchyOutput nonsense", HttpRequest.BodyPublishers.ofByteArray(xml)).statusCode());
+        assertEquals(400, submit("", HttpRequest.BodyPublishers.noBody()).statusCode());
+        assertEquals(400, client.send(HttpRequest.newBuilder(uri("/jobs?exports=nonsense"))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(xml)).build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+        assertFalse(folder.getRoot().toPath().resolve("work").toFile().list().length > 0);
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        HttpResponse<String> submitted = client.send(HttpRequest.newBuilder(uri("/jobs?index=true&options="
+                + URLEncoder.encode("-url http://example.org/synthetic", StandardCharsets.UTF_8)))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(xml)).build(), HttpResponse.BodyHandlers.ofString());
+        String location = submitted.headers().firstValue("Location").get();
+        assertEquals("DONE", await(location).get("status"));
+
+        // Kept until it is older than the retention time
+        server.expireJobs();
+        assertEquals(200, client.send(HttpRequest.newBuilder(uri(location)).build(),
+                HttpResponse.BodyHandlers.ofString()).statusCode());
+        server.setRetention(Duration.ZERO);
+        server.expireJobs();
+        assertEquals(404, client.send(HttpRequest.newBuilder(uri(location)).build(),
+                HttpResponse.BodyHandlers.ofString()).statusCode());
+        assertEquals(404, client.send(HttpRequest.newBuilder(uri("/CodeSystem/$lookup?system="
+                + URLEncoder.encode("http://example.org/synthetic", StandardCharsets.UTF_8) + "&code=A")).build(),
+                HttpResponse.BodyHandlers.ofString()).statusCode());
+        assertEquals(0, folder.getRoot().toPath().resolve("work").toFile().list().length);
+    }
+
+    @Test
+    public void testBannedOptions() throws Exception {
+        String path = new File(folder.getRoot(), "written").getPath();
+        for (String options : new String[] { "-o " + path, "--output " + path, "--output=" + path, "-o" + path,
+                "-splitSize 1", "-ndjson " + path, "-intervals " + path, "-closure " + path, "-diagnostics " + path,
+                "-snapshotDir " + path, "-report", "-uploadUrl http://example.org/fhir", "-uploadMode transaction",
+                "-uploadChunkSize 10", "-uploadThreads 2", "-uploadRetries 1", "-batch " + path, "-server" }) {
+            HttpResponse<String> response = submit("-id synthetic " + options, HttpRequest.BodyPublishers.ofByteArray(xml));
+            assertEquals(options, 400, response.statusCode());
+        }
+        assertFalse(new File(path).exists());
+        assertFalse(folder.getRoot().toPath().resolve("work").toFile().list().length > 0);
+    }
+
+    @Test
+    public void testNoInputRoot() throws Exception {
+        server.stop();
+        server.start(0, 1, folder.newFolder("other"));
+        File input = new File(inputRoot, "synthetic.xml");
+        Files.write(input.toPath(), xml);
+        assertEquals(400, submit("-i \"" + input.getPath() + "\"", HttpRequest.BodyPublishers.noBody()).statusCode());
+        assertEquals(202, submit("", HttpRequest.BodyPublishers.ofByteArray(xml)).statusCode());
+    }
+
+    private HttpResponse<String> submit(String options, HttpRequest.BodyPublisher body) throws Exception {
+        URI uri = uri("/jobs?options=" + URLEncoder.encode(options, StandardCharsets.UTF_8));
+        return client.send(HttpRequest.newBuilder(uri).POST(body).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private Map<?, ?> await(String location) throws Exception {
+        for (int i = 0; i < 600; i++) {
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri(location)).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            Map<?, ?> status = mapper.readValue(response.body(), Map.class);
+            if (!status.get("status").equals("QUEUED") && !status.get("status").equals("RUNNING")) {
+                return status;
+            }
+            Thread.sleep(100);
+        }
+        throw new AssertionError("Job did not finish");
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + server.getPort() + path);
+    }
+
+}
@@ -0,0 +1,76 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.JAXBContext;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import au.csiro.fhir.claml.Diagnostics.Category;
+import au.csiro.fhir.claml.model.claml.ClaML;
+
+public class DiagnosticsTest {
+
+    private static final String CLAML = "<?xml version=\"1.0\"?>\n"
+            + "<ClaML version=\"2.0.0\">\n"
+            + "  <Title name=\"example\" version=\"1\">Example ClaML</Title>\n"
+            + "  <ClassKinds><ClassKind name=\"chapter\"/></ClassKinds>\n"
+            + "  <RubricKinds><RubricKind name=\"preferred\"/></RubricKinds>\n"
+            + "  <Class code=\"A\" kind=\"chapter\">\n"
+            + "    <Rubric kind=\"preferred\"><Label xml:lang=\"en\">chapter <Term class=\"weird\">A</Term></Label>"
+            + "<Label xml:lang=\"de\">Kapitel A</Label></Rubric>\n"
+            + "  </Class>\n"
+            + "  <Class code=\"K\"/>\n"
+            + "  <Class code=\"A\" kind=\"chapter\">\n"
+            + "    <Rubric kind=\"preferred\"><Label xml:lang=\"en\">chapter A</Label></Rubric>\n"
+            + "  </Class>\n"
+            + "</ClaML>\n";
+
+    @Test
+    public void testConversion() throws Exception {
+        for (boolean parallel : new boolean[] {false, true}) {
+            Diagnostics diagnostics = new Diagnostics();
+            try (ClamlReader reader = new ClamlReader(JAXBContext.newInstance(ClaML.class),
+                    new ByteArrayInputStream(CLAML.getBytes(StandardCharsets.UTF_8)))) {
+                new FhirClamlService().claml2Fhir(reader.readHeader(), reader, new ConversionOptions().setParallel(parallel),
+                        new CodeSystemBuilder(), diagnostics);
+            }
+            assertEquals(1, diagnostics.getCount(Category.KINDLESS_CLASS));
+            assertEquals(Arrays.asList("K"), diagnostics.getSamples(Category.MISSING_DISPLAY));
+            assertEquals(Arrays.asList("weird"), diagnostics.getSamples(Category.UNRECOGNISED_TERM_CLASS));
+            assertEquals(Arrays.asList("A"), diagnostics.getSamples(Category.MULTIPLE_LABELS));
+            assertEquals(Arrays.asList("A"), diagnostics.getSamples(Category.DUPLICATE_CODE));
+            assertEquals(5, diagnostics.getTotal());
+        }
+    }
+
+    @Test
+    public void testReport() throws Exception {
+        Diagnostics diagnostics = new Diagnostics();
+        for (int i = 0; i < 25; i++) {
+            diagnostics.record(Category.EXCLUDED_MODIFIER, "C" + i, "M");
+        }
+        assertEquals(25, diagnostics.getCount(Category.EXCLUDED_MODIFIER));
+        assertEquals(Diagnostics.SAMPLE_SIZE, diagnostics.getSamples(Category.EXCLUDED_MODIFIER).size());
+        assertEquals("C0", diagnostics.getSamples(Category.EXCLUDED_MODIFIER).get(0));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        diagnostics.write(out);
+        Map<?, ?> report = new ObjectMapper().readValue(out.toByteArray(), Map.class);
+        assertEquals(25, report.get("total"));
+        Map<?, ?> category = (Map<?, ?>) ((Map<?, ?>) report.get("categories")).get("excluded-modifier");
+        assertEquals(25, category.get("count"));
+        assertEquals("INFO", category.get("level"));
+        assertEquals(Diagnostics.SAMPLE_SIZE, ((List<?>) category.get("examples")).size());
+    }
+
+}
@@ -0,0 +1,282 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.CodeSystemContentMode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+
+public class FhirUploaderTest {
+
+    private static FhirContext context;
+    private static byte[] xml;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StandInServer server;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        context = FhirContext.forR4();
+        xml = new SyntheticClamlGenerator().setClassCount(1000).setDepth(2).setFanOut(10).setRubricsPerClass(2).toByteArray();
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StandInServer();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void testSupplements() throws Exception {
+        // Every third request is turned away, but no resource more than once, or a retry could be too
+        Set<String> failed = ConcurrentHashMap.newKeySet();
+        server.failWhen = request -> request.number % 3 == 0 && failed.add(request.path);
+        File progress = folder.newFile("cs.json.upload");
+
+        ConversionOptions options = options(FhirUploader.Mode.SUPPLEMENTS);
+        int count = upload(options, progress);
+
+        List<CodeSystem> received = server.codeSystems();
+        CodeSystem base = received.get(received.size() - 1);
+        assertEquals("synthetic", base.getIdElement().getIdPart());
+        assertEquals(CodeSystemContentMode.NOTPRESENT, base.getContent());
+        assertEquals(count, base.getCount());
+
+        Set<String> codes = new HashSet<>();
+        for (CodeSystem supplement : received.subList(0, received.size() - 1)) {
+            assertEquals(CodeSystemContentMode.SUPPLEMENT, supplement.getContent());
+            assertEquals(base.getUrl() + "|" + base.getVersion(), supplement.getSupplements());
+            assertTrue(supplement.getConcept().size() <= 100);
+            supplement.getConcept().forEach(c -> codes.add(c.getCode()));
+        }
+        assertEquals(count, codes.size());
+        assertTrue(server.failures > 0);
+        assertFalse(progress.exists());
+    }
+
+    @Test
+    public void testTransaction() throws Exception {
+        ConversionOptions options = options(FhirUploader.Mode.TRANSACTION);
+        int count = upload(options, new File(folder.getRoot(), "cs.json.upload"));
+
+        List<CodeSystem> received = server.codeSystems();
+        assertEquals((count + 99) / 100 + 1, received.size());
+        long bundles = server.requests.stream().filter(r -> r.method.equals("POST")).count();
+        assertEquals(received.size() - 1, bundles);
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        File progress = new File(folder.getRoot(), "cs.json.upload");
+        ConversionOptions options = options(FhirUploader.Mode.SUPPLEMENTS).setUploadThreads(1);
+        server.failWhen = request -> request.path.endsWith("/synthetic-4");
+        try {
+            upload(options, progress);
+            fail("Expected the upload to fail");
+        } catch (IOException e) {
+            assertTrue(progress.exists());
+        }
+        assertEquals(3, FhirUploader.readProgress(progress).size());
+
+        server.failWhen = request -> false;
+        server.requests.clear();
+        FhirUploader uploader = new FhirUploader(context, options, progress);
+        uploader.setInitialBackoff(1);
+        int count = convert(options, uploader);
+
+        assertEquals(3, uploader.getSkippedChunks());
+        Set<String> paths = new HashSet<>();
+        server.requests.forEach(r -> paths.add(r.path));
+        assertFalse(paths.contains("/fhir/CodeSystem/synthetic-1"));
+        assertTrue(paths.contains("/fhir/CodeSystem/synthetic-4"));
+        assertEquals((count + 99) / 100 - 3 + 1, server.requests.size());
+        assertFalse(progress.exists());
+    }
+
+    @Test
+    public void testSingleInMemory() throws Exception {
+        File input = folder.newFile("synthetic.xml");
+        Files.write(input.toPath(), xml);
+        File output = new File(folder.getRoot(), "cs.json");
+        ConversionOptions options = options(FhirUploader.Mode.SINGLE).setIntervalProperties(true)
+                .setHierarchyOutput(ConversionOptions.HierarchyOutput.NESTED);
+        JAXBContext jaxbContext = JAXBContext.newInstance(ClaML.class);
+        try (AnnotationConfigApplicationContext spring = new AnnotationConfigApplicationContext()) {
+            spring.registerBean(FhirContext.class, () -> context);
+            spring.registerBean(JAXBContext.class, () -> jaxbContext);
+            spring.register(FhirClamlService.class);
+            spring.refresh();
+            spring.getBean(FhirClamlService.class).claml2fhir(input, options, output);
+        }
+        // The shared context is left as it was
+        assertEquals(ServerValidationModeEnum.ONCE, context.getRestfulClientFactory().getServerValidationMode());
+
+        // The server gets the code system as it was written, with interval properties and nesting
+        List<CodeSystem> received = server.codeSystems();
+        assertEquals(1, received.size());
+        CodeSystem written = context.newJsonParser().parseResource(CodeSystem.class,
+                new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8));
+        assertTrue(written.getProperty().stream().anyMatch(p -> p.getCode().equals("intervalStart")));
+        assertTrue(written.getConcept().stream().anyMatch(c -> c.hasConcept()));
+        assertEquals(context.newJsonParser().encodeResourceToString(written),
+                context.newJsonParser().encodeResourceToString(received.get(0)));
+    }
+
+    private ConversionOptions options(FhirUploader.Mode mode) {
+        return new ConversionOptions()
+                .setId("synthetic")
+                .setUrl("http://example.org/synthetic")
+                .setUploadUrl(server.getBase())
+                .setUploadMode(mode)
+                .setUploadChunkSize(100)
+                .setUploadThreads(3)
+                .setUploadRetries(2);
+    }
+
+    private int upload(ConversionOptions options, File progress) throws Exception {
+        FhirUploader uploader = new FhirUploader(context, options, progress);
+        uploader.setInitialBackoff(1);
+        return convert(options, uploader);
+    }
+
+    private int convert(ConversionOptions options, FhirUploader uploader) throws Exception {
+        CodeSystemBuilder builder = new CodeSystemBuilder();
+        try (ClamlReader reader = new ClamlReader(JAXBContext.newInstance(ClaML.class), new ByteArrayInputStream(xml));
+                ConceptSink tee = new TeeConceptSink(builder, uploader)) {
+            new FhirClamlService().claml2Fhir(reader.readHeader(), reader, options, tee);
+        }
+        return builder.getCodeSystem().getCount();
+    }
+
+    private static class Request {
+        final int number;
+        final String method;
+        final String path;
+        final String body;
+
+        Request(int number, String method, String path, String body) {
+            this.number = number;
+            this.method = method;
+            this.path = path;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Accepts PUTs of resources and transaction Bundles, and keeps what it was sent.
+     */
+    private static class StandInServer {
+        final HttpServer http;
+        final List<Request> requests = new ArrayList<>();
+        volatile Predicate<Request> failWhen = request -> false;
+        int failures;
+        int received;
+
+        StandInServer() throws IOException {
+            http = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            http.createContext("/fhir", this::handle);
+            http.start();
+        }
+
+        String getBase() {
+            return "http://localhost:" + http.getAddress().getPort() + "/fhir";
+        }
+
+        void stop() {
+            http.stop(0);
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            String body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            Request request;
+            synchronized (this) {
+                request = new Request(++received, exchange.getRequestMethod(), exchange.getRequestURI().getPath(), body);
+            }
+            if (failWhen.test(request)) {
+                synchronized (this) {
+                    failures++;
+                }
+                respond(exchange, 503, "{\"resourceType\":\"OperationOutcome\",\"issue\":[{\"severity\":\"error\",\"code\":\"transient\"}]}");
+                return;
+            }
+            synchronized (this) {
+                requests.add(request);
+            }
+            if (request.method.equals("POST")) {
+                respond(exchange, 200, "{\"resourceType\":\"Bundle\",\"type\":\"transaction-response\","
+                        + "\"entry\":[{\"response\":{\"status\":\"200 OK\"}}]}");
+            } else {
+                respond(exchange, 200, body);
+            }
+        }
+
+        private void respond(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/fhir+json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+
+        /**
+         * @return The code systems received, in the order they arrived.
+         */
+        synchronized List<CodeSystem> codeSystems() {
+            List<CodeSystem> result = new ArrayList<>();
+            for (Request request : requests) {
+                if (request.method.equals("POST")) {
+                    Bundle bundle = context.newJsonParser().parseResource(Bundle.class, request.body);
+                    result.add((CodeSystem) bundle.getEntryFirstRep().getResource());
+                } else {
+                    result.add(context.newJsonParser().parseResource(CodeSystem.class, request.body));
+                }
+            }
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeType;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import au.csiro.fhir.claml.ConversionOptions.HierarchyOutput;
+import au.csiro.fhir.claml.model.claml.ClaML;
+import ca.uhn.fhir.context.FhirContext;
+
+public class HierarchyOutputTest {
+
+    private static JAXBContext jaxbContext;
+    private static byte[] xml;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        jaxbContext = JAXBContext.newInstance(ClaML.class);
+        xml = SyntheticClamlGenerator.modified().toByteArray();
+    }
+
+    @Test
+    public void testPolyhierarchy() {
+        // B and C are under A, and D is under both
+        CodeSystem cs = new CodeSystem();
+        cs.addConcept().setCode("A");
+        cs.addConcept().setCode("B").addProperty().setCode("parent").setValue(new CodeType("A"));
+        cs.addConcept().setCode("C").addProperty().setCode("parent").setValue(new CodeType("A"));
+        ConceptDefinitionComponent d = cs.addConcept().setCode("D");
+        d.addProperty().setCode("parent").setValue(new CodeType("B"));
+        d.addProperty().setCode("parent").setValue(new CodeType("C"));
+
+        FhirClamlService.nestConcepts(cs);
+        assertEquals(1, cs.getConcept().size());
+        ConceptDefinitionComponent a = cs.getConcept().get(0);
+        assertEquals(2, a.getConcept().size());
+        ConceptDefinitionComponent b = a.getConcept().get(0);
+        assertTrue(b.getProperty().isEmpty());
+        assertEquals("D", b.getConcept().get(0).getCode());
+        assertEquals(1, d.getProperty().size());
+        assertEquals("C", d.getProperty().get(0).getValue().primitiveValue());
+        assertTrue(a.getConcept().get(1).getConcept().isEmpty());
+
+        TerminologyIndex index = TerminologyIndexBuilder.index(cs);
+        assertTrue(index.subsumes("B", "D"));
+        assertTrue(index.subsumes("C", "D"));
+        assertFalse(index.subsumes("B", "C"));
+    }
+
+    @Test
+    public void testModes() throws Exception {
+        CodeSystem properties = convert(HierarchyOutput.PROPERTIES);
+        CodeSystem parents = convert(HierarchyOutput.PARENTS);
+        CodeSystem nested = convert(HierarchyOutput.NESTED);
+
+        assertTrue(properties.getConcept().stream().anyMatch(c -> hasProperty(c, "child")));
+        assertFalse(parents.getConcept().stream().anyMatch(c -> hasProperty(c, "child")));
+        assertEquals(properties.getConcept().size(), parents.getConcept().size());
+
+        List<ConceptDefinitionComponent> flattened = new ArrayList<>();
+        flatten(nested.getConcept(), flattened);
+        assertEquals(properties.getCount(), nested.getCount());
+        assertEquals(nested.getCount(), flattened.size());
+        assertTrue(nested.getConcept().size() < flattened.size());
+        assertFalse(flattened.stream().anyMatch(c -> hasProperty(c, "child") || hasProperty(c, "parent")));
+
+        // The nesting describes the same hierarchy, modifier-generated codes included
+        TerminologyIndex expected = TerminologyIndexBuilder.index(properties);
+        TerminologyIndex actual = TerminologyIndexBuilder.index(nested);
+        List<String> codes = properties.getConcept().stream().map(ConceptDefinitionComponent::getCode)
+                .collect(Collectors.toList());
+        Random random = new Random(11);
+        for (int i = 0; i < 5000; i++) {
+            String a = codes.get(random.nextInt(codes.size()));
+            String b = codes.get(random.nextInt(codes.size()));
+            assertEquals(a + " " + b, expected.subsumes(a, b), actual.subsumes(a, b));
+        }
+
+        FhirContext context = FhirContext.forR4();
+        int propertiesSize = context.newJsonParser().encodeResourceToString(properties).length();
+        int parentsSize = context.newJsonParser().encodeResourceToString(parents).length();
+        int nestedSize = context.newJsonParser().encodeResourceToString(nested).length();
+        assertTrue(parentsSize < propertiesSize);
+        assertTrue(nestedSize < parentsSize);
+    }
+
+    private static CodeSystem convert(HierarchyOutput hierarchyOutput) throws Exception {
+        ClaML claml = (ClaML) jaxbContext.createUnmarshaller().unmarshal(new ByteArrayInputStream(xml));
+        return new FhirClamlService().claml2FhirObject(claml,
+                new ConversionOptions().setApplyModifiers(true).setHierarchyOutput(hierarchyOutput));
+    }
+
+    private static boolean hasProperty(ConceptDefinitionComponent concept, String code) {
+        return concept.getProperty().stream().anyMatch(p -> p.getCode().equals(code));
+    }
+
+    private static void flatten(List<ConceptDefinitionComponent> concepts, List<ConceptDefinitionComponent> result) {
+        for (ConceptDefinitionComponent concept : concepts) {
+            result.add(concept);
+            flatten(concept.getConcept(), result);
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeType;
+import org.junit.Test;
+
+public class IntervalIndexFileTest {
+
+    private static IntervalIndexFile roundTrip(TerminologyIndex index) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IntervalIndexFile.write(index, out);
+        return IntervalIndexFile.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test
+    public void testPolyhierarchy() throws Exception {
+        // B and C are under A, D is under both and E is under D
+        CodeSystem cs = new CodeSystem().setUrl("http://example.org/cs");
+        cs.addConcept().setCode("A");
+        cs.addConcept().setCode("B").addProperty().setCode("parent").setValue(new CodeType("A"));
+        cs.addConcept().setCode("C").addProperty().setCode("parent").setValue(new CodeType("A"));
+        ConceptDefinitionComponent d = cs.addConcept().setCode("D");
+        d.addProperty().setCode("parent").setValue(new CodeType("B"));
+        d.addProperty().setCode("parent").setValue(new CodeType("C"));
+        cs.addConcept().setCode("E").addProperty().setCode("parent").setValue(new CodeType("D"));
+
+        IntervalIndexFile file = roundTrip(TerminologyIndexBuilder.index(cs));
+        assertEquals("http://example.org/cs", file.getUrl());
+        assertEquals(5, file.size());
+        assertEquals(0, file.getStart("A"));
+        assertEquals(4, file.getEnd("A"));
+        assertEquals(3, file.getDepth("E"));
+        assertEquals(-1, file.getStart("Z"));
+        assertTrue(file.subsumes("B", "E"));
+        assertTrue(file.subsumes("C", "E"));
+        assertFalse(file.subsumes("E", "C"));
+        assertFalse(file.subsumes("B", "C"));
+    }
+
+    @Test
+    public void testModifiedCodes() throws Exception {
+        CodeSystemBuilder builder = new CodeSystemBuilder();
+        TerminologyIndexBuilder full = new TerminologyIndexBuilder();
+        TerminologyIndexBuilder hierarchy = new TerminologyIndexBuilder(false);
+        SyntheticClamlGenerator.modified().convert(new ConversionOptions().setApplyModifiers(true), builder, full, hierarchy);
+        CodeSystem cs = builder.getCodeSystem();
+        IntervalIndexFile file = roundTrip(hierarchy.getIndex());
+        assertTrue(cs.getCount() > 300);
+        assertEquals(cs.getCount(), file.size());
+
+        TerminologyIndex index = full.getIndex();
+        List<String> codes = cs.getConcept().stream().map(ConceptDefinitionComponent::getCode).collect(Collectors.toList());
+        Random random = new Random(7);
+        for (int i = 0; i < 5000; i++) {
+            String a = codes.get(random.nextInt(codes.size()));
+            String b = codes.get(random.nextInt(codes.size()));
+            assertEquals(a + " " + b, index.subsumes(a, b), file.subsumes(a, b));
+            assertEquals(index.getIntervalStart(a), file.getStart(a));
+        }
+        // Every generated code is under the class it was generated from
+        for (ConceptDefinitionComponent concept : cs.getConcept()) {
+            concept.getProperty().stream().filter(p -> p.getCode().equals("parent"))
+                    .forEach(p -> assertTrue(file.subsumes(p.getValue().primitiveValue(), concept.getCode())));
+        }
+    }
+
+}
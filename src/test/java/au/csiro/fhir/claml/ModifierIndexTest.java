@@ -0,0 +1,99 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+import au.csiro.fhir.claml.model.claml.ExcludeModifier;
+import au.csiro.fhir.claml.model.claml.Label;
+import au.csiro.fhir.claml.model.claml.Meta;
+import au.csiro.fhir.claml.model.claml.ModifiedBy;
+import au.csiro.fhir.claml.model.claml.ModifierClass;
+import au.csiro.fhir.claml.model.claml.Rubric;
+import au.csiro.fhir.claml.model.claml.RubricKind;
+import au.csiro.fhir.claml.model.claml.RubricKinds;
+import au.csiro.fhir.claml.model.claml.ValidModifierClass;
+
+public class ModifierIndexTest {
+
+    @Test
+    public void testIndex() {
+        RubricKind preferred = new RubricKind();
+        preferred.setName("preferred");
+        ClaML claml = new ClaML();
+        claml.setRubricKinds(new RubricKinds());
+        claml.getRubricKinds().getRubricKind().add(preferred);
+        for (String code : new String[] { "3", "1", "2", "0" }) {
+            ModifierClass modClass = new ModifierClass();
+            modClass.setModifier("S");
+            modClass.setCode(code);
+            if (!code.equals("0")) {
+                Rubric rubric = new Rubric();
+                rubric.setKind(preferred);
+                Label label = new Label();
+                label.getContent().add(" Class " + code + " ");
+                rubric.getLabel().add(label);
+                modClass.getRubric().add(rubric);
+            }
+            if (code.equals("2")) {
+                Meta meta = new Meta();
+                meta.setName("excludeOnPrecedingModifier");
+                meta.setValue("R 7");
+                modClass.getMeta().add(meta);
+            }
+            claml.getModifierClass().add(modClass);
+        }
+        ModifierIndex index = new ModifierIndex(claml.getModifierClass(), new RubricRoleTable(claml, new ConversionOptions()),
+                new PlainTextLabelRenderer());
+
+        List<ModifierIndex.Entry> all = index.getModifierClasses("S");
+        assertEquals(Arrays.asList("3", "1", "2", "0"), codes(all));
+        assertEquals("Class 3", all.get(0).getDisplay());
+        assertNull(all.get(3).getDisplay());
+        assertTrue(all.get(2).isExcludedAfter("A017"));
+        assertFalse(all.get(2).isExcludedAfter("A071"));
+        assertFalse(all.get(1).isExcludedAfter("A017"));
+
+        ModifiedBy allowsAll = new ModifiedBy();
+        allowsAll.setCode("S");
+        assertSame(all, index.getApplicable(allowsAll));
+
+        ModifiedBy restricted = new ModifiedBy();
+        restricted.setCode("S");
+        restricted.setAll(false);
+        for (String code : new String[] { "0", "3" }) {
+            ValidModifierClass vmc = new ValidModifierClass();
+            vmc.setCode(code);
+            restricted.getValidModifierClass().add(vmc);
+        }
+        // Document order, not the order of the ValidModifierClass elements
+        assertEquals(Arrays.asList("3", "0"), codes(index.getApplicable(restricted)));
+
+        ModifiedBy unknown = new ModifiedBy();
+        unknown.setCode("T");
+        assertTrue(index.getApplicable(unknown).isEmpty());
+
+        ExcludeModifier exclude = new ExcludeModifier();
+        exclude.setCode("S");
+        index.addExcludeModifiers(100, Collections.singletonList(exclude));
+        assertTrue(index.isExcluded(100, "S"));
+        assertFalse(index.isExcluded(100, "T"));
+        assertFalse(index.isExcluded(99, "S"));
+        assertFalse(index.isExcluded(1000, "S"));
+    }
+
+    private static List<String> codes(List<ModifierIndex.Entry> entries) {
+        return entries.stream().map(e -> e.getCode()).collect(Collectors.toList());
+    }
+
+}
@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -20,6 +21,7 @@ import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.sax.SAXSource;
 
 import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.springframework.core.io.ClassPathResource;
@@ -28,6 +30,12 @@ import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
 
 import au.csiro.fhir.claml.model.claml.ClaML;
+import au.csiro.fhir.claml.model.claml.Label;
+import au.csiro.fhir.claml.model.claml.ModifiedBy;
+import au.csiro.fhir.claml.model.claml.ModifierClass;
+import au.csiro.fhir.claml.model.claml.Rubric;
+import au.csiro.fhir.claml.model.claml.RubricKind;
+import au.csiro.fhir.claml.model.claml.RubricKinds;
 
 public class ModifierTest {
 
@@ -71,4 +79,88 @@ public class ModifierTest {
 
     }
 
+    @Test
+    public void testModifiersOfNonLeafClassApplyToLeafDescendants() throws ParserConfigurationException, SAXException, JAXBException, IOException {
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        spf.setFeature("http://xml.org/sax/features/validation", false);
+
+        XMLReader xmlReader = spf.newSAXParser().getXMLReader();
+        InputSource inputSource = new InputSource(
+                new FileReader(new ClassPathResource("modifiers-inherited-test.xml").getFile()));
+        SAXSource source = new SAXSource(xmlReader, inputSource);
+        Unmarshaller jaxbUnmarshaller = jaxbContext.createUnmarshaller();
+        ClaML claml = (ClaML) jaxbUnmarshaller.unmarshal(source);
+
+        CodeSystem cs = controller.claml2FhirObject(claml, Collections.emptyList(), null, Collections.emptyList(), Collections.emptyList(), false, null, null, null, null, null, false, true, true, "draft");
+        Set<String> codes = cs.getConcept().stream().map(c -> c.getCode()).collect(Collectors.toSet());
+
+        // E.1 is declared before E, and E.2 adds its own modifier to the inherited one
+        String[] expectedCodes = {"E", "E.1", "E.2", "E.1M1", "E.1M2", "E.2M1", "E.2M2", "E.2M1N1", "E.2M2N1", "E.2M2N2" };
+        assertEquals(new HashSet<>(Arrays.asList(expectedCodes)), codes);
+        assertEquals(expectedCodes.length, cs.getCount());
+    }
+
+    @Test
+    public void testChainedModifiersAreExpandedDepthFirst() throws IOException {
+        RubricKind preferred = new RubricKind();
+        preferred.setName("preferred");
+        ClaML claml = new ClaML();
+        claml.setRubricKinds(new RubricKinds());
+        claml.getRubricKinds().getRubricKind().add(preferred);
+
+        List<ModifiedBy> modifiedBy = new ArrayList<>();
+        for (int m = 0; m < 5; m++) {
+            String modifier = "S" + m;
+            for (int i = 0; i < 10; i++) {
+                ModifierClass modClass = new ModifierClass();
+                modClass.setModifier(modifier);
+                modClass.setCode(String.valueOf((char) ('a' + m)) + i);
+                Rubric rubric = new Rubric();
+                rubric.setKind(preferred);
+                Label label = new Label();
+                label.getContent().add(modClass.getCode());
+                rubric.getLabel().add(label);
+                modClass.getRubric().add(rubric);
+                claml.getModifierClass().add(modClass);
+            }
+            ModifiedBy modBy = new ModifiedBy();
+            modBy.setCode(modifier);
+            modifiedBy.add(modBy);
+        }
+        CodeDictionary codes = new CodeDictionary();
+        String[] displays = { "x" };
+        int id = codes.intern("X");
+
+        List<ConceptDefinitionComponent> first = new ArrayList<>();
+        int[] accepted = new int[1];
+        ConceptSink sink = new ConceptSink() {
+            @Override
+            public void start(CodeSystem header) {
+            }
+
+            @Override
+            public void accept(ConceptDefinitionComponent concept) {
+                if (first.size() < 6) {
+                    first.add(concept);
+                }
+                accepted[0]++;
+            }
+
+            @Override
+            public void finish(int count) {
+            }
+        };
+        ModifierIndex index = new ModifierIndex(claml.getModifierClass(), new RubricRoleTable(claml, new ConversionOptions()),
+                new PlainTextLabelRenderer());
+        int count = new ModifierExpander(index, codes, displays, sink).expand(id, modifiedBy);
+
+        assertEquals(10 + 100 + 1000 + 10000 + 100000, count);
+        assertEquals(count, accepted[0]);
+        assertEquals(Arrays.asList("Xa0", "Xa0b0", "Xa0b0c0", "Xa0b0c0d0", "Xa0b0c0d0e0", "Xa0b0c0d0e1"),
+                first.stream().map(c -> c.getCode()).collect(Collectors.toList()));
+        assertEquals("x : a0 : b0 : c0 : d0 : e1", first.get(5).getDisplay());
+        assertEquals("Xa0b0c0d0", first.get(5).getProperty().get(0).getValueCodeType().getCode());
+    }
+
 }
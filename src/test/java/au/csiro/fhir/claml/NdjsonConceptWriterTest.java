@@ -0,0 +1,68 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+
+public class NdjsonConceptWriterTest {
+
+    @Test
+    public void testSamePassAsCodeSystem() throws Exception {
+        ConversionOptions options = new ConversionOptions()
+                .setUrl("http://example.org/claml")
+                .setApplyModifiers(true);
+        CodeSystemBuilder builder = new CodeSystemBuilder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ClamlReader reader = new ClamlReader(JAXBContext.newInstance(ClaML.class),
+                new FileInputStream(new ClassPathResource("modifiers-test.xml").getFile()));
+                NdjsonConceptWriter ndjson = new NdjsonConceptWriter(out)) {
+            new FhirClamlService().claml2Fhir(reader.readHeader(), reader, options, new TeeConceptSink(builder, ndjson));
+        }
+        CodeSystem cs = builder.getCodeSystem();
+
+        String text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(text.endsWith("\n"));
+        List<String> lines = Arrays.asList(text.split("\n"));
+        assertEquals(cs.getConcept().size(), lines.size());
+        ObjectMapper mapper = new ObjectMapper();
+        for (int i = 0; i < lines.size(); i++) {
+            ConceptDefinitionComponent concept = cs.getConcept().get(i);
+            JsonNode json = mapper.readTree(lines.get(i));
+            assertEquals("http://example.org/claml", json.get("system").asText());
+            assertEquals(concept.getCode(), json.get("code").asText());
+            if (concept.hasDisplay()) {
+                assertEquals(concept.getDisplay(), json.get("display").asText());
+            } else {
+                assertFalse(json.has("display"));
+            }
+            int values = 0;
+            for (JsonNode property : json.get("properties")) {
+                values += property.size();
+            }
+            assertEquals(concept.getProperty().size(), values);
+        }
+        // Modifier-generated concepts have a parent but no kind
+        JsonNode last = mapper.readTree(lines.get(lines.size() - 1));
+        assertTrue(last.get("properties").has("parent"));
+        assertFalse(last.get("properties").has("kind"));
+    }
+
+}
@@ -0,0 +1,54 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.junit.Test;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+
+public class ParallelConversionTest {
+
+    @Test
+    public void testSameOutputAsSequential() throws Exception {
+        // Several chunks, with a partial last one, and modifiers
+        byte[] xml = new SyntheticClamlGenerator()
+                .setClassCount(6000)
+                .setDepth(3)
+                .setFanOut(8)
+                .setRubricsPerClass(6)
+                .setLabelDepth(2)
+                .setModifiers(2)
+                .setModifierClasses(3)
+                .setModifiedEvery(7)
+                .toByteArray();
+        JAXBContext jaxbContext = JAXBContext.newInstance(ClaML.class);
+        ConversionOptions options = new ConversionOptions()
+                .setDesignationRubrics(Arrays.asList("inclusion", "exclusion"))
+                .setExcludeClassKinds(Arrays.asList("chapter"))
+                .setApplyModifiers(true);
+
+        CodeSystem sequential = convert(jaxbContext, xml, options);
+        CodeSystem parallel = convert(jaxbContext, xml, options.setParallel(true));
+        assertEquals(sequential.getConcept().size(), parallel.getConcept().size());
+        for (int i = 0; i < sequential.getConcept().size(); i++) {
+            assertEquals(sequential.getConcept().get(i).getCode(), parallel.getConcept().get(i).getCode());
+        }
+        assertTrue(sequential.equalsDeep(parallel));
+    }
+
+    private static CodeSystem convert(JAXBContext jaxbContext, byte[] xml, ConversionOptions options) throws Exception {
+        CodeSystemBuilder builder = new CodeSystemBuilder();
+        try (ClamlReader reader = new ClamlReader(jaxbContext, new ByteArrayInputStream(xml))) {
+            new FhirClamlService().claml2Fhir(reader.readHeader(), reader, options, builder);
+        }
+        return builder.getCodeSystem();
+    }
+
+}
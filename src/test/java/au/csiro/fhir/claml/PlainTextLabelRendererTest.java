@@ -0,0 +1,94 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import au.csiro.fhir.claml.model.claml.Fragment;
+import au.csiro.fhir.claml.model.claml.Label;
+import au.csiro.fhir.claml.model.claml.List;
+import au.csiro.fhir.claml.model.claml.ListItem;
+import au.csiro.fhir.claml.model.claml.Para;
+import au.csiro.fhir.claml.model.claml.Reference;
+import au.csiro.fhir.claml.model.claml.Table;
+import au.csiro.fhir.claml.model.claml.Term;
+
+public class PlainTextLabelRendererTest {
+
+    private final LabelRenderer renderer = new PlainTextLabelRenderer();
+
+    @Test
+    public void testMixedContent() {
+        Label label = new Label();
+        Para para = new Para();
+        para.getContent().add("See ");
+        Reference ref = new Reference();
+        ref.setContent("A01");
+        para.getContent().add(ref);
+        para.getContent().add(" for ");
+        para.getContent().add(term("italics", "typhoid"));
+        para.getContent().add(term("tab", null));
+        para.getContent().add(term("subscript", "2"));
+        label.getContent().add(para);
+
+        Fragment fragment = new Fragment();
+        fragment.setType("list");
+        fragment.getContent().add("first");
+        fragment.getContent().add("second");
+        label.getContent().add(fragment);
+
+        List list = new List();
+        for (String s : new String[] { "one", "two" }) {
+            ListItem item = new ListItem();
+            item.getContent().add(s);
+            list.getListItem().add(item);
+        }
+        label.getContent().add(list);
+        label.getContent().add(new Table());
+
+        assertEquals("See [A01] for typhoid\t_2\n - first - second\n - one\n - two\n\nTABLE", renderer.render(label));
+        // The buffer is reused between calls
+        assertEquals("plain", renderer.render(label("plain")));
+    }
+
+    @Test
+    public void testLabelSeparatorOnlyAfterText() {
+        Label label = label("", "a", "b");
+        assertEquals("a\nb", renderer.render(label));
+    }
+
+    @Test
+    public void testDeepNesting() {
+        int depth = 100000;
+        Para root = new Para();
+        Para current = root;
+        for (int i = 0; i < depth; i++) {
+            Para child = new Para();
+            current.getContent().add("x");
+            current.getContent().add(child);
+            current = child;
+        }
+        Label label = new Label();
+        label.getContent().add(root);
+        String text = renderer.render(label);
+        assertEquals(depth, text.length());
+        assertTrue(text.chars().allMatch(c -> c == 'x'));
+    }
+
+    private static Label label(String... content) {
+        Label label = new Label();
+        for (String s : content) {
+            label.getContent().add(s);
+        }
+        return label;
+    }
+
+    private static Term term(String clazz, String content) {
+        Term term = new Term();
+        term.setClazz(clazz);
+        term.setContent(content);
+        return term;
+    }
+
+}
@@ -0,0 +1,85 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.junit.Test;
+
+import au.csiro.fhir.claml.RubricRoleTable.Role;
+import au.csiro.fhir.claml.model.claml.ClaML;
+import au.csiro.fhir.claml.model.claml.RubricKind;
+import au.csiro.fhir.claml.model.claml.RubricKinds;
+
+public class RubricRoleTableTest {
+
+    private static ConversionOptions options() {
+        return new ConversionOptions()
+                .setDisplayRubrics(Arrays.asList("preferredLong", "preferred"))
+                .setDesignationRubrics(Collections.singletonList("inclusion"))
+                .setExcludeRubricKinds(Collections.singletonList("note"));
+    }
+
+    @Test
+    public void testRoles() {
+        ClaML claml = new ClaML();
+        claml.setRubricKinds(new RubricKinds());
+        for (String name : SyntheticClamlGenerator.RUBRIC_KINDS) {
+            RubricKind rk = new RubricKind();
+            rk.setName(name);
+            claml.getRubricKinds().getRubricKind().add(rk);
+        }
+        RubricRoleTable roles = new RubricRoleTable(claml, options());
+        List<RubricKind> kinds = claml.getRubricKinds().getRubricKind();
+
+        assertEquals(Role.DISPLAY, roles.getRole(kinds.get(0)));
+        assertEquals(1, roles.getDisplayPriority(kinds.get(0)));
+        assertEquals(Role.DISPLAY, roles.getRole(kinds.get(1)));
+        assertEquals(0, roles.getDisplayPriority(kinds.get(1)));
+        assertEquals(Role.DESIGNATION, roles.getRole(kinds.get(2)));
+        assertEquals(Role.PROPERTY, roles.getRole(kinds.get(3)));
+        assertEquals(Role.IGNORED, roles.getRole(kinds.get(4)));
+        assertEquals(Role.DEFINITION, roles.getRole(kinds.get(5)));
+        assertEquals(-1, roles.getDisplayPriority(kinds.get(5)));
+
+        // Kinds that are not declared in the header are found by name
+        RubricKind other = new RubricKind();
+        other.setName("preferred");
+        assertEquals(Role.DISPLAY, roles.getRole(other));
+        assertNull(roles.getRole("preferred"));
+    }
+
+    @Test
+    public void testConversion() throws Exception {
+        byte[] xml = new SyntheticClamlGenerator().setClassCount(11).setDepth(1).setRubricsPerClass(8).toByteArray();
+        FhirClamlService service = new FhirClamlService();
+        CodeSystemBuilder builder = new CodeSystemBuilder();
+        try (ClamlReader reader = new ClamlReader(JAXBContext.newInstance(ClaML.class), new ByteArrayInputStream(xml))) {
+            service.claml2Fhir(reader.readHeader(), reader, options(), builder);
+        }
+        CodeSystem cs = builder.getCodeSystem();
+        assertEquals(Arrays.asList("kind", "exclusion", "coding-hint", "introduction"),
+                cs.getProperty().stream().map(p -> p.getCode()).collect(Collectors.toList()));
+
+        ConceptDefinitionComponent concept = cs.getConcept().get(1);
+        assertTrue(concept.hasDisplay());
+        assertTrue(concept.hasDefinition());
+        assertEquals(Arrays.asList("inclusion", "preferred"),
+                concept.getDesignation().stream().map(d -> d.getUse().getDisplay()).sorted().collect(Collectors.toList()));
+        List<String> properties = concept.getProperty().stream().map(p -> p.getCode()).collect(Collectors.toList());
+        assertTrue(properties.contains("exclusion"));
+        assertFalse(properties.contains("note"));
+    }
+
+}
@@ -0,0 +1,105 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+import ca.uhn.fhir.context.FhirContext;
+
+public class RunReportTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AnnotationConfigApplicationContext spring;
+    private FhirClamlService service;
+    private File input;
+
+    @Before
+    public void start() throws Exception {
+        JAXBContext jaxbContext = JAXBContext.newInstance(ClaML.class);
+        spring = new AnnotationConfigApplicationContext();
+        spring.registerBean(FhirContext.class, FhirContext::forR4);
+        spring.registerBean(JAXBContext.class, () -> jaxbContext);
+        spring.register(FhirClamlService.class);
+        spring.refresh();
+        service = spring.getBean(FhirClamlService.class);
+        input = folder.newFile("synthetic.xml");
+        Files.write(input.toPath(), SyntheticClamlGenerator.modified().toByteArray());
+    }
+
+    @After
+    public void stop() {
+        spring.close();
+    }
+
+    @Test
+    public void testReport() throws Exception {
+        for (boolean stream : new boolean[] {false, true}) {
+            File output = new File(folder.getRoot(), "cs-" + stream + ".json");
+            service.claml2fhir(input, new ConversionOptions().setApplyModifiers(true).setStreamOutput(stream)
+                    .setParallel(stream).setDesignationRubrics(Arrays.asList("inclusion"))
+                    .setExcludeClassKinds(Arrays.asList("category")).setRunReport(true), output);
+            CodeSystem cs = FhirContext.forR4().newJsonParser().parseResource(CodeSystem.class,
+                    new String(Files.readAllBytes(output.toPath()), "UTF-8"));
+
+            Map<?, ?> report = new ObjectMapper().readValue(FhirClamlService.getRunReportFile(output), Map.class);
+            long emitted = number(report, "conceptsEmitted");
+            long modifierConcepts = number(report, "modifierConcepts");
+            long read = number(report, "classesRead");
+            long excluded = number(report, "classesExcluded");
+            assertEquals(cs.getCount(), emitted);
+            assertTrue(excluded > 0);
+            assertEquals(input.length(), number(report, "inputBytes"));
+            // Every class is either read and converted, read and excluded, or skipped while parsing
+            assertTrue(read <= emitted - modifierConcepts + excluded);
+            assertEquals(emitted - modifierConcepts, cs.getConcept().stream()
+                    .filter(c -> c.getProperty().stream().anyMatch(p -> p.getCode().equals("kind"))).count());
+
+            Map<?, ?> designations = (Map<?, ?>) report.get("designationsByRubricKind");
+            assertTrue(((Number) designations.get("inclusion")).longValue() > 0);
+            Map<?, ?> properties = (Map<?, ?>) report.get("propertiesByCode");
+            assertEquals(cs.getConcept().stream().flatMap(c -> c.getProperty().stream())
+                    .filter(p -> p.getCode().equals("parent")).count(), ((Number) properties.get("parent")).longValue());
+
+            Map<?, ?> phases = (Map<?, ?>) report.get("phases");
+            long phaseWall = 0;
+            for (RunReport.Phase phase : RunReport.Phase.values()) {
+                Map<?, ?> times = (Map<?, ?>) phases.get(phase.toCode());
+                phaseWall += ((Number) times.get("wallMs")).longValue();
+            }
+            assertTrue(phaseWall <= number(report, "wallMs") + RunReport.Phase.values().length);
+            assertTrue(number(report, "peakHeapBytes") > 0);
+        }
+    }
+
+    @Test
+    public void testNoReport() throws Exception {
+        File output = new File(folder.getRoot(), "cs.json");
+        service.claml2fhir(input, new ConversionOptions(), output);
+        assertFalse(FhirClamlService.getRunReportFile(output).exists());
+    }
+
+    private static long number(Map<?, ?> report, String key) {
+        return ((Number) report.get(key)).longValue();
+    }
+
+}
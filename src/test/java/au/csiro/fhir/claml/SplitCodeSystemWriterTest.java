@@ -0,0 +1,157 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.CodeSystemContentMode;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+import ca.uhn.fhir.context.FhirContext;
+
+public class SplitCodeSystemWriterTest {
+
+    private static FhirContext context;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void init() {
+        context = FhirContext.forR4();
+    }
+
+    @Test
+    public void testPartNames() {
+        File dir = new File("out");
+        assertEquals(new File(dir, "cs-1.json"), SplitCodeSystemWriter.partFile(new File(dir, "cs.json"), 1));
+        assertEquals(new File(dir, "cs-12.json.gz"), SplitCodeSystemWriter.partFile(new File(dir, "cs.json.gz"), 12));
+        assertEquals(new File(dir, "icd.10-2.xz"), SplitCodeSystemWriter.partFile(new File(dir, "icd.10.xz"), 2));
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        byte[] xml = new SyntheticClamlGenerator().setClassCount(2000).setDepth(2).setFanOut(10).setRubricsPerClass(3).toByteArray();
+        ConversionOptions options = new ConversionOptions().setId("synthetic");
+        FhirClamlService service = new FhirClamlService();
+        JAXBContext jaxbContext = JAXBContext.newInstance(ClaML.class);
+
+        CodeSystemBuilder builder = new CodeSystemBuilder();
+        try (ClamlReader reader = new ClamlReader(jaxbContext, new ByteArrayInputStream(xml))) {
+            service.claml2Fhir(reader.readHeader(), reader, options, builder);
+        }
+
+        long maxBytes = 16 * 1024;
+        File output = new File(folder.getRoot(), "cs.json.gz");
+        SplitCodeSystemWriter writer = new SplitCodeSystemWriter(context, output, maxBytes);
+        try (ClamlReader reader = new ClamlReader(jaxbContext, new ByteArrayInputStream(xml))) {
+            service.claml2Fhir(reader.readHeader(), reader, options, writer);
+        }
+        writer.close();
+
+        assertTrue(writer.getParts().size() > 2);
+        assertEquals(writer.getParts().size(), folder.getRoot().list().length);
+        List<ConceptDefinitionComponent> concepts = new ArrayList<>();
+        for (int i = 0; i < writer.getParts().size(); i++) {
+            File part = writer.getParts().get(i);
+            assertEquals(SplitCodeSystemWriter.partFile(output, i + 1), part);
+            // Jackson and the compressor buffer a little beyond the limit
+            assertTrue(part.length() < maxBytes + 64 * 1024);
+            try (InputStream in = new GZIPInputStream(new FileInputStream(part))) {
+                CodeSystem cs = context.newJsonParser().parseResource(CodeSystem.class, in);
+                assertEquals(CodeSystemContentMode.FRAGMENT, cs.getContent());
+                assertEquals("synthetic-" + (i + 1), cs.getIdElement().getIdPart());
+                assertFalse(cs.hasCount());
+                concepts.addAll(cs.getConcept());
+            }
+        }
+        List<ConceptDefinitionComponent> expected = builder.getCodeSystem().getConcept();
+        assertEquals(expected.size(), concepts.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertTrue(expected.get(i).equalsDeep(concepts.get(i)));
+        }
+    }
+
+    @Test
+    public void testUncommittedOutputIsDiscarded() throws Exception {
+        File output = new File(folder.getRoot(), "cs.json");
+        try (AtomicOutputFile file = new AtomicOutputFile(output)) {
+            try (OutputStream out = file.getOutputStream()) {
+                out.write("{".getBytes(StandardCharsets.UTF_8));
+            }
+            assertFalse(output.exists());
+        }
+        assertEquals(0, folder.getRoot().list().length);
+
+        try (AtomicOutputFile file = new AtomicOutputFile(output)) {
+            file.getOutputStream().write("{}".getBytes(StandardCharsets.UTF_8));
+            file.commit();
+        }
+        assertEquals(2, output.length());
+        assertEquals(1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testPartsAreCommittedTogether() throws Exception {
+        File output = new File(folder.getRoot(), "cs.json");
+        for (int number = 1; number <= 6; number++) {
+            Files.write(SplitCodeSystemWriter.partFile(output, number).toPath(), "stale".getBytes(StandardCharsets.UTF_8));
+        }
+        CodeSystem header = new CodeSystem().setUrl("http://example.org/cs");
+        char[] padding = new char[1000];
+        Arrays.fill(padding, 'x');
+
+        // A run that fails part way leaves the earlier parts alone
+        try (SplitCodeSystemWriter writer = new SplitCodeSystemWriter(context, output, 4 * 1024)) {
+            writer.start(header);
+            for (int i = 0; i < 12; i++) {
+                writer.accept(new ConceptDefinitionComponent().setCode("C" + i).setDisplay(new String(padding)));
+            }
+        }
+        assertEquals(6, folder.getRoot().list().length);
+        for (int number = 1; number <= 6; number++) {
+            assertEquals(5, SplitCodeSystemWriter.partFile(output, number).length());
+        }
+
+        // A complete run replaces them and removes those beyond its own parts
+        SplitCodeSystemWriter writer = new SplitCodeSystemWriter(context, output, 4 * 1024);
+        try {
+            writer.start(header);
+            for (int i = 0; i < 12; i++) {
+                writer.accept(new ConceptDefinitionComponent().setCode("C" + i).setDisplay(new String(padding)));
+            }
+            writer.finish(12);
+        } finally {
+            writer.close();
+        }
+        int count = writer.getParts().size();
+        assertTrue(count > 1 && count < 6);
+        assertEquals(count, folder.getRoot().list().length);
+        for (File part : writer.getParts()) {
+            CodeSystem cs = context.newJsonParser().parseResource(CodeSystem.class, new String(
+                    Files.readAllBytes(part.toPath()), StandardCharsets.UTF_8));
+            assertTrue(cs.hasConcept());
+        }
+    }
+
+}
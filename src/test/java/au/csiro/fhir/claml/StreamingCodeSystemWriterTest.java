@@ -0,0 +1,70 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.util.Arrays;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+import ca.uhn.fhir.context.FhirContext;
+
+public class StreamingCodeSystemWriterTest {
+
+    private static FhirContext context;
+    private static JAXBContext jaxbContext;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        context = FhirContext.forR4();
+        jaxbContext = JAXBContext.newInstance(ClaML.class);
+    }
+
+    @Test
+    public void testSameContentAsHapiEncoder() throws Exception {
+        ConversionOptions options = new ConversionOptions()
+                .setId("test")
+                .setUrl("http://example.org/claml")
+                .setDisplayRubrics(Arrays.asList("preferred"))
+                .setApplyModifiers(true);
+        FhirClamlService service = new FhirClamlService();
+
+        CodeSystemBuilder builder = new CodeSystemBuilder();
+        try (ClamlReader reader = open()) {
+            service.claml2Fhir(reader.readHeader(), reader, options, builder);
+        }
+        CodeSystem cs = builder.getCodeSystem();
+        cs.getConceptFirstRep().addDesignation().setLanguage("de").setValue("Kapitel \"A\"")
+                .getUse().setDisplay("preferredLong");
+        String expected = context.newJsonParser().encodeResourceToString(cs);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (StreamingCodeSystemWriter writer = new StreamingCodeSystemWriter(context, out)) {
+            CodeSystem header = cs.copy();
+            header.setConcept(null);
+            header.setCountElement(null);
+            writer.start(header);
+            for (CodeSystem.ConceptDefinitionComponent concept : cs.getConcept()) {
+                writer.accept(concept);
+            }
+            writer.finish(cs.getCount());
+        }
+
+        ObjectMapper mapper = new ObjectMapper();
+        assertEquals(mapper.readTree(expected), mapper.readTree(out.toByteArray()));
+    }
+
+    private ClamlReader open() throws Exception {
+        return new ClamlReader(jaxbContext, new FileInputStream(new ClassPathResource("modifiers-test.xml").getFile()));
+    }
+
+}
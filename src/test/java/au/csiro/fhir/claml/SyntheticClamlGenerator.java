@@ -0,0 +1,464 @@
+package au.csiro.fhir.claml;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+
+/**
+ * Generates valid ClaML of arbitrary size for load tests and benchmarks.
+ * <p>
+ * Classes form a forest of complete trees with the configured depth and fan-out, written in
+ * depth-first order, with as many roots as needed to reach the class count. Only the path from the
+ * current root to the current class is kept, so the output is written as a stream and files of
+ * several GB can be generated.
+ * <p>
+ * Leaf classes can be modified by a chain of modifiers. Every modifier after the first is declared
+ * with all="false" on every other modified class, with a ValidModifierClass for half of its modifier
+ * classes, and its first modifier class has an excludeOnPrecedingModifier meta excluding it after the
+ * first modifier class of the preceding modifier.
+ * <p>
+ * Generate a file from the command line (test classpath) with:
+ * <pre>
+ * SyntheticClamlGenerator output.xml classCount [depth fanOut modifiers]
+ * </pre>
+ */
+public class SyntheticClamlGenerator {
+
+    /**
+     * Rubric kinds in the order they are used; the first rubricsPerClass of them appear on every
+     * class.
+     */
+    public static final List<String> RUBRIC_KINDS = Arrays.asList("preferred", "preferredLong", "inclusion",
+            "exclusion", "note", "definition", "coding-hint", "introduction");
+
+    private static final String[] WORDS = { "acute", "chronic", "disorder", "of", "the", "upper", "lower",
+            "respiratory", "tract", "infection", "unspecified", "other", "specified", "due", "to", "bacterial",
+            "viral", "malignant", "neoplasm", "injury", "syndrome", "congenital", "deficiency", "with", "without",
+            "complication", "lesion", "left", "right", "bilateral" };
+
+    private long classCount = 1000;
+    private int depth = 3;
+    private int fanOut = 10;
+    private int rubricsPerClass = 3;
+    private int labelDepth = 1;
+    private List<String> languages = Arrays.asList("en");
+    private int modifiers;
+    private int modifierClasses = 5;
+    private int modifiedEvery = 1;
+    private long seed = 42;
+
+    private XMLStreamWriter writer;
+    private Random random;
+    private long leafCount;
+
+    /**
+     * @return A generator of a small classification with two modifiers on every other leaf, for
+     * tests of what modifier-generated codes add to the hierarchy.
+     */
+    public static SyntheticClamlGenerator modified() {
+        return new SyntheticClamlGenerator().setClassCount(300).setDepth(2).setFanOut(5)
+                .setModifiers(2).setModifierClasses(3).setModifiedEvery(2);
+    }
+
+    /**
+     * @param classCount The total number of Class elements.
+     */
+    public SyntheticClamlGenerator setClassCount(long classCount) {
+        this.classCount = classCount;
+        return this;
+    }
+
+    /**
+     * @param depth The number of levels below each root.
+     */
+    public SyntheticClamlGenerator setDepth(int depth) {
+        this.depth = depth;
+        return this;
+    }
+
+    public SyntheticClamlGenerator setFanOut(int fanOut) {
+        this.fanOut = fanOut;
+        return this;
+    }
+
+    /**
+     * @param rubricsPerClass How many of {@link #RUBRIC_KINDS} appear on every class.
+     */
+    public SyntheticClamlGenerator setRubricsPerClass(int rubricsPerClass) {
+        this.rubricsPerClass = Math.min(rubricsPerClass, RUBRIC_KINDS.size());
+        return this;
+    }
+
+    /**
+     * @param labelDepth How many levels of List and Table content are nested inside the labels of
+     * the rubrics other than the first. 0 produces plain text labels.
+     */
+    public SyntheticClamlGenerator setLabelDepth(int labelDepth) {
+        this.labelDepth = labelDepth;
+        return this;
+    }
+
+    /**
+     * @param languages One label is written per language on every rubric.
+     */
+    public SyntheticClamlGenerator setLanguages(String... languages) {
+        this.languages = Arrays.asList(languages);
+        return this;
+    }
+
+    /**
+     * @param modifiers The length of the chain of modifiers applied to modified leaf classes.
+     */
+    public SyntheticClamlGenerator setModifiers(int modifiers) {
+        this.modifiers = modifiers;
+        return this;
+    }
+
+    public SyntheticClamlGenerator setModifierClasses(int modifierClasses) {
+        this.modifierClasses = modifierClasses;
+        return this;
+    }
+
+    /**
+     * @param modifiedEvery Every n-th leaf class is modified.
+     */
+    public SyntheticClamlGenerator setModifiedEvery(int modifiedEvery) {
+        this.modifiedEvery = Math.max(1, modifiedEvery);
+        return this;
+    }
+
+    public SyntheticClamlGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Writes the ClaML document as UTF-8. The stream is not closed.
+     */
+    public void write(OutputStream out) throws XMLStreamException {
+        writer = XMLOutputFactory.newFactory().createXMLStreamWriter(out, "UTF-8");
+        random = new Random(seed);
+        leafCount = 0;
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeCharacters("\n");
+        writer.writeStartElement("ClaML");
+        writer.writeAttribute("version", "2.0.0");
+        writeHeader();
+        writeClasses();
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+        writer.close();
+    }
+
+    /**
+     * @return The document in memory, for small inputs.
+     */
+    public byte[] toByteArray() throws XMLStreamException {
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        write(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Converts the document with the streaming reader, passing every concept to each of the sinks.
+     */
+    public void convert(ConversionOptions options, ConceptSink... sinks) throws XMLStreamException, JAXBException,
+            IOException {
+        try (ClamlReader reader = new ClamlReader(JAXBContext.newInstance(ClaML.class),
+                new ByteArrayInputStream(toByteArray()))) {
+            new FhirClamlService().claml2Fhir(reader.readHeader(), reader, options, new TeeConceptSink(sinks));
+        }
+    }
+
+    private void writeHeader() throws XMLStreamException {
+        writer.writeStartElement("Title");
+        writer.writeAttribute("name", "synthetic");
+        writer.writeAttribute("version", "1");
+        writer.writeCharacters("Synthetic classification with " + classCount + " classes");
+        writer.writeEndElement();
+
+        writer.writeStartElement("ClassKinds");
+        for (String kind : new String[] { "chapter", "block", "category" }) {
+            writer.writeEmptyElement("ClassKind");
+            writer.writeAttribute("name", kind);
+        }
+        writer.writeEndElement();
+
+        writer.writeStartElement("RubricKinds");
+        for (String kind : RUBRIC_KINDS) {
+            writer.writeEmptyElement("RubricKind");
+            writer.writeAttribute("name", kind);
+        }
+        writer.writeEndElement();
+
+        for (int m = 0; m < modifiers; m++) {
+            writer.writeStartElement("Modifier");
+            writer.writeAttribute("code", modifierCode(m));
+            for (int i = 0; i < modifierClasses; i++) {
+                writer.writeEmptyElement("SubClass");
+                writer.writeAttribute("code", modifierClassCode(m, i));
+            }
+            writer.writeEndElement();
+        }
+        for (int m = 0; m < modifiers; m++) {
+            for (int i = 0; i < modifierClasses; i++) {
+                writer.writeStartElement("ModifierClass");
+                writer.writeAttribute("modifier", modifierCode(m));
+                writer.writeAttribute("code", modifierClassCode(m, i));
+                if (m > 0 && i == 0) {
+                    writer.writeEmptyElement("Meta");
+                    writer.writeAttribute("name", "excludeOnPrecedingModifier");
+                    writer.writeAttribute("value", modifierCode(m - 1) + " " + modifierClassCode(m - 1, 0));
+                }
+                writer.writeEmptyElement("SuperClass");
+                writer.writeAttribute("code", modifierCode(m));
+                writeRubric("preferred", 0);
+                writer.writeEndElement();
+            }
+        }
+    }
+
+    private static String modifierCode(int m) {
+        return "S" + m;
+    }
+
+    private static String modifierClassCode(int m, int i) {
+        return String.valueOf((char) ('a' + m % 26)) + i;
+    }
+
+    /**
+     * Writes the classes in depth-first order. The stack holds the code and the index of the next
+     * child of every class on the path from the current root.
+     */
+    private void writeClasses() throws XMLStreamException {
+        long[] subtreeSize = new long[depth + 1];
+        for (int level = depth; level >= 0; level--) {
+            subtreeSize[level] = level == depth ? 1 : saturatedAdd(1, saturatedMultiply(fanOut, subtreeSize[level + 1]));
+        }
+        String[] path = new String[depth + 1];
+        long written = 0;
+        for (long root = 0; written < classCount; root++) {
+            written = writeTree("C" + root, written, subtreeSize, path);
+        }
+    }
+
+    private long writeTree(String root, long written, long[] subtreeSize, String[] path) throws XMLStreamException {
+        // Iterative, so deep hierarchies do not overflow the stack
+        int[] nextChild = new int[depth + 1];
+        long[] startIndex = new long[depth + 1];
+        path[0] = root;
+        startIndex[0] = written;
+        written = writeClass(0, written, subtreeSize, path);
+        int current = 0;
+        while (current >= 0) {
+            if (current < depth && nextChild[current] < childCount(current, startIndex[current], subtreeSize)) {
+                int child = nextChild[current]++;
+                path[current + 1] = childCode(path[current], current, child);
+                current++;
+                nextChild[current] = 0;
+                startIndex[current] = written;
+                written = writeClass(current, written, subtreeSize, path);
+            } else {
+                current--;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Child numbers are zero-padded so codes stay unique whatever the fan-out.
+     */
+    private String childCode(String parent, int level, int child) {
+        String number = Integer.toString(child);
+        int width = Integer.toString(Math.max(0, fanOut - 1)).length();
+        StringBuilder sb = new StringBuilder(parent);
+        if (level == 0) {
+            sb.append('.');
+        }
+        for (int i = number.length(); i < width; i++) {
+            sb.append('0');
+        }
+        return sb.append(number).toString();
+    }
+
+    /**
+     * @return How many of the children of a class are written before the class count is reached.
+     */
+    private int childCount(int level, long index, long[] subtreeSize) {
+        if (level >= depth) {
+            return 0;
+        }
+        long remaining = classCount - index - 1;
+        if (remaining <= 0) {
+            return 0;
+        }
+        long childSize = subtreeSize[level + 1];
+        long fitting = (remaining + childSize - 1) / childSize;
+        return (int) Math.min(fanOut, fitting);
+    }
+
+    private long writeClass(int level, long index, long[] subtreeSize, String[] path) throws XMLStreamException {
+        String code = path[level];
+        int children = childCount(level, index, subtreeSize);
+        writer.writeCharacters("\n");
+        writer.writeStartElement("Class");
+        writer.writeAttribute("code", code);
+        writer.writeAttribute("kind", level == 0 ? "chapter" : children > 0 ? "block" : "category");
+        if (level > 0) {
+            writer.writeEmptyElement("SuperClass");
+            writer.writeAttribute("code", path[level - 1]);
+        }
+        for (int i = 0; i < children; i++) {
+            writer.writeEmptyElement("SubClass");
+            writer.writeAttribute("code", childCode(code, level, i));
+        }
+        if (children == 0 && modifiers > 0 && leafCount++ % modifiedEvery == 0) {
+            writeModifiedBy(leafCount);
+        }
+        for (int r = 0; r < rubricsPerClass; r++) {
+            writeRubric(RUBRIC_KINDS.get(r), r == 0 ? 0 : labelDepth);
+        }
+        writer.writeEndElement();
+        return index + 1;
+    }
+
+    private void writeModifiedBy(long leaf) throws XMLStreamException {
+        for (int m = 0; m < modifiers; m++) {
+            boolean restricted = m > 0 && leaf % 2 == 0;
+            if (restricted) {
+                writer.writeStartElement("ModifiedBy");
+                writer.writeAttribute("code", modifierCode(m));
+                writer.writeAttribute("all", "false");
+                for (int i = 0; i < modifierClasses; i += 2) {
+                    writer.writeEmptyElement("ValidModifierClass");
+                    writer.writeAttribute("code", modifierClassCode(m, i));
+                }
+                writer.writeEndElement();
+            } else {
+                writer.writeEmptyElement("ModifiedBy");
+                writer.writeAttribute("code", modifierCode(m));
+            }
+        }
+    }
+
+    private void writeRubric(String kind, int nesting) throws XMLStreamException {
+        writer.writeStartElement("Rubric");
+        writer.writeAttribute("kind", kind);
+        for (String language : languages) {
+            writer.writeStartElement("Label");
+            writer.writeAttribute("xml", XMLConstants.XML_NS_URI, "lang", language);
+            writer.writeCharacters(words(3 + random.nextInt(6)));
+            if (nesting > 0) {
+                writer.writeStartElement("Para");
+                writer.writeCharacters(words(4));
+                writer.writeStartElement("Reference");
+                writer.writeCharacters("C" + random.nextInt(1000));
+                writer.writeEndElement();
+                writer.writeStartElement("Term");
+                writer.writeAttribute("class", "italics");
+                writer.writeCharacters(words(1));
+                writer.writeEndElement();
+                writer.writeEndElement();
+                for (int i = 0; i < 2; i++) {
+                    writer.writeStartElement("Fragment");
+                    writer.writeAttribute("type", "list");
+                    writer.writeCharacters(words(3));
+                    writer.writeEndElement();
+                }
+                writeNested(nesting);
+            }
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+    }
+
+    /**
+     * Alternates List and Table content down to the requested depth.
+     */
+    private void writeNested(int nesting) throws XMLStreamException {
+        if (nesting <= 0) {
+            return;
+        }
+        if (nesting % 2 == 1) {
+            writer.writeStartElement("List");
+            for (int i = 0; i < 2; i++) {
+                writer.writeStartElement("ListItem");
+                writer.writeCharacters(words(3));
+                writeNested(nesting - 1);
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+        } else {
+            writer.writeStartElement("Table");
+            writer.writeStartElement("TBody");
+            writer.writeStartElement("Row");
+            for (int i = 0; i < 2; i++) {
+                writer.writeStartElement("Cell");
+                writer.writeCharacters(words(2));
+                writeNested(nesting - 1);
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+            writer.writeEndElement();
+            writer.writeEndElement();
+        }
+    }
+
+    private String words(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long r = a + b;
+        return r < 0 ? Long.MAX_VALUE : r;
+    }
+
+    private static long saturatedMultiply(long a, long b) {
+        return b != 0 && a > Long.MAX_VALUE / b ? Long.MAX_VALUE : a * b;
+    }
+
+    public static void main(String[] args) throws IOException, XMLStreamException {
+        if (args.length < 2) {
+            System.out.println("Usage: SyntheticClamlGenerator output.xml classCount [depth fanOut modifiers]");
+            return;
+        }
+        List<String> rest = new ArrayList<>(Arrays.asList(args).subList(2, args.length));
+        SyntheticClamlGenerator generator = new SyntheticClamlGenerator().setClassCount(Long.parseLong(args[1]));
+        if (rest.size() > 0) {
+            generator.setDepth(Integer.parseInt(rest.get(0)));
+        }
+        if (rest.size() > 1) {
+            generator.setFanOut(Integer.parseInt(rest.get(1)));
+        }
+        if (rest.size() > 2) {
+            generator.setModifiers(Integer.parseInt(rest.get(2)));
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[0]), 1 << 16)) {
+            generator.write(out);
+        }
+    }
+
+}
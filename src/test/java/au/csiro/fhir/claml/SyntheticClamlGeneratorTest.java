@@ -0,0 +1,82 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import au.csiro.fhir.claml.model.claml.ClaML;
+import au.csiro.fhir.claml.model.claml.Class;
+import au.csiro.fhir.claml.model.claml.SubClass;
+
+public class SyntheticClamlGeneratorTest {
+
+    private static JAXBContext jaxbContext;
+
+    @BeforeClass
+    public static void init() throws JAXBException {
+        jaxbContext = JAXBContext.newInstance(ClaML.class);
+    }
+
+    @Test
+    public void testTruncatedHierarchyIsConsistent() throws Exception {
+        byte[] xml = new SyntheticClamlGenerator()
+                .setClassCount(1000)
+                .setDepth(3)
+                .setFanOut(12)
+                .setRubricsPerClass(6)
+                .setLabelDepth(3)
+                .setLanguages("en", "fr")
+                .toByteArray();
+
+        Set<String> codes = new HashSet<>();
+        Set<String> referenced = new HashSet<>();
+        try (ClamlReader reader = new ClamlReader(jaxbContext, new ByteArrayInputStream(xml))) {
+            reader.readHeader();
+            while (reader.hasNext()) {
+                Class c = reader.next();
+                assertTrue("Duplicate code " + c.getCode(), codes.add(c.getCode()));
+                assertEquals(12, c.getRubric().stream().mapToInt(r -> r.getLabel().size()).sum());
+                for (SubClass sub : c.getSubClass()) {
+                    referenced.add(sub.getCode());
+                }
+            }
+        }
+        assertEquals(1000, codes.size());
+        assertTrue(codes.containsAll(referenced));
+        assertEquals(999, referenced.size());
+    }
+
+    @Test
+    public void testModifiersAreApplied() throws Exception {
+        // Ten chapters of ten categories; every category is modified by S0 (4 classes) then S1
+        byte[] xml = new SyntheticClamlGenerator()
+                .setClassCount(110)
+                .setDepth(1)
+                .setFanOut(10)
+                .setModifiers(2)
+                .setModifierClasses(4)
+                .toByteArray();
+
+        FhirClamlService service = new FhirClamlService();
+        CodeSystemBuilder builder = new CodeSystemBuilder();
+        try (ClamlReader reader = new ClamlReader(jaxbContext, new ByteArrayInputStream(xml))) {
+            service.claml2Fhir(reader.readHeader(), reader, new ConversionOptions().setApplyModifiers(true), builder);
+        }
+        CodeSystem cs = builder.getCodeSystem();
+        // Odd leaves: 4 + (3 + 3 * 4) codes, as b0 is excluded after a0.
+        // Even leaves: 4 + (1 + 3 * 2) codes, as S1 only allows b0 and b2.
+        assertEquals(110 + 50 * 19 + 50 * 11, cs.getConcept().size());
+        assertEquals(cs.getConcept().size(), cs.getCount());
+    }
+
+}
@@ -0,0 +1,147 @@
+package au.csiro.fhir.claml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.junit.Test;
+
+import au.csiro.fhir.claml.TerminologyIndex.Outcome;
+import au.csiro.fhir.claml.model.claml.ClaML;
+
+public class TerminologyIndexTest {
+
+    /**
+     * A has children B and C, D has parents B and C, and E is nested in D. F stands alone.
+     */
+    private static TerminologyIndex polyhierarchy() {
+        CodeSystem cs = new CodeSystem().setUrl("http://example.org/cs").setVersion("1");
+        cs.addConcept().setCode("A").setDisplay("Alpha");
+        cs.addConcept().setCode("B").setDisplay("Beta").addProperty().setCode("parent").setValue(new CodeType("A"));
+        cs.addConcept().setCode("C").addProperty().setCode("parent").setValue(new CodeType("A"));
+        ConceptDefinitionComponent d = cs.addConcept().setCode("D").setDisplay("Delta");
+        d.addDesignation().setValue("Dee");
+        d.addProperty().setCode("parent").setValue(new CodeType("C"));
+        d.addProperty().setCode("parent").setValue(new CodeType("B"));
+        d.addConcept().setCode("E");
+        cs.addConcept().setCode("F");
+        return TerminologyIndexBuilder.index(cs);
+    }
+
+    @Test
+    public void testSubsumes() {
+        TerminologyIndex index = polyhierarchy();
+        assertEquals(6, index.size());
+        assertTrue(index.subsumes("A", "E"));
+        assertTrue(index.subsumes("B", "E"));
+        assertTrue(index.subsumes("C", "E"));
+        assertTrue(index.subsumes("D", "D"));
+        assertFalse(index.subsumes("B", "C"));
+        assertFalse(index.subsumes("E", "D"));
+        assertFalse(index.subsumes("F", "E"));
+        assertEquals(Outcome.SUBSUMES, index.subsumesOutcome("B", "D"));
+        assertEquals(Outcome.SUBSUMED_BY, index.subsumesOutcome("E", "A"));
+        assertEquals(Outcome.EQUIVALENT, index.subsumesOutcome("F", "F"));
+        assertEquals(Outcome.NOT_SUBSUMED, index.subsumesOutcome("F", "A"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSubsumesUnknown() {
+        polyhierarchy().subsumesOutcome("A", "Z");
+    }
+
+    @Test
+    public void testLookupAndValidate() {
+        TerminologyIndex index = polyhierarchy();
+        assertNull(index.lookup("Z"));
+        Parameters lookup = index.lookup("D");
+        assertEquals("Delta", lookup.getParameter("display").getValue().primitiveValue());
+        assertEquals(2, values(lookup, "parent").size());
+        assertEquals(List.of("E"), values(lookup, "child"));
+
+        assertTrue(result(index.validateCode("D", null)));
+        assertTrue(result(index.validateCode("D", "Delta")));
+        assertTrue(result(index.validateCode("D", "Dee")));
+        assertFalse(result(index.validateCode("D", "Gamma")));
+        assertFalse(result(index.validateCode("Z", null)));
+    }
+
+    @Test
+    public void testConvertedHierarchy() throws Exception {
+        byte[] xml = new SyntheticClamlGenerator().setClassCount(2000).setDepth(3).setFanOut(8).setRubricsPerClass(1).toByteArray();
+        CodeSystemBuilder builder = new CodeSystemBuilder();
+        TerminologyIndexBuilder indexBuilder = new TerminologyIndexBuilder();
+        try (ClamlReader reader = new ClamlReader(JAXBContext.newInstance(ClaML.class), new ByteArrayInputStream(xml))) {
+            new FhirClamlService().claml2Fhir(reader.readHeader(), reader, new ConversionOptions(),
+                    new TeeConceptSink(builder, indexBuilder));
+        }
+        TerminologyIndex index = indexBuilder.getIndex();
+        CodeSystem cs = builder.getCodeSystem();
+        assertEquals(cs.getCount(), index.size());
+
+        // Compare with walking the parents of every concept
+        Map<String, List<String>> parents = new HashMap<>();
+        for (ConceptDefinitionComponent concept : cs.getConcept()) {
+            parents.put(concept.getCode(), concept.getProperty().stream()
+                    .filter(p -> p.getCode().equals("parent"))
+                    .map(p -> p.getValue().primitiveValue())
+                    .collect(Collectors.toList()));
+        }
+        List<String> codes = new ArrayList<>(parents.keySet());
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            String a = codes.get(random.nextInt(codes.size()));
+            String b = i % 2 == 0 ? codes.get(random.nextInt(codes.size())) : parents.get(a).isEmpty() ? a : parents.get(a).get(0);
+            assertEquals(a + " " + b, ancestors(parents, b).contains(a), index.subsumes(a, b));
+        }
+    }
+
+    private static Set<String> ancestors(Map<String, List<String>> parents, String code) {
+        Set<String> result = new HashSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(code);
+        while (!queue.isEmpty()) {
+            String c = queue.poll();
+            if (result.add(c)) {
+                queue.addAll(parents.getOrDefault(c, List.of()));
+            }
+        }
+        return result;
+    }
+
+    private static List<String> values(Parameters parameters, String property) {
+        List<String> result = new ArrayList<>();
+        for (ParametersParameterComponent p : parameters.getParameter()) {
+            if (p.getName().equals("property") && p.getPart().get(0).getValue().primitiveValue().equals(property)) {
+                result.add(p.getPart().get(1).getValue().primitiveValue());
+            }
+        }
+        return result;
+    }
+
+    private static boolean result(Parameters parameters) {
+        return ((BooleanType) parameters.getParameter("result").getValue()).booleanValue();
+    }
+
+}